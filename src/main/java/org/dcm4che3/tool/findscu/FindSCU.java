@@ -10,14 +10,21 @@
 package org.dcm4che3.tool.findscu;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.text.DecimalFormat;
 import java.util.EnumSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.xml.XMLConstants;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Templates;
@@ -35,6 +42,7 @@ import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.io.SAXReader;
 import org.dcm4che3.io.SAXWriter;
+import org.dcm4che3.json.JSONWriter;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Connection;
@@ -49,8 +57,15 @@ import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.util.SafeClose;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.CancelListener;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.util.UnclosableOutputStream;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * The findscu application implements a Service Class User (SCU) for the Query/Retrieve, the
@@ -95,7 +110,25 @@ public class FindSCU implements AutoCloseable {
     }
   }
 
+  public enum OutputFormat {
+    DICOM,
+    XML,
+    /** JSON array of the DICOM JSON Model objects */
+    JSON,
+    /** One DICOM JSON Model object per line */
+    NDJSON
+  }
+
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  /*
+   * Root element wrapping the NativeDicomModel element of each match when the matches are written
+   * into the output stream as a single XML document. The Native DICOM Model (PS3.19) has no
+   * container for several datasets, this element is specific to FindSCU.
+   */
+  private static final String XML_ROOT = "NativeDicomModels";
+
   private SAXTransformerFactory saxtf;
+  private JsonGeneratorFactory jsonFactory;
 
   private final Device device = new Device("findscu");
   private final ApplicationEntity ae = new ApplicationEntity("FINDSCU");
@@ -112,24 +145,40 @@ public class FindSCU implements AutoCloseable {
   private final Attributes keys = new Attributes();
 
   private boolean catOut = false;
-  private boolean xml = false;
+  private OutputFormat outFormat = OutputFormat.DICOM;
   private boolean xmlIndent = false;
   private boolean xmlIncludeKeyword = true;
   private boolean xmlIncludeNamespaceDeclaration = false;
   private File xsltFile;
   private Templates xsltTpls;
-  private OutputStream out;
+  private OutputStream userOut;
+  private MatchWriter writer;
+  private volatile Exception writeError;
 
-  private Association as;
+  private volatile Association as;
+  private volatile DimseRSPHandler rspHandler;
   private final AtomicInteger totNumMatches = new AtomicInteger();
 
   private final DicomState state;
+  private final CancelListener cancelListener;
 
   public FindSCU() throws IOException {
+    this(null);
+  }
+
+  /**
+   * @param progress the progress handler, the query is cancelled when the progress is cancelled.
+   *     Can be null.
+   */
+  public FindSCU(DicomProgress progress) throws IOException {
     device.addConnection(conn);
     device.addApplicationEntity(ae);
     ae.addConnection(conn);
-    state = new DicomState(new DicomProgress());
+    DicomProgress p = progress == null ? new DicomProgress() : progress;
+    state = new DicomState(p);
+    // Send C-CANCEL as soon as the operation is cancelled, abort when the SCP does not stop
+    cancelListener = () -> ServiceUtil.cancelAndAbort(as, rspHandler, p.getAbortDelay());
+    p.addCancelListener(cancelListener);
   }
 
   public final void setPriority(int priority) {
@@ -173,7 +222,23 @@ public class FindSCU implements AutoCloseable {
   }
 
   public final void setXML(boolean xml) {
-    this.xml = xml;
+    this.outFormat = xml ? OutputFormat.XML : OutputFormat.DICOM;
+  }
+
+  public final void setOutputFormat(OutputFormat outFormat) {
+    this.outFormat = outFormat == null ? OutputFormat.DICOM : outFormat;
+  }
+
+  /**
+   * Write all the matches of the query to a single stream in the output format. The stream is not
+   * closed by FindSCU. With the XML format, the NativeDicomModel elements are wrapped into a
+   * NativeDicomModels root element. When the stream cannot be written, the query is cancelled and
+   * its status is {@link Status#ProcessingFailure}.
+   *
+   * @param out the output stream or null to write in the output directory
+   */
+  public final void setOutputStream(OutputStream out) {
+    this.userOut = out;
   }
 
   public final void setXMLIndent(boolean indent) {
@@ -228,12 +293,20 @@ public class FindSCU implements AutoCloseable {
 
   @Override
   public void close() throws IOException, InterruptedException {
-    if (as != null && as.isReadyForDataTransfer()) {
-      as.waitForOutstandingRSP();
-      as.release();
+    try {
+      if (as != null && as.isReadyForDataTransfer()) {
+        as.waitForOutstandingRSP();
+        as.release();
+      }
+      closeWriter();
+    } finally {
+      state.getProgress().removeCancelListener(cancelListener);
     }
-    SafeClose.close(out);
-    out = null;
+  }
+
+  private void closeWriter() {
+    SafeClose.close(writer);
+    writer = null;
   }
 
   public void query(File f) throws Exception {
@@ -296,24 +369,25 @@ public class FindSCU implements AutoCloseable {
 
           int cancelAfter = FindSCU.this.cancelAfter;
           int numMatches;
+          boolean cancelled;
 
           @Override
           public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
             super.onDimseRSP(as, cmd, data);
             int status = cmd.getInt(Tag.Status, -1);
             if (Status.isPending(status)) {
-              FindSCU.this.onResult(data);
+              boolean written = FindSCU.this.onResult(data);
               ++numMatches;
-              if (cancelAfter != 0 && numMatches >= cancelAfter) {
+              if (!cancelled && (!written || (cancelAfter != 0 && numMatches >= cancelAfter))) {
                 try {
                   cancel(as);
-                  cancelAfter = 0;
+                  cancelled = true;
                 } catch (IOException e) {
                   LOGGER.error("Building response", e);
                 }
               }
             } else {
-              state.setStatus(status);
+              state.setStatus(writeError == null ? status : Status.ProcessingFailure);
             }
           }
         };
@@ -327,39 +401,52 @@ public class FindSCU implements AutoCloseable {
 
   private void query(Attributes keys, DimseRSPHandler rspHandler)
       throws IOException, InterruptedException {
+    this.rspHandler = rspHandler;
+    if (state.getProgress().isCancel()) {
+      // Cancelled while opening the association
+      state.setStatus(Status.Cancel);
+      return;
+    }
     as.cfind(model.cuid, priority, keys, null, rspHandler);
   }
 
-  private void onResult(Attributes data) {
+  /** @return false when the matches cannot be streamed anymore and the query must be cancelled */
+  private boolean onResult(Attributes data) {
     state.addDicomRSP(data);
     int numMatches = totNumMatches.incrementAndGet();
-    if (outDir == null) {
-      return;
+    if (outDir == null && userOut == null) {
+      return true;
     }
 
+    boolean streaming = catOut || userOut != null;
+    if (streaming && writeError != null) {
+      return false;
+    }
     try {
-      if (out == null) {
-        File f = new File(outDir, fname(numMatches));
-        out = new BufferedOutputStream(new FileOutputStream(f));
-      }
-      if (xml) {
-        writeAsXML(data, out);
-      } else {
-        // Do not close DicomOutputStream until catOut is false. Only "out" needs to be closed
-        DicomOutputStream dos = new DicomOutputStream(out, UID.ImplicitVRLittleEndian); // NOSONAR
-        dos.writeDataset(null, data);
+      if (writer == null) {
+        writer = openWriter(numMatches, streaming);
       }
-      out.flush();
+      writer.write(data);
+      writer.flush();
     } catch (Exception e) {
       LOGGER.error("Building response", e);
-      SafeClose.close(out);
-      out = null;
+      closeWriter();
+      if (streaming) {
+        // The output is incomplete, reopening a writer on the same stream would corrupt it
+        writeError = e;
+        return false;
+      }
     } finally {
-      if (!catOut) {
-        SafeClose.close(out);
-        out = null;
+      if (!streaming) {
+        closeWriter();
       }
     }
+    return true;
+  }
+
+  /** @return the error when writing the streamed matches or null */
+  public Exception getWriteError() {
+    return writeError;
   }
 
   private String fname(int i) {
@@ -368,14 +455,42 @@ public class FindSCU implements AutoCloseable {
     }
   }
 
-  private void writeAsXML(Attributes attrs, OutputStream out) throws Exception {
-    TransformerHandler th = getTransformerHandler();
-    th.getTransformer().setOutputProperty(OutputKeys.INDENT, xmlIndent ? "yes" : "no");
-    th.setResult(new StreamResult(out));
-    SAXWriter saxWriter = new SAXWriter(th);
-    saxWriter.setIncludeKeyword(xmlIncludeKeyword);
-    saxWriter.setIncludeNamespaceDeclaration(xmlIncludeNamespaceDeclaration);
-    saxWriter.write(attrs);
+  /**
+   * The writer is opened once for the query when the matches are streamed to a single output
+   * (concatenated files or user stream), otherwise once per match.
+   */
+  private MatchWriter openWriter(int numMatches, boolean streaming) throws Exception {
+    OutputStream stream;
+    if (userOut == null) {
+      stream = new FileOutputStream(new File(outDir, fname(numMatches)));
+    } else {
+      stream = new UnclosableOutputStream(userOut);
+    }
+    OutputStream out = new BufferedOutputStream(stream, OUTPUT_BUFFER_SIZE);
+    try {
+      switch (outFormat) {
+        case XML:
+          // The concatenated files keep one document per match
+          return new XmlWriter(out, userOut != null);
+        case JSON:
+          return new JsonWriter(out, getJsonFactory(), streaming);
+        case NDJSON:
+          return new JsonWriter(out, getJsonFactory(), false);
+        default:
+          return new DicomWriter(out);
+      }
+    } catch (Exception e) {
+      SafeClose.close(out);
+      throw e;
+    }
+  }
+
+  private JsonGeneratorFactory getJsonFactory() {
+    JsonGeneratorFactory factory = jsonFactory;
+    if (factory == null) {
+      jsonFactory = factory = Json.createGeneratorFactory(null);
+    }
+    return factory;
   }
 
   private TransformerHandler getTransformerHandler() throws Exception {
@@ -396,6 +511,220 @@ public class FindSCU implements AutoCloseable {
     return tf.newTransformerHandler(tpls);
   }
 
+  private abstract static class MatchWriter implements Closeable {
+    protected final OutputStream out;
+
+    MatchWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    abstract void write(Attributes match) throws Exception;
+
+    /** Flush each match, so the consumers of the stream receive the matches as they come. */
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    void finish() throws Exception {}
+
+    @Override
+    public void close() throws IOException {
+      try {
+        finish();
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private static class DicomWriter extends MatchWriter {
+    private final DicomOutputStream dos;
+
+    DicomWriter(OutputStream out) throws IOException {
+      super(out);
+      // Do not close DicomOutputStream, only "out" needs to be closed
+      this.dos = new DicomOutputStream(out, UID.ImplicitVRLittleEndian); // NOSONAR
+    }
+
+    @Override
+    void write(Attributes match) throws IOException {
+      dos.writeDataset(null, match);
+    }
+
+    @Override
+    void flush() throws IOException {
+      dos.flush();
+    }
+  }
+
+  private class XmlWriter extends MatchWriter {
+    private final TransformerHandler rootHandler;
+    private final SAXWriter rootWriter;
+
+    /**
+     * @param wrap true to wrap all the matches into a single document, otherwise each match is a
+     *     document as in a file per match
+     */
+    XmlWriter(OutputStream out, boolean wrap) throws Exception {
+      super(out);
+      if (wrap) {
+        this.rootHandler = newTransformerHandler();
+        XMLFilterImpl filter =
+            new XMLFilterImpl() {
+              @Override
+              public void startDocument() {
+                // Already started
+              }
+
+              @Override
+              public void endDocument() {
+                // Ended when closing the writer
+              }
+            };
+        filter.setContentHandler(rootHandler);
+        rootHandler.startDocument();
+        rootHandler.startElement("", XML_ROOT, XML_ROOT, new AttributesImpl());
+        this.rootWriter = newSAXWriter(filter);
+      } else {
+        this.rootHandler = null;
+        this.rootWriter = null;
+      }
+    }
+
+    private TransformerHandler newTransformerHandler() throws Exception {
+      TransformerHandler th = getTransformerHandler();
+      th.getTransformer().setOutputProperty(OutputKeys.INDENT, xmlIndent ? "yes" : "no");
+      th.setResult(new StreamResult(out));
+      return th;
+    }
+
+    private SAXWriter newSAXWriter(ContentHandler handler) {
+      SAXWriter saxWriter = new SAXWriter(handler);
+      saxWriter.setIncludeKeyword(xmlIncludeKeyword);
+      saxWriter.setIncludeNamespaceDeclaration(xmlIncludeNamespaceDeclaration);
+      return saxWriter;
+    }
+
+    @Override
+    void write(Attributes match) throws Exception {
+      if (rootWriter == null) {
+        // A transformer handler writes only one document
+        newSAXWriter(newTransformerHandler()).write(match);
+      } else {
+        rootWriter.write(match);
+      }
+    }
+
+    @Override
+    void finish() throws SAXException {
+      if (rootHandler != null) {
+        rootHandler.endElement("", XML_ROOT, XML_ROOT);
+        rootHandler.endDocument();
+      }
+    }
+  }
+
+  /**
+   * Writes all the matches with a single JSON generator, either as a JSON array or as one JSON
+   * object per line.
+   */
+  private static class JsonWriter extends MatchWriter {
+    private final JsonGenerator gen;
+
+    JsonWriter(OutputStream out, JsonGeneratorFactory factory, boolean array) {
+      super(out);
+      Writer writer =
+          new OutputStreamWriter(new UnclosableOutputStream(out), StandardCharsets.UTF_8);
+      this.gen = factory.createGenerator(array ? writer : new JsonLinesWriter(writer));
+      gen.writeStartArray();
+    }
+
+    @Override
+    void write(Attributes match) {
+      new JSONWriter(gen).write(match);
+    }
+
+    @Override
+    void flush() throws IOException {
+      gen.flush();
+      out.flush();
+    }
+
+    @Override
+    void finish() {
+      gen.writeEnd();
+      gen.close();
+    }
+  }
+
+  /**
+   * Converts the JSON array written by the generator into one element per line: the brackets of
+   * the array and the commas between its elements are removed and a newline follows each element.
+   */
+  static class JsonLinesWriter extends Writer {
+    private final Writer out;
+    private int depth;
+    private boolean inString;
+    private boolean escape;
+
+    JsonLinesWriter(Writer out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      int start = off;
+      int end = off + len;
+      for (int i = off; i < end; i++) {
+        char c = cbuf[i];
+        if (inString) {
+          if (escape) {
+            escape = false;
+          } else if (c == '\\') {
+            escape = true;
+          } else if (c == '"') {
+            inString = false;
+          }
+        } else if (c == '"') {
+          inString = true;
+        } else if (c == '{' || c == '[') {
+          if (depth++ == 0) {
+            out.write(cbuf, start, i - start);
+            start = i + 1;
+          }
+        } else if (c == '}' || c == ']') {
+          depth--;
+          if (depth == 0) {
+            out.write(cbuf, start, i - start);
+            start = i + 1;
+          } else if (depth == 1) {
+            out.write(cbuf, start, i + 1 - start);
+            out.write('\n');
+            start = i + 1;
+          }
+        } else if (c == ',' && depth == 1) {
+          out.write(cbuf, start, i - start);
+          start = i + 1;
+        }
+      }
+      out.write(cbuf, start, end - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
   public Connection getConnection() {
     return conn;
   }
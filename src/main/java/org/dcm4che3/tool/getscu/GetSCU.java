@@ -9,11 +9,17 @@
  */
 package org.dcm4che3.tool.getscu;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.ElementDictionary;
 import org.dcm4che3.data.Tag;
@@ -36,13 +42,20 @@ import org.dcm4che3.net.pdu.RoleSelection;
 import org.dcm4che3.net.service.BasicCStoreSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4che3.util.AttributesFormat;
 import org.dcm4che3.util.SafeClose;
+import org.dcm4che3.util.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+import org.weasis.dicom.param.CancelListener;
+import org.weasis.dicom.param.CgetParams;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
 import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.util.ThrottledInputStream;
 
 /** @author Gunter Zeilinger <gunterze@gmail.com> */
 public class GetSCU implements AutoCloseable {
@@ -75,6 +88,7 @@ public class GetSCU implements AutoCloseable {
     Tag.SOPInstanceUID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID
   };
   private static final String TMP_DIR = "tmp";
+  private static final int MAX_SHARDING_DEPTH = 4;
 
   private final Device device = new Device("getscu");
   private final ApplicationEntity ae;
@@ -84,12 +98,23 @@ public class GetSCU implements AutoCloseable {
   private int priority;
   private InformationModel model;
   private File storageDir;
+  private AttributesFormat filePathFormat;
+  private int shardingDepth;
+  private int writerThreads;
+  private int writerBufferSize = CgetParams.DEFAULT_WRITER_BUFFER_SIZE;
+  private volatile ExecutorService writerExecutor;
+  private volatile Semaphore writerBuffer;
+  private final AtomicInteger writeFailures = new AtomicInteger();
+  private int reportedWriteFailures;
+  private InstanceHandler instanceHandler;
+  private TokenBucket bandwidthBucket;
   private Attributes keys = new Attributes();
   private int[] inFilter = DEF_IN_FILTER;
   private Association as;
   private int cancelAfter;
   private final DicomState state;
-  private DimseRSPHandler rspHandler;
+  private final CancelListener cancelListener;
+  private volatile DimseRSPHandler rspHandler;
 
   private BasicCStoreSCP storageSCP =
       new BasicCStoreSCP("*") {
@@ -102,24 +127,152 @@ public class GetSCU implements AutoCloseable {
             PDVInputStream data,
             Attributes rsp)
             throws IOException {
-          if (storageDir == null) {
-            return;
+          Attributes fmi =
+              as.createFileMetaInformation(
+                  rq.getString(Tag.AffectedSOPInstanceUID),
+                  rq.getString(Tag.AffectedSOPClassUID),
+                  pc.getTransferSyntax());
+          TokenBucket bucket = bandwidthBucket;
+          if (bucket == null) {
+            storeInstance(as, fmi, data);
+          } else {
+            // The received datasets share the bandwidth budget of the called node
+            bucket.begin();
+            try {
+              storeInstance(as, fmi, new ThrottledInputStream(data, bucket));
+            } finally {
+              bucket.end();
+            }
           }
-
-          String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
-          String cuid = rq.getString(Tag.AffectedSOPClassUID);
-          String tsuid = pc.getTransferSyntax();
-          File file = new File(storageDir, TMP_DIR + File.separator + iuid);
           try {
-            storeTo(as, as.createFileMetaInformation(iuid, cuid, tsuid), data, file);
-            renameTo(as, file, new File(storageDir, iuid));
-          } catch (Exception e) {
+            // Skip the bytes not read by the instance handler
+            data.skipAll();
+          } catch (IOException e) {
             throw new DicomServiceException(Status.ProcessingFailure, e);
           }
-          updateProgress(as, null);
         }
       };
 
+  private void storeInstance(Association as, Attributes fmi, InputStream data)
+      throws DicomServiceException {
+    if (instanceHandler != null) {
+      try {
+        instanceHandler.handle(fmi, data);
+      } catch (Exception e) {
+        throw new DicomServiceException(Status.ProcessingFailure, e);
+      }
+      updateProgress(as, null);
+      return;
+    }
+    if (storageDir == null) {
+      return;
+    }
+
+    String iuid = fmi.getString(Tag.MediaStorageSOPInstanceUID);
+    File file = new File(storageDir, TMP_DIR + File.separator + iuid);
+    try {
+      DicomProgress p = state.getProgress();
+      if (p != null && p.isCancel()) {
+        throw new IOException("C-GET has been cancelled");
+      }
+      ExecutorService executor = writerExecutor;
+      if (executor == null) {
+        storeTo(as, fmi, data, file);
+        moveToStorage(as, file, iuid);
+      } else {
+        // Return the C-STORE-RSP without waiting for writing and moving the file
+        executor.execute(newWriteTask(as, fmi, data, file, iuid));
+      }
+    } catch (Exception e) {
+      FileUtil.delete(file);
+      throw new DicomServiceException(Status.ProcessingFailure, e);
+    }
+    updateProgress(as, null);
+  }
+
+  private WriteTask newWriteTask(
+      Association as, Attributes fmi, InputStream data, File file, String iuid)
+      throws IOException, InterruptedException {
+    Semaphore buffer = writerBuffer;
+    ByteArrayOutputStream dataset = new ByteArrayOutputStream();
+    if (readDataset(data, dataset, writerBufferSize)) {
+      // Wait until the writers have room for the dataset, the buffer is not copied
+      buffer.acquire(dataset.size());
+      return new WriteTask(as, file, iuid, fmi, dataset, buffer);
+    }
+    // Too large to be kept in memory, the file is written before sending the C-STORE-RSP
+    LOGGER.debug("{}: M-WRITE {}", as, file);
+    file.getParentFile().mkdirs();
+    try (DicomOutputStream out = new DicomOutputStream(file)) {
+      out.writeFileMetaInformation(fmi);
+      dataset.writeTo(out);
+      StreamUtils.copy(data, out);
+    }
+    return new WriteTask(as, file, iuid, null, null, buffer);
+  }
+
+  private static boolean readDataset(InputStream in, ByteArrayOutputStream out, int limit)
+      throws IOException {
+    byte[] buf = new byte[FileUtil.FILE_BUFFER];
+    int n;
+    while (out.size() <= limit && (n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    return out.size() <= limit;
+  }
+
+  private class WriteTask implements Runnable {
+    private final Association as;
+    private final File file;
+    private final String iuid;
+    private final Attributes fmi;
+    private final ByteArrayOutputStream dataset;
+    private final Semaphore buffer;
+
+    WriteTask(
+        Association as,
+        File file,
+        String iuid,
+        Attributes fmi,
+        ByteArrayOutputStream dataset,
+        Semaphore buffer) {
+      this.as = as;
+      this.file = file;
+      this.iuid = iuid;
+      this.fmi = fmi;
+      this.dataset = dataset;
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (dataset != null) {
+          LOGGER.debug("{}: M-WRITE {}", as, file);
+          file.getParentFile().mkdirs();
+          try (DicomOutputStream out = new DicomOutputStream(file)) {
+            out.writeFileMetaInformation(fmi);
+            dataset.writeTo(out);
+          }
+        }
+        moveToStorage(as, file, iuid);
+      } catch (Exception e) {
+        // The C-STORE-RSP has already been sent, the failure is reported at the end of the C-GET
+        writeFailures.incrementAndGet();
+        LOGGER.error("{}: cannot write {} in the storage directory", as, file, e);
+        FileUtil.delete(file);
+      } finally {
+        release();
+      }
+    }
+
+    void release() {
+      if (dataset != null) {
+        buffer.release(dataset.size());
+      }
+    }
+  }
+
   public GetSCU() throws IOException {
     this(null);
   }
@@ -131,6 +284,13 @@ public class GetSCU implements AutoCloseable {
     ae.addConnection(conn);
     device.setDimseRQHandler(createServiceRegistry());
     state = new DicomState(progress);
+    if (progress == null) {
+      cancelListener = null;
+    } else {
+      // Send C-CANCEL as soon as the operation is cancelled, abort when the SCP does not stop
+      cancelListener = () -> ServiceUtil.cancelAndAbort(as, rspHandler, progress.getAbortDelay());
+      progress.addCancelListener(cancelListener);
+    }
   }
 
   public ApplicationEntity getApplicationEntity() {
@@ -157,19 +317,43 @@ public class GetSCU implements AutoCloseable {
     return keys;
   }
 
-  public static void storeTo(Association as, Attributes fmi, PDVInputStream data, File file)
+  public static void storeTo(Association as, Attributes fmi, InputStream data, File file)
       throws IOException {
     LOGGER.debug("{}: M-WRITE {}", as, file);
     file.getParentFile().mkdirs();
     DicomOutputStream out = new DicomOutputStream(file);
     try {
       out.writeFileMetaInformation(fmi);
-      data.copyTo(out);
+      StreamUtils.copy(data, out);
     } finally {
       SafeClose.close(out);
     }
   }
 
+  private void moveToStorage(Association as, File file, String iuid) throws IOException {
+    renameTo(as, file, getStorageFile(file, iuid));
+  }
+
+  private File getStorageFile(File file, String iuid) throws IOException {
+    if (filePathFormat != null) {
+      Attributes attrs;
+      try (DicomInputStream dis = new DicomInputStream(file)) {
+        attrs = dis.readDataset(-1, Tag.PixelData);
+      }
+      return new File(storageDir, filePathFormat.format(attrs));
+    }
+    if (shardingDepth > 0) {
+      String hash = String.format("%08x", iuid.hashCode());
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < shardingDepth; i++) {
+        buf.append(hash, 2 * i, 2 * i + 2).append(File.separatorChar);
+      }
+      buf.append(iuid);
+      return new File(storageDir, buf.toString());
+    }
+    return new File(storageDir, iuid);
+  }
+
   private static void renameTo(Association as, File from, File dest) throws IOException {
     LOGGER.info("{}: M-RENAME {} to {}", as, from, dest);
     FileUtil.prepareToWriteFile(dest);
@@ -191,6 +375,65 @@ public class GetSCU implements AutoCloseable {
     this.storageDir = storageDir;
   }
 
+  /**
+   * Set the relative path of the stored files from the attributes of each instance (e.g.
+   * "{0020000D,hash}/{0020000E,hash}/{00080018}"). The file is parsed before being moved to its
+   * final location.
+   *
+   * @param pattern the {@link AttributesFormat} pattern or null to use the SOP Instance UID
+   */
+  public void setStorageFilePathFormat(String pattern) {
+    this.filePathFormat = pattern == null ? null : new AttributesFormat(pattern);
+  }
+
+  /**
+   * Distribute the files into sub-directories named from the hash of the SOP Instance UID. Each
+   * level contains at most 256 sub-directories. Not applied when a file path format is set.
+   *
+   * @param shardingDepth the number of directory levels (0 to 4), 0 for a flat directory
+   */
+  public void setShardingDepth(int shardingDepth) {
+    this.shardingDepth = Math.max(0, Math.min(MAX_SHARDING_DEPTH, shardingDepth));
+  }
+
+  /**
+   * Write the received instances asynchronously: each dataset is kept in memory and the
+   * C-STORE-RSP is sent immediately, then a writer thread writes the file and moves it to the
+   * storage directory.
+   *
+   * @param writerThreads the number of threads writing the received files in the storage
+   *     directory, 0 to write and move each file before sending the C-STORE-RSP.
+   */
+  public void setWriterThreads(int writerThreads) {
+    this.writerThreads = Math.max(0, writerThreads);
+  }
+
+  /**
+   * @param writerBufferSize the maximum size in bytes of the datasets waiting for a writer thread.
+   *     When the buffer is full, the next C-STORE-RSP is delayed until a file is written. A larger
+   *     dataset is written before sending its C-STORE-RSP. The default value is 64 MB.
+   */
+  public void setWriterBufferSize(int writerBufferSize) {
+    this.writerBufferSize = Math.max(0, writerBufferSize);
+  }
+
+  /**
+   * Hand the received instances to the handler instead of writing them in the storage directory.
+   *
+   * @param instanceHandler the handler receiving the instances or null to write them on disk
+   */
+  public void setInstanceHandler(InstanceHandler instanceHandler) {
+    this.instanceHandler = instanceHandler;
+  }
+
+  /**
+   * @param bandwidthBucket the token bucket limiting the rate of the received datasets, can be
+   *     null
+   */
+  public void setBandwidthBucket(TokenBucket bandwidthBucket) {
+    this.bandwidthBucket = bandwidthBucket;
+  }
+
   public final void setPriority(int priority) {
     this.priority = priority;
   }
@@ -234,15 +477,95 @@ public class GetSCU implements AutoCloseable {
   public void open()
       throws IOException, InterruptedException, IncompatibleConnectionException,
           GeneralSecurityException {
+    if (writerThreads > 0 && writerExecutor == null) {
+      writerBuffer = new Semaphore(writerBufferSize);
+      writerExecutor = Executors.newFixedThreadPool(writerThreads);
+    }
     as = ae.connect(conn, remote, rq);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
+    DicomProgress p = state.getProgress();
+    try {
+      if (as != null && as.isReadyForDataTransfer()) {
+        as.waitForOutstandingRSP();
+        as.release();
+      }
+      awaitWriters();
+    } finally {
+      if (p != null) {
+        p.removeCancelListener(cancelListener);
+      }
+    }
+  }
+
+  /**
+   * Wait for the end of the C-GET and until the writer threads have written all the received files
+   * in the storage directory. The files which cannot be written are reported in the state as
+   * failed sub-operations, because their C-STORE-RSP has already been sent with a success status.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void awaitWriters() throws InterruptedException {
     if (as != null && as.isReadyForDataTransfer()) {
       as.waitForOutstandingRSP();
-      as.release();
     }
+    ExecutorService executor = writerExecutor;
+    if (executor != null) {
+      writerExecutor = null;
+      DicomProgress p = state.getProgress();
+      if (p != null && p.isCancel()) {
+        // The received files which are not yet in the storage directory are discarded
+        List<Runnable> dropped = executor.shutdownNow();
+        for (Runnable task : dropped) {
+          ((WriteTask) task).release();
+          FileUtil.delete(((WriteTask) task).file);
+        }
+        writeFailures.addAndGet(dropped.size());
+      } else {
+        // Wait until all the received files are in the storage directory
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    }
+    reportWriteFailures();
+  }
+
+  /** @return the number of received instances which have not been written by the writer threads */
+  public int getNumberOfWriteFailures() {
+    return writeFailures.get();
+  }
+
+  private synchronized void reportWriteFailures() {
+    int failures = writeFailures.get() - reportedWriteFailures;
+    if (failures <= 0) {
+      return;
+    }
+    reportedWriteFailures += failures;
+    String message = failures + " received instances cannot be written in the storage directory";
+    LOGGER.error("C-GET: {}", message);
+    DicomProgress p = state.getProgress();
+    if (p != null) {
+      Attributes cmd =
+          p.getAttributes() == null ? new Attributes() : new Attributes(p.getAttributes());
+      int completed = cmd.getInt(Tag.NumberOfCompletedSuboperations, 0);
+      int failed = cmd.getInt(Tag.NumberOfFailedSuboperations, 0);
+      cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, Math.max(0, completed - failures));
+      cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed + failures);
+      if (isSuccess(cmd.getInt(Tag.Status, Status.Success))) {
+        cmd.setInt(Tag.Status, VR.US, Status.OneOrMoreFailures);
+      }
+      cmd.setString(Tag.ErrorComment, VR.LO, message);
+      p.setAttributes(cmd);
+    }
+    if (isSuccess(state.getStatus())) {
+      state.setStatus(Status.OneOrMoreFailures);
+    }
+  }
+
+  private static boolean isSuccess(int status) {
+    return status == Status.Success || status == Status.Pending;
   }
 
   public void retrieve(File f) throws IOException, InterruptedException {
@@ -11,7 +11,10 @@ package org.dcm4che3.tool.movescu;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.ElementDictionary;
@@ -25,13 +28,26 @@ import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
 import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.ExtendedNegotiation;
 import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.DicomServiceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+import org.weasis.dicom.param.CancelListener;
+import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
+import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.util.ThrottledInputStream;
 
 /** @author Gunter Zeilinger <gunterze@gmail.com> */
 public class MoveSCU extends Device implements AutoCloseable {
@@ -58,6 +74,39 @@ public class MoveSCU extends Device implements AutoCloseable {
     }
   }
 
+  /** An instance received by the embedded storage SCP */
+  public static class ReceivedInstance {
+    private final String sopInstanceUID;
+    private final String sopClassUID;
+    private final long latency;
+    private final long transferTime;
+
+    ReceivedInstance(String sopInstanceUID, String sopClassUID, long latency, long transferTime) {
+      this.sopInstanceUID = sopInstanceUID;
+      this.sopClassUID = sopClassUID;
+      this.latency = latency;
+      this.transferTime = transferTime;
+    }
+
+    public String getSopInstanceUID() {
+      return sopInstanceUID;
+    }
+
+    public String getSopClassUID() {
+      return sopClassUID;
+    }
+
+    /** @return the time in milliseconds between the C-MOVE request and the end of the reception */
+    public long getLatency() {
+      return latency;
+    }
+
+    /** @return the time in milliseconds to receive and handle the instance */
+    public long getTransferTime() {
+      return transferTime;
+    }
+  }
+
   private static final int[] DEF_IN_FILTER = {
     Tag.SOPInstanceUID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID
   };
@@ -75,6 +124,39 @@ public class MoveSCU extends Device implements AutoCloseable {
   private int cancelAfter;
   private boolean releaseEager;
   private final transient DicomState state;
+  private final transient CancelListener cancelListener;
+
+  private Connection storageConn;
+  private transient InstanceHandler instanceHandler;
+  private volatile int moveMessageID = -1;
+  private boolean acceptUncorrelatedInstances;
+  private transient TokenBucket bandwidthBucket;
+  private volatile long moveTime;
+  private transient volatile Attributes finalRsp;
+  private transient volatile DimseRSPHandler rspHandler;
+  private final transient List<ReceivedInstance> receivedInstances = new ArrayList<>();
+
+  private final transient BasicCStoreSCP storageSCP =
+      new BasicCStoreSCP("*") {
+
+        @Override
+        protected void store(
+            Association as,
+            PresentationContext pc,
+            Attributes rq,
+            PDVInputStream data,
+            Attributes rsp)
+            throws IOException {
+          String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+          String cuid = rq.getString(Tag.AffectedSOPClassUID);
+          receive(rq, as.createFileMetaInformation(iuid, cuid, pc.getTransferSyntax()), data);
+          try {
+            data.skipAll();
+          } catch (IOException e) {
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+          }
+        }
+      };
 
   public MoveSCU() throws IOException {
     this(null);
@@ -86,6 +168,19 @@ public class MoveSCU extends Device implements AutoCloseable {
     addApplicationEntity(ae);
     ae.addConnection(conn);
     state = new DicomState(progress);
+    if (progress == null) {
+      cancelListener = null;
+    } else {
+      // Send C-CANCEL as soon as the operation is cancelled, abort when the SCP does not stop
+      cancelListener =
+          () -> {
+            ServiceUtil.cancelAndAbort(as, rspHandler, progress.getAbortDelay());
+            synchronized (receivedInstances) {
+              receivedInstances.notifyAll();
+            }
+          };
+      progress.addCancelListener(cancelListener);
+    }
   }
 
   public final void setPriority(int priority) {
@@ -119,6 +214,183 @@ public class MoveSCU extends Device implements AutoCloseable {
     this.destination = destination;
   }
 
+  /**
+   * Start a storage SCP bound to the destination of the C-MOVE request. The instances received
+   * from the C-MOVE are handed to the handler instead of a separate listener. The destination node
+   * must be configured with the same AETitle, hostname and port in the remote archive.
+   *
+   * @param destinationNode the local node receiving the instances, the port is required
+   * @param instanceHandler the handler receiving each instance
+   */
+  public void setStorageSCP(DicomNode destinationNode, InstanceHandler instanceHandler) {
+    this.instanceHandler = instanceHandler;
+    this.destination = destinationNode.getAet();
+    storageConn = new Connection();
+    storageConn.setPort(destinationNode.getPort());
+    if (destinationNode.getHostname() != null) {
+      storageConn.setHostname(destinationNode.getHostname());
+    }
+    ApplicationEntity storageAE = new ApplicationEntity(destinationNode.getAet());
+    storageAE.setAssociationAcceptor(true);
+    storageAE.setAssociationInitiator(false);
+    storageAE.addConnection(storageConn);
+    storageAE.addTransferCapability(
+        new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
+    addConnection(storageConn);
+    addApplicationEntity(storageAE);
+
+    DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+    serviceRegistry.addDicomService(new BasicCEchoSCP());
+    serviceRegistry.addDicomService(storageSCP);
+    setDimseRQHandler(serviceRegistry);
+  }
+
+  /**
+   * Some SCPs do not set the Move Originator Message ID and AETitle in the C-STORE requests. Such
+   * instances cannot be distinguished from a concurrent C-MOVE or an unsolicited storage to the
+   * same destination, so they are rejected by default.
+   *
+   * @param accept true to hand the instances without originator to the handler
+   */
+  public void setAcceptUncorrelatedInstances(boolean accept) {
+    this.acceptUncorrelatedInstances = accept;
+  }
+
+  /**
+   * @param bandwidthBucket the token bucket limiting the rate of the datasets received by the
+   *     storage SCP, can be null
+   */
+  public void setBandwidthBucket(TokenBucket bandwidthBucket) {
+    this.bandwidthBucket = bandwidthBucket;
+  }
+
+  /** @return the listening connection of the storage SCP or null when not configured */
+  public Connection getStorageConnection() {
+    return storageConn;
+  }
+
+  /** @return the instances received by the storage SCP */
+  public List<ReceivedInstance> getReceivedInstances() {
+    synchronized (receivedInstances) {
+      return new ArrayList<>(receivedInstances);
+    }
+  }
+
+  /**
+   * Wait for the final C-MOVE-RSP and then for the reception of all the instances reported as
+   * completed by the remote archive.
+   *
+   * @param timeout the maximum time in milliseconds to wait for the instances after the final
+   *     response
+   * @return true when all the completed sub-operations have been received, false when timed out
+   *     or cancelled
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean waitForCompletion(long timeout) throws InterruptedException {
+    if (as != null && as.isReadyForDataTransfer()) {
+      as.waitForOutstandingRSP();
+    }
+    int expected = getNumberOfExpectedInstances();
+    if (expected < 0) {
+      return false;
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (receivedInstances) {
+      long wait;
+      while (receivedInstances.size() < expected
+          && !isCancelled()
+          && (wait = deadline - System.currentTimeMillis()) > 0) {
+        receivedInstances.wait(wait);
+      }
+      return receivedInstances.size() >= expected;
+    }
+  }
+
+  /**
+   * @return the number of instances reported as completed (with or without warning) by the final
+   *     C-MOVE-RSP, or -1 when the final response has not been received
+   */
+  public int getNumberOfExpectedInstances() {
+    Attributes rsp = finalRsp;
+    if (rsp == null) {
+      return -1;
+    }
+    return rsp.getInt(Tag.NumberOfCompletedSuboperations, 0)
+        + rsp.getInt(Tag.NumberOfWarningSuboperations, 0);
+  }
+
+  /**
+   * Hand an instance received by the storage SCP to the handler and record its latency.
+   *
+   * @param storeRq the C-STORE request
+   * @param fmi the file meta information of the instance
+   * @param data the dataset
+   * @throws DicomServiceException when the instance is not related to the C-MOVE request or cannot
+   *     be handled
+   */
+  void receive(Attributes storeRq, Attributes fmi, InputStream data)
+      throws DicomServiceException {
+    DicomProgress p = state.getProgress();
+    if (p != null && p.isCancel()) {
+      throw new DicomServiceException(Status.ProcessingFailure, "C-MOVE has been cancelled");
+    }
+    if (!isRelated(storeRq)) {
+      throw new DicomServiceException(
+          Status.ProcessingFailure, "Not related to the current C-MOVE request");
+    }
+    long start = System.currentTimeMillis();
+    String iuid = fmi.getString(Tag.MediaStorageSOPInstanceUID);
+    String cuid = fmi.getString(Tag.MediaStorageSOPClassUID);
+    TokenBucket bucket = bandwidthBucket;
+    try {
+      if (bucket == null) {
+        instanceHandler.handle(fmi, data);
+      } else {
+        // The received datasets share the bandwidth budget of the called node
+        bucket.begin();
+        try {
+          instanceHandler.handle(fmi, new ThrottledInputStream(data, bucket));
+        } finally {
+          bucket.end();
+        }
+      }
+    } catch (Exception e) {
+      throw new DicomServiceException(Status.ProcessingFailure, e);
+    }
+    long end = System.currentTimeMillis();
+    ReceivedInstance instance = new ReceivedInstance(iuid, cuid, end - moveTime, end - start);
+    LOGGER.debug("Received {} {}ms after the C-MOVE request", iuid, instance.getLatency());
+    synchronized (receivedInstances) {
+      receivedInstances.add(instance);
+      receivedInstances.notifyAll();
+    }
+  }
+
+  /**
+   * @param storeRq the C-STORE request received by the storage SCP
+   * @return true when the Move Originator Message ID and AETitle match the C-MOVE request. The
+   *     requests without originator are related only when they are accepted explicitly.
+   */
+  boolean isRelated(Attributes storeRq) {
+    int originatorID = storeRq.getInt(Tag.MoveOriginatorMessageID, -1);
+    String originatorAET = storeRq.getString(Tag.MoveOriginatorApplicationEntityTitle);
+    if (originatorID != -1 && originatorID != moveMessageID) {
+      return false;
+    }
+    if (originatorAET != null && !originatorAET.equals(ae.getAETitle())) {
+      return false;
+    }
+    if (originatorID == -1 || originatorAET == null) {
+      return acceptUncorrelatedInstances;
+    }
+    return true;
+  }
+
+  private boolean isCancelled() {
+    DicomProgress p = state.getProgress();
+    return p != null && p.isCancel();
+  }
+
   public void addKey(int tag, String... ss) {
     VR vr = ElementDictionary.vrOf(tag, keys.getPrivateCreator(tag));
     keys.setString(tag, vr, ss);
@@ -151,14 +423,27 @@ public class MoveSCU extends Device implements AutoCloseable {
   public void open()
       throws IOException, InterruptedException, IncompatibleConnectionException,
           GeneralSecurityException {
+    if (storageConn != null) {
+      bindConnections();
+    }
     as = ae.connect(conn, remote, rq);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
-    if (as != null && as.isReadyForDataTransfer()) {
-      as.waitForOutstandingRSP();
-      as.release();
+    try {
+      if (as != null && as.isReadyForDataTransfer()) {
+        as.waitForOutstandingRSP();
+        as.release();
+      }
+      if (storageConn != null) {
+        unbindConnections();
+      }
+    } finally {
+      DicomProgress p = state.getProgress();
+      if (p != null) {
+        p.removeCancelListener(cancelListener);
+      }
     }
   }
 
@@ -175,13 +460,26 @@ public class MoveSCU extends Device implements AutoCloseable {
     retrieve(keys);
   }
 
+  void startMove(int messageID) {
+    moveMessageID = messageID;
+    moveTime = System.currentTimeMillis();
+  }
+
+  void setFinalResponse(Attributes cmd) {
+    finalRsp = cmd;
+  }
+
   private void retrieve(Attributes keys) throws IOException, InterruptedException {
-    DimseRSPHandler rspHandler =
-        new DimseRSPHandler(as.nextMessageID()) {
+    startMove(as.nextMessageID());
+    rspHandler =
+        new DimseRSPHandler(moveMessageID) {
 
           @Override
           public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
             super.onDimseRSP(as, cmd, data);
+            if (!Status.isPending(cmd.getInt(Tag.Status, -1))) {
+              setFinalResponse(cmd);
+            }
             DicomProgress p = state.getProgress();
             if (p != null) {
               p.setAttributes(cmd);
@@ -50,12 +50,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.dicom.param.AttributeEditor;
 import org.weasis.dicom.param.AttributeEditorContext;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
 import org.weasis.dicom.util.ForwardUtil;
 import org.weasis.dicom.util.ServiceUtil;
 import org.weasis.dicom.util.ServiceUtil.ProgressStatus;
+import org.weasis.dicom.util.ThrottledDataWriter;
 import org.xml.sax.SAXException;
 
 /**
@@ -88,6 +90,7 @@ public class StoreSCU implements AutoCloseable {
 
   private final AttributeEditor attributesEditor;
   private final DicomState state;
+  private TokenBucket bandwidthBucket;
 
   private RSPHandlerFactory rspHandlerFactory =
       file ->
@@ -148,6 +151,11 @@ public class StoreSCU implements AutoCloseable {
     this.priority = priority;
   }
 
+  /** @param bandwidthBucket the token bucket limiting the rate of the data sets, can be null */
+  public void setBandwidthBucket(TokenBucket bandwidthBucket) {
+    this.bandwidthBucket = bandwidthBucket;
+  }
+
   public final void setUIDSuffix(String uidSuffix) {
     this.uidSuffix = uidSuffix;
   }
@@ -315,6 +323,7 @@ public class StoreSCU implements AutoCloseable {
         }
         dataWriter = new DataWriterAdapter(data);
       }
+      dataWriter = ThrottledDataWriter.wrap(dataWriter, bandwidthBucket);
       as.cstore(cuid, iuid, priority, dataWriter, ts, rspHandlerFactory.createDimseRSPHandler(f));
     } finally {
       SafeClose.close(in);
@@ -11,9 +11,7 @@ package org.weasis.dicom.op;
 
 import java.text.MessageFormat;
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.ElementDictionary;
 import org.dcm4che3.data.Tag;
-import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.QueryRetrieveLevel;
@@ -27,6 +25,8 @@ import org.weasis.dicom.param.AdvancedParams;
 import org.weasis.dicom.param.DeviceOpService;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomResultTable;
 import org.weasis.dicom.param.DicomState;
 import org.weasis.dicom.util.ServiceUtil;
 
@@ -105,13 +105,107 @@ public class CFind {
       int cancelAfter,
       QueryRetrieveLevel level,
       DicomParam... keys) {
+    return process(params, callingNode, calledNode, cancelAfter, level, null, keys);
+  }
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param cancelAfter cancel the query request after the receive of the specified number of
+   *     matches.
+   * @param level specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot,
+   *     PatientStudyOnly model.
+   * @param resultTable the compact table receiving the matches instead of
+   *     DicomState.getDicomRSP(). Can be null.
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      int cancelAfter,
+      QueryRetrieveLevel level,
+      DicomResultTable resultTable,
+      DicomParam... keys) {
+    return process(
+        params,
+        callingNode,
+        calledNode,
+        cancelAfter,
+        level,
+        (QueryTemplate) null,
+        resultTable,
+        keys);
+  }
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param cancelAfter cancel the query request after the receive of the specified number of
+   *     matches.
+   * @param level specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot,
+   *     PatientStudyOnly model.
+   * @param template the precompiled keys of the query, the values are added to a copy of the
+   *     template. Can be null.
+   * @param resultTable the compact table receiving the matches instead of
+   *     DicomState.getDicomRSP(). Can be null.
+   * @param values the matching keys of the request. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      int cancelAfter,
+      QueryRetrieveLevel level,
+      QueryTemplate template,
+      DicomResultTable resultTable,
+      DicomParam... values) {
+    return process(
+        params, callingNode, calledNode, null, cancelAfter, level, template, resultTable, values);
+  }
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param progress the progress handler, cancelling the progress sends a C-CANCEL and aborts the
+   *     association after the abort delay (see {@link DicomProgress#setCancellationToken}). Can be
+   *     null.
+   * @param cancelAfter cancel the query request after the receive of the specified number of
+   *     matches.
+   * @param level specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot,
+   *     PatientStudyOnly model.
+   * @param template the precompiled keys of the query, the values are added to a copy of the
+   *     template. Can be null.
+   * @param resultTable the compact table receiving the matches instead of
+   *     DicomState.getDicomRSP(). Can be null.
+   * @param values the matching keys of the request. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      DicomProgress progress,
+      int cancelAfter,
+      QueryRetrieveLevel level,
+      QueryTemplate template,
+      DicomResultTable resultTable,
+      DicomParam... values) {
     if (callingNode == null || calledNode == null) {
       throw new IllegalArgumentException("callingNode or calledNode cannot be null!");
     }
 
     AdvancedParams options = params == null ? new AdvancedParams() : params;
 
-    try (FindSCU findSCU = new FindSCU()) {
+    try (FindSCU findSCU = new FindSCU(progress)) {
       Connection remote = findSCU.getRemoteConnection();
       Connection conn = findSCU.getConnection();
       options.configureConnect(findSCU.getAAssociateRQ(), remote, calledNode);
@@ -128,11 +222,16 @@ public class CFind {
         findSCU.addLevel(level.name());
       }
 
-      for (DicomParam p : keys) {
-        addAttributes(findSCU.getKeys(), p);
+      if (template == null) {
+        for (DicomParam p : values) {
+          addAttributes(findSCU.getKeys(), p);
+        }
+      } else {
+        template.applyTo(findSCU.getKeys(), values);
       }
       findSCU.setCancelAfter(cancelAfter);
       findSCU.setPriority(options.getPriority());
+      findSCU.getState().setResultTable(resultTable);
 
       service.start();
       try {
@@ -177,19 +276,6 @@ public class CFind {
   }
 
   public static void addAttributes(Attributes attrs, DicomParam param) {
-    int tag = param.getTag();
-    String[] ss = param.getValues();
-    VR vr = ElementDictionary.vrOf(tag, attrs.getPrivateCreator(tag));
-    if (ss == null || ss.length == 0) {
-      // Returning key
-      if (vr == VR.SQ) {
-        attrs.newSequence(tag, 1).add(new Attributes(0));
-      } else {
-        attrs.setNull(tag, vr);
-      }
-    } else {
-      // Matching key
-      attrs.setString(tag, vr, ss);
-    }
+    QueryTemplate.addKey(attrs, param);
   }
 }
@@ -28,11 +28,13 @@ import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.core.util.StringUtil;
 import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.CgetParams;
 import org.weasis.dicom.param.DeviceOpService;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomParam;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
 import org.weasis.dicom.util.ServiceUtil;
 
 public class CGet {
@@ -94,9 +96,89 @@ public class CGet {
       File outputDir,
       URL sopClassURL,
       DicomParam... keys) {
+    return process(params, callingNode, calledNode, progress, outputDir, sopClassURL, null, keys);
+  }
+
+  /**
+   * @param params the optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param progress the progress handler
+   * @param outputDir the storage directory
+   * @param sopClassURL the configuration file of the SOP classes. Can be null.
+   * @param getParams the storage layout and the number of writer threads. Can be null.
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      DicomProgress progress,
+      File outputDir,
+      URL sopClassURL,
+      CgetParams getParams,
+      DicomParam... keys) {
     if (callingNode == null || calledNode == null || outputDir == null) {
       throw new IllegalArgumentException("callingNode, calledNode or outputDir cannot be null!");
     }
+    return retrieve(
+        params, callingNode, calledNode, progress, outputDir, null, sopClassURL, getParams, keys);
+  }
+
+  /**
+   * Retrieve the instances in memory without writing them to the disk.
+   *
+   * @param params the optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param progress the progress handler
+   * @param instanceHandler the handler receiving each instance (see {@link
+   *     org.weasis.dicom.param.InstanceQueue})
+   * @param sopClassURL the configuration file of the SOP classes. Can be null.
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      DicomProgress progress,
+      InstanceHandler instanceHandler,
+      URL sopClassURL,
+      DicomParam... keys) {
+    if (callingNode == null || calledNode == null || instanceHandler == null) {
+      throw new IllegalArgumentException(
+          "callingNode, calledNode or instanceHandler cannot be null!");
+    }
+    try {
+      return retrieve(
+          params,
+          callingNode,
+          calledNode,
+          progress,
+          null,
+          instanceHandler,
+          sopClassURL,
+          null,
+          keys);
+    } finally {
+      instanceHandler.completed();
+    }
+  }
+
+  private static DicomState retrieve(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      DicomProgress progress,
+      File outputDir,
+      InstanceHandler instanceHandler,
+      URL sopClassURL,
+      CgetParams getParams,
+      DicomParam... keys) {
     GetSCU getSCU = null;
     AdvancedParams options = params == null ? new AdvancedParams() : params;
 
@@ -113,8 +195,16 @@ public class CGet {
       options.configureTLS(conn, remote);
 
       getSCU.setPriority(options.getPriority());
+      getSCU.setBandwidthBucket(options.getBandwidthBucket(calledNode));
 
       getSCU.setStorageDirectory(outputDir);
+      getSCU.setInstanceHandler(instanceHandler);
+      if (getParams != null) {
+        getSCU.setStorageFilePathFormat(getParams.getFilePathFormat());
+        getSCU.setShardingDepth(getParams.getShardingDepth());
+        getSCU.setWriterThreads(getParams.getWriterThreads());
+        getSCU.setWriterBufferSize(getParams.getWriterBufferSize());
+      }
 
       getSCU.setInformationModel(
           getInformationModel(options),
@@ -135,6 +225,8 @@ public class CGet {
         long t2 = System.currentTimeMillis();
         getSCU.retrieve();
         ServiceUtil.forceGettingAttributes(dcmState, getSCU);
+        // The files written asynchronously must be in the storage directory before the result
+        getSCU.awaitWriters();
         long t3 = System.currentTimeMillis();
         String timeMsg =
             MessageFormat.format(
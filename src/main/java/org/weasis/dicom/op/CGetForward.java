@@ -55,6 +55,8 @@ import org.weasis.dicom.param.AdvancedParams;
 import org.weasis.dicom.param.AttributeEditor;
 import org.weasis.dicom.param.AttributeEditorContext;
 import org.weasis.dicom.param.AttributeEditorContext.Abort;
+import org.weasis.dicom.param.CancelListener;
+import org.weasis.dicom.param.CancellationToken;
 import org.weasis.dicom.param.DeviceOpService;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomProgress;
@@ -63,6 +65,7 @@ import org.weasis.dicom.util.ForwardUtil;
 import org.weasis.dicom.util.ServiceUtil;
 import org.weasis.dicom.util.ServiceUtil.ProgressStatus;
 import org.weasis.dicom.util.StoreFromStreamSCU;
+import org.weasis.dicom.util.ThrottledDataWriter;
 
 public class CGetForward implements AutoCloseable {
 
@@ -95,7 +98,9 @@ public class CGetForward implements AutoCloseable {
   private InformationModel model;
 
   private Attributes keys = new Attributes();
-  private Association as;
+  private volatile Association as;
+  private volatile DimseRSPHandler rspHandler;
+  private final CancelListener cancelListener = this::cancel;
 
   private final StoreFromStreamSCU streamSCU;
   private final DeviceOpService streamSCUService;
@@ -121,11 +126,9 @@ public class CGetForward implements AutoCloseable {
             throws IOException {
 
           DicomProgress p = streamSCU.getState().getProgress();
-          if (p != null) {
-            if (p.isCancel()) {
-              FileUtil.safeClose(CGetForward.this);
-              return;
-            }
+          if (p != null && p.isCancel()) {
+            // The associations are cancelled and aborted by the cancel listener
+            throw new DicomServiceException(Status.ProcessingFailure, "C-GET has been cancelled");
           }
 
           try {
@@ -191,6 +194,7 @@ public class CGetForward implements AutoCloseable {
                 }
                 dataWriter = new DataWriterAdapter(attributes);
               }
+              dataWriter = ThrottledDataWriter.wrap(dataWriter, streamSCU.getBandwidthBucket());
 
               streamSCU
                   .getAssociation()
@@ -270,6 +274,20 @@ public class CGetForward implements AutoCloseable {
 
     this.streamSCU = new StoreFromStreamSCU(forwardParams, callingNode, destinationNode, progress);
     this.streamSCUService = new DeviceOpService(streamSCU.getDevice());
+    if (progress != null) {
+      progress.addCancelListener(cancelListener);
+    }
+  }
+
+  /**
+   * Send C-CANCEL to the C-GET SCP and stop forwarding. The C-GET association is aborted when the
+   * SCP is still sending instances after the abort delay of the progress handler.
+   */
+  private void cancel() {
+    DicomProgress p = streamSCU.getState().getProgress();
+    long abortDelay = p == null ? CancellationToken.DEFAULT_ABORT_DELAY : p.getAbortDelay();
+    ServiceUtil.cancelAndAbort(as, rspHandler, abortDelay);
+    ServiceUtil.cancelAndAbort(streamSCU.getAssociation(), null, 0);
   }
 
   public ApplicationEntity getApplicationEntity() {
@@ -342,11 +360,18 @@ public class CGetForward implements AutoCloseable {
 
   @Override
   public void close() throws IOException, InterruptedException {
-    if (as != null && as.isReadyForDataTransfer()) {
-      as.waitForOutstandingRSP();
-      as.release();
+    try {
+      if (as != null && as.isReadyForDataTransfer()) {
+        as.waitForOutstandingRSP();
+        as.release();
+      }
+      streamSCU.close();
+    } finally {
+      DicomProgress p = streamSCU.getState().getProgress();
+      if (p != null) {
+        p.removeCancelListener(cancelListener);
+      }
     }
-    streamSCU.close();
   }
 
   public void retrieve() throws IOException, InterruptedException {
@@ -354,7 +379,7 @@ public class CGetForward implements AutoCloseable {
   }
 
   private void retrieve(Attributes keys) throws IOException, InterruptedException {
-    DimseRSPHandler rspHandler =
+    rspHandler =
         new DimseRSPHandler(as.nextMessageID()) {
 
           @Override
@@ -10,21 +10,28 @@
 package org.weasis.dicom.op;
 
 import java.text.MessageFormat;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.QueryOption;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.tool.movescu.MoveSCU;
 import org.dcm4che3.tool.movescu.MoveSCU.InformationModel;
+import org.dcm4che3.tool.movescu.MoveSCU.ReceivedInstance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.core.util.StringUtil;
 import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DeviceListenerService;
 import org.weasis.dicom.param.DeviceOpService;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomParam;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
 import org.weasis.dicom.util.ServiceUtil;
 
 public class CMove {
@@ -75,58 +82,192 @@ public class CMove {
     AdvancedParams options = params == null ? new AdvancedParams() : params;
 
     try (MoveSCU moveSCU = new MoveSCU(progress); ) {
-      Connection remote = moveSCU.getRemoteConnection();
-      Connection conn = moveSCU.getConnection();
-      options.configureConnect(moveSCU.getAAssociateRQ(), remote, calledNode);
-      options.configureBind(moveSCU.getApplicationEntity(), conn, callingNode);
-      DeviceOpService service = new DeviceOpService(moveSCU);
-
-      // configure
-      options.configure(conn);
-      options.configureTLS(conn, remote);
-
-      moveSCU.setInformationModel(
-          getInformationModel(options),
-          options.getTsuidOrder(),
-          options.getQueryOptions().contains(QueryOption.RELATIONAL));
-
-      for (DicomParam p : keys) {
-        moveSCU.addKey(p.getTag(), p.getValues());
-      }
-      moveSCU.setDestination(destinationAet);
+      return retrieve(options, callingNode, calledNode, moveSCU, keys, destinationAet);
+    } catch (Exception e) {
+      LOGGER.error("movescu", e);
+      return new DicomState(
+          Status.UnableToProcess,
+          "DICOM Move failed" + StringUtil.COLON_AND_SPACE + e.getMessage(),
+          null);
+    }
+  }
 
-      service.start();
-      try {
-        DicomState dcmState = moveSCU.getState();
-        long t1 = System.currentTimeMillis();
-        moveSCU.open();
-        long t2 = System.currentTimeMillis();
-        moveSCU.retrieve();
-        ServiceUtil.forceGettingAttributes(dcmState, moveSCU);
-        long t3 = System.currentTimeMillis();
-        String timeMsg =
-            MessageFormat.format(
-                "DICOM C-MOVE connected in {2}ms from {0} to {1}. Sent files in {3}ms.",
-                moveSCU.getAAssociateRQ().getCallingAET(),
-                moveSCU.getAAssociateRQ().getCalledAET(),
-                t2 - t1,
-                t3 - t2);
-        return DicomState.buildMessage(dcmState, timeMsg, null);
-      } catch (Exception e) {
-        LOGGER.error("movescu", e);
-        ServiceUtil.forceGettingAttributes(moveSCU.getState(), moveSCU);
-        return DicomState.buildMessage(moveSCU.getState(), null, e);
-      } finally {
-        FileUtil.safeClose(moveSCU);
-        service.stop();
-      }
+  /**
+   * Move the instances to an embedded storage SCP which hands each instance to the handler. The
+   * instances are correlated with the C-MOVE request by the Move Originator Message ID and the
+   * operation is finished when all the completed sub-operations have been received. When some
+   * instances are not received within the completion timeout (see {@link
+   * AdvancedParams#setCompletionTimeout(long)}), the status is {@link Status#OneOrMoreFailures}.
+   *
+   * @param params the optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param destinationNode the local destination node (AETitle and port) known by the called node
+   * @param progress the progress handler
+   * @param instanceHandler the handler receiving each instance
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      DicomNode destinationNode,
+      DicomProgress progress,
+      InstanceHandler instanceHandler,
+      DicomParam... keys) {
+    if (callingNode == null
+        || calledNode == null
+        || destinationNode == null
+        || instanceHandler == null) {
+      throw new IllegalArgumentException(
+          "callingNode, calledNode, destinationNode or instanceHandler cannot be null!");
+    }
+    AdvancedParams options = params == null ? new AdvancedParams() : params;
+
+    try (MoveSCU moveSCU = new MoveSCU(progress); ) {
+      moveSCU.setStorageSCP(destinationNode, instanceHandler);
+      options.configure(moveSCU.getStorageConnection());
+      return retrieve(options, callingNode, calledNode, moveSCU, keys, destinationNode.getAet());
     } catch (Exception e) {
       LOGGER.error("movescu", e);
       return new DicomState(
           Status.UnableToProcess,
           "DICOM Move failed" + StringUtil.COLON_AND_SPACE + e.getMessage(),
           null);
+    } finally {
+      instanceHandler.completed();
+    }
+  }
+
+  private static DicomState retrieve(
+      AdvancedParams options,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      MoveSCU moveSCU,
+      DicomParam[] keys,
+      String destinationAet)
+      throws Exception {
+    boolean embeddedSCP = moveSCU.getStorageConnection() != null;
+    Connection remote = moveSCU.getRemoteConnection();
+    Connection conn = moveSCU.getConnection();
+    options.configureConnect(moveSCU.getAAssociateRQ(), remote, calledNode);
+    options.configureBind(moveSCU.getApplicationEntity(), conn, callingNode);
+    DeviceOpService service = new DeviceOpService(moveSCU);
+    // The embedded SCP needs a thread for listening and one for each incoming association
+    DeviceListenerService listenerService = new DeviceListenerService(moveSCU);
+
+    // configure
+    options.configure(conn);
+    options.configureTLS(conn, remote);
+
+    moveSCU.setInformationModel(
+        getInformationModel(options),
+        options.getTsuidOrder(),
+        options.getQueryOptions().contains(QueryOption.RELATIONAL));
+
+    for (DicomParam p : keys) {
+      moveSCU.addKey(p.getTag(), p.getValues());
+    }
+    moveSCU.setDestination(destinationAet);
+    moveSCU.setAcceptUncorrelatedInstances(options.isAcceptUncorrelatedInstances());
+    moveSCU.setBandwidthBucket(options.getBandwidthBucket(calledNode));
+
+    if (embeddedSCP) {
+      listenerService.start();
+    } else {
+      service.start();
+    }
+    try {
+      DicomState dcmState = moveSCU.getState();
+      long t1 = System.currentTimeMillis();
+      moveSCU.open();
+      long t2 = System.currentTimeMillis();
+      moveSCU.retrieve();
+      String incompleteMsg = null;
+      if (embeddedSCP) {
+        if (!moveSCU.waitForCompletion(options.getCompletionTimeout()) && !isCancelled(dcmState)) {
+          incompleteMsg = getIncompleteMessage(moveSCU);
+          LOGGER.warn(incompleteMsg);
+          setFailureStatus(dcmState, incompleteMsg);
+        }
+      } else {
+        ServiceUtil.forceGettingAttributes(dcmState, moveSCU);
+      }
+      long t3 = System.currentTimeMillis();
+      String timeMsg =
+          MessageFormat.format(
+              "DICOM C-MOVE connected in {2}ms from {0} to {1}. Sent files in {3}ms.",
+              moveSCU.getAAssociateRQ().getCallingAET(),
+              moveSCU.getAAssociateRQ().getCalledAET(),
+              t2 - t1,
+              t3 - t2);
+      if (embeddedSCP) {
+        timeMsg += getLatencyMessage(moveSCU.getReceivedInstances());
+      }
+      if (incompleteMsg != null) {
+        timeMsg += " " + incompleteMsg;
+      }
+      return DicomState.buildMessage(dcmState, timeMsg, null);
+    } catch (Exception e) {
+      LOGGER.error("movescu", e);
+      ServiceUtil.forceGettingAttributes(moveSCU.getState(), moveSCU);
+      return DicomState.buildMessage(moveSCU.getState(), null, e);
+    } finally {
+      FileUtil.safeClose(moveSCU);
+      if (embeddedSCP) {
+        listenerService.stop();
+      } else {
+        service.stop();
+      }
+    }
+  }
+
+  private static String getIncompleteMessage(MoveSCU moveSCU) {
+    int expected = moveSCU.getNumberOfExpectedInstances();
+    int received = moveSCU.getReceivedInstances().size();
+    if (expected < 0) {
+      return MessageFormat.format("No final C-MOVE response, {0} instances received.", received);
+    }
+    return MessageFormat.format("Only {0}/{1} completed instances received.", received, expected);
+  }
+
+  private static boolean isCancelled(DicomState state) {
+    DicomProgress p = state.getProgress();
+    return p != null && p.isCancel();
+  }
+
+  private static void setFailureStatus(DicomState state, String message) {
+    DicomProgress p = state.getProgress();
+    if (p != null && p.getAttributes() != null) {
+      // The status of the progress takes precedence over the status of the state
+      Attributes cmd = new Attributes(p.getAttributes());
+      cmd.setInt(Tag.Status, VR.US, Status.OneOrMoreFailures);
+      cmd.setString(Tag.ErrorComment, VR.LO, message);
+      p.setAttributes(cmd);
+    }
+    state.setStatus(Status.OneOrMoreFailures);
+  }
+
+  private static String getLatencyMessage(List<ReceivedInstance> instances) {
+    if (instances.isEmpty()) {
+      return " No instance received.";
+    }
+    long first = Long.MAX_VALUE;
+    long last = 0;
+    long transfer = 0;
+    for (ReceivedInstance instance : instances) {
+      first = Math.min(first, instance.getLatency());
+      last = Math.max(last, instance.getLatency());
+      transfer += instance.getTransferTime();
     }
+    return MessageFormat.format(
+        " Received {0} instances, first after {1}ms, last after {2}ms, mean transfer {3}ms.",
+        instances.size(),
+        first,
+        last,
+        transfer / instances.size());
   }
 
   private static InformationModel getInformationModel(AdvancedParams options) {
@@ -147,6 +147,7 @@ public class CStore {
       }
       // storeSCU.setUIDSuffix(cl.getOptionValue("uid-suffix"));
       storeSCU.setPriority(options.getPriority());
+      storeSCU.setBandwidthBucket(options.getBandwidthBucket(calledNode));
 
       storeSCU.scanFiles(files, false);
 
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.op;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToLongFunction;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.CancellationToken;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * Sends the same C-FIND query to several archives in parallel and merges the matches by Study
+ * Instance UID. The total latency is the one of the slowest archive (bounded by its timeout)
+ * instead of the sum of all the archives.
+ *
+ * <p>Each node has its own timeout from the start of its query. When the timeout is reached, a
+ * C-CANCEL is sent and the association is aborted, the matches already received from the node are
+ * ignored.
+ */
+public class FederatedFind {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FederatedFind.class);
+
+  // Additional time to wait for a node after its timeout, when the association cannot be aborted
+  private static final long ABORT_MARGIN = 5000;
+
+  /** Defines which match is kept when the same study is returned by several archives. */
+  public enum Precedence {
+    /** The match of the first node in the list of called nodes is kept */
+    NODE_ORDER,
+    /** The match with the largest number of non-empty attributes is kept */
+    MOST_COMPLETE
+  }
+
+  public static class NodeResult {
+    private final DicomNode node;
+    private final DicomState state;
+    private final long elapsedTime;
+    private final boolean timedOut;
+
+    NodeResult(DicomNode node, DicomState state, long elapsedTime, boolean timedOut) {
+      this.node = node;
+      this.state = state;
+      this.elapsedTime = elapsedTime;
+      this.timedOut = timedOut;
+    }
+
+    public DicomNode getNode() {
+      return node;
+    }
+
+    public DicomState getState() {
+      return state;
+    }
+
+    /** @return the time in milliseconds to get the response of the node */
+    public long getElapsedTime() {
+      return elapsedTime;
+    }
+
+    public boolean isTimedOut() {
+      return timedOut;
+    }
+
+    public int getNumberOfMatches() {
+      return state == null ? 0 : state.getDicomRSP().size();
+    }
+  }
+
+  public static class Result {
+    private final List<Attributes> matches;
+    private final List<NodeResult> nodeResults;
+    private final Map<String, List<DicomNode>> sources;
+
+    Result(
+        List<Attributes> matches,
+        List<NodeResult> nodeResults,
+        Map<String, List<DicomNode>> sources) {
+      this.matches = Collections.unmodifiableList(matches);
+      this.nodeResults = Collections.unmodifiableList(nodeResults);
+      this.sources = Collections.unmodifiableMap(sources);
+    }
+
+    /** @return the merged matches, one per Study Instance UID */
+    public List<Attributes> getMatches() {
+      return matches;
+    }
+
+    /** @return the result of each called node in the order of the query */
+    public List<NodeResult> getNodeResults() {
+      return nodeResults;
+    }
+
+    /**
+     * @param studyInstanceUID the Study Instance UID
+     * @return the nodes which have returned the study, the first one is the node of the kept match
+     */
+    public List<DicomNode> getSources(String studyInstanceUID) {
+      List<DicomNode> list = sources.get(studyInstanceUID);
+      return list == null ? Collections.emptyList() : list;
+    }
+
+    /** @return the status Success when at least one node has answered successfully */
+    public int getStatus() {
+      for (NodeResult r : nodeResults) {
+        if (!r.isTimedOut() && r.getState() != null && r.getState().getStatus() == Status.Success) {
+          return Status.Success;
+        }
+      }
+      return Status.UnableToProcess;
+    }
+  }
+
+  private FederatedFind() {}
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNodes the called DICOM nodes. The order is used by {@link Precedence#NODE_ORDER}.
+   * @param timeout the maximum time in milliseconds to wait for the responses of each node
+   * @param precedence the rule to keep one match when the same study comes from several nodes
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return the merged matches and the result of each node
+   */
+  public static Result process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      List<DicomNode> calledNodes,
+      long timeout,
+      Precedence precedence,
+      DicomParam... keys) {
+    return process(params, callingNode, calledNodes, n -> timeout, precedence, keys);
+  }
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNodes the called DICOM nodes. The order is used by {@link Precedence#NODE_ORDER}.
+   * @param timeouts the maximum time in milliseconds to wait for the responses of a node, 0 for no
+   *     limit
+   * @param precedence the rule to keep one match when the same study comes from several nodes
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return the merged matches and the result of each node
+   */
+  public static Result process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      List<DicomNode> calledNodes,
+      ToLongFunction<DicomNode> timeouts,
+      Precedence precedence,
+      DicomParam... keys) {
+    if (callingNode == null || calledNodes == null || calledNodes.isEmpty() || timeouts == null) {
+      throw new IllegalArgumentException("callingNode, calledNodes or timeouts cannot be null!");
+    }
+
+    DicomParam[] queryKeys = addStudyInstanceUID(keys);
+    ExecutorService executor = Executors.newFixedThreadPool(calledNodes.size());
+    List<NodeResult> nodeResults = new ArrayList<>(calledNodes.size());
+    try {
+      long start = System.currentTimeMillis();
+      List<Future<NodeResult>> futures = new ArrayList<>(calledNodes.size());
+      for (DicomNode calledNode : calledNodes) {
+        long timeout = timeouts.applyAsLong(calledNode);
+        futures.add(
+            executor.submit(() -> find(params, callingNode, calledNode, timeout, queryKeys)));
+      }
+
+      for (int i = 0; i < calledNodes.size(); i++) {
+        DicomNode node = calledNodes.get(i);
+        long timeout = timeouts.applyAsLong(node);
+        long deadline = timeout > 0 ? start + timeout + ABORT_MARGIN : 0;
+        nodeResults.add(getNodeResult(node, futures.get(i), start, deadline));
+      }
+    } finally {
+      // Interrupt the queries which cannot be aborted
+      executor.shutdownNow();
+    }
+    return merge(nodeResults, precedence == null ? Precedence.NODE_ORDER : precedence);
+  }
+
+  private static NodeResult find(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      long timeout,
+      DicomParam[] keys) {
+    DicomProgress progress = new DicomProgress();
+    CancellationToken token = new CancellationToken();
+    // Abort without waiting, the node has already consumed its time
+    token.setAbortDelay(0);
+    progress.setCancellationToken(token);
+    token.setTimeout(timeout, TimeUnit.MILLISECONDS);
+    long t1 = System.currentTimeMillis();
+    try {
+      DicomState state =
+          CFind.process(
+              params,
+              callingNode,
+              calledNode,
+              progress,
+              0,
+              QueryRetrieveLevel.STUDY,
+              null,
+              null,
+              keys);
+      long elapsed = System.currentTimeMillis() - t1;
+      if (token.isCancelled() && state.getStatus() != Status.Success) {
+        LOGGER.warn("C-FIND to {} has timed out", calledNode);
+        return new NodeResult(calledNode, timedOutState(), elapsed, true);
+      }
+      return new NodeResult(calledNode, state, elapsed, false);
+    } finally {
+      token.setTimeout(0, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static DicomState timedOutState() {
+    return new DicomState(Status.UnableToProcess, "DICOM Find timed out", null);
+  }
+
+  private static NodeResult getNodeResult(
+      DicomNode node, Future<NodeResult> future, long start, long deadline) {
+    try {
+      if (deadline <= 0) {
+        return future.get();
+      }
+      long wait = Math.max(0, deadline - System.currentTimeMillis());
+      return future.get(wait, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      LOGGER.warn("C-FIND to {} cannot be aborted after its timeout", node);
+      return new NodeResult(node, timedOutState(), System.currentTimeMillis() - start, true);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return new NodeResult(
+          node,
+          new DicomState(Status.Cancel, "DICOM Find interrupted", null),
+          System.currentTimeMillis() - start,
+          false);
+    } catch (ExecutionException e) {
+      LOGGER.error("C-FIND to {}", node, e);
+      DicomState state =
+          new DicomState(
+              Status.UnableToProcess,
+              "DICOM Find failed" + StringUtil.COLON_AND_SPACE + e.getCause().getMessage(),
+              null);
+      return new NodeResult(node, state, System.currentTimeMillis() - start, false);
+    }
+  }
+
+  private static DicomParam[] addStudyInstanceUID(DicomParam[] keys) {
+    for (DicomParam p : keys) {
+      if (p.getTag() == Tag.StudyInstanceUID) {
+        return keys;
+      }
+    }
+    DicomParam[] list = new DicomParam[keys.length + 1];
+    System.arraycopy(keys, 0, list, 0, keys.length);
+    list[keys.length] = CFind.StudyInstanceUID;
+    return list;
+  }
+
+  static Result merge(List<NodeResult> nodeResults, Precedence precedence) {
+    Map<String, Attributes> studies = new LinkedHashMap<>();
+    Map<String, List<DicomNode>> sources = new LinkedHashMap<>();
+    List<Attributes> noUID = new ArrayList<>();
+
+    for (NodeResult r : nodeResults) {
+      if (r.isTimedOut() || r.getState() == null) {
+        continue;
+      }
+      for (Attributes match : r.getState().getDicomRSP()) {
+        String uid = match.getString(Tag.StudyInstanceUID);
+        if (!StringUtil.hasText(uid)) {
+          noUID.add(match);
+          continue;
+        }
+        Attributes kept = studies.get(uid);
+        List<DicomNode> nodes = sources.computeIfAbsent(uid, k -> new ArrayList<>());
+        if (kept == null) {
+          studies.put(uid, match);
+          nodes.add(r.getNode());
+        } else if (precedence == Precedence.MOST_COMPLETE
+            && countValues(match) > countValues(kept)) {
+          studies.put(uid, supplement(new Attributes(match), kept));
+          nodes.add(0, r.getNode());
+        } else {
+          studies.put(uid, supplement(new Attributes(kept), match));
+          nodes.add(r.getNode());
+        }
+      }
+    }
+
+    List<Attributes> matches = new ArrayList<>(studies.values());
+    matches.addAll(noUID);
+    return new Result(matches, nodeResults, sources);
+  }
+
+  private static Attributes supplement(Attributes target, Attributes other) {
+    for (int tag : other.tags()) {
+      if (!target.containsValue(tag) && other.containsValue(tag)) {
+        target.addSelected(other, tag);
+      }
+    }
+    return target;
+  }
+
+  private static int countValues(Attributes attrs) {
+    int count = 0;
+    for (int tag : attrs.tags()) {
+      if (attrs.containsValue(tag)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.op;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.IntHashMap;
+import org.dcm4che3.util.TagUtils;
+import org.weasis.dicom.param.DicomParam;
+
+/**
+ * Compiled query keys for C-FIND and Modality Worklist. The keys, their VRs and the nested sequence
+ * structure are resolved once, then each request only copies the template and sets the values of
+ * the matching keys.
+ *
+ * <p>A template is immutable and can be shared between threads.
+ */
+public class QueryTemplate {
+
+  private final Attributes keys;
+  // VRs of the public tags, the VR of a private tag depends on the private creator of the dataset
+  private final IntHashMap<VR> vrs;
+
+  /**
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key,
+   *     DicomParam with value(s) is a fixed matching key of the template.
+   */
+  public QueryTemplate(DicomParam... keys) {
+    this.keys = new Attributes();
+    this.vrs = new IntHashMap<>();
+    for (DicomParam p : keys) {
+      Attributes parent = getParent(this.keys, p.getParentSeqTags());
+      addKey(parent, p);
+      if (!TagUtils.isPrivateTag(p.getTag())) {
+        vrs.put(p.getTag(), p.getVR(null));
+      }
+    }
+  }
+
+  /**
+   * @param values the matching keys of the request. A key not declared in the template is added.
+   * @return a new instance of the query keys
+   */
+  public Attributes newKeys(DicomParam... values) {
+    Attributes attrs = new Attributes(keys.size() + values.length);
+    applyTo(attrs, values);
+    return attrs;
+  }
+
+  /**
+   * Copy the template into the keys of the query and set the matching values.
+   *
+   * @param target the keys of the query
+   * @param values the matching keys of the request. A key not declared in the template is added.
+   *     The VR of a private key is resolved with the private creator of the target.
+   */
+  public void applyTo(Attributes target, DicomParam... values) {
+    target.addAll(keys);
+    for (DicomParam p : values) {
+      Attributes parent = getParent(target, p.getParentSeqTags());
+      VR vr = vrs.get(p.getTag());
+      if (vr == null) {
+        addKey(parent, p);
+      } else {
+        setKey(parent, p, vr);
+      }
+    }
+  }
+
+  /**
+   * Add a matching or returning key. The nested sequences are created when the key has parent
+   * sequence tags.
+   *
+   * @param keys the keys of the query
+   * @param param the matching or returning key
+   */
+  public static void add(Attributes keys, DicomParam param) {
+    addKey(getParent(keys, param.getParentSeqTags()), param);
+  }
+
+  static void addKey(Attributes attrs, DicomParam param) {
+    setKey(attrs, param, param.getVR(attrs.getPrivateCreator(param.getTag())));
+  }
+
+  private static void setKey(Attributes attrs, DicomParam param, VR vr) {
+    int tag = param.getTag();
+    String[] ss = param.getValues();
+    if (ss == null || ss.length == 0) {
+      // Returning key
+      if (vr == VR.SQ) {
+        attrs.newSequence(tag, 1).add(new Attributes(0));
+      } else {
+        attrs.setNull(tag, vr);
+      }
+    } else {
+      // Matching key
+      attrs.setString(tag, vr, ss);
+    }
+  }
+
+  private static Attributes getParent(Attributes keys, int[] parentSeqTags) {
+    Attributes parent = keys;
+    if (parentSeqTags != null) {
+      for (int value : parentSeqTags) {
+        Sequence lastSeq = parent.getSequence(value);
+        if (lastSeq == null || lastSeq.isEmpty()) {
+          lastSeq = parent.newSequence(value, 1);
+          lastSeq.add(new Attributes());
+        }
+        parent = lastSeq.get(0);
+      }
+    }
+    return parent;
+  }
+}
@@ -22,6 +22,8 @@ import org.dcm4che3.net.QueryOption;
 import org.dcm4che3.net.SSLManagerFactory;
 import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.UserIdentityRQ;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+import org.weasis.dicom.param.BandwidthManager.TrafficClass;
 
 public class AdvancedParams {
   public static final String[] IVR_LE_FIRST = {
@@ -34,6 +36,7 @@ public class AdvancedParams {
     UID.ExplicitVRBigEndian, UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian
   };
   public static final String[] IVR_LE_ONLY = {UID.ImplicitVRLittleEndian};
+  public static final long DEFAULT_COMPLETION_TIMEOUT = 30000;
 
   private Object informationModel;
   private EnumSet<QueryOption> queryOptions = EnumSet.noneOf(QueryOption.class);
@@ -52,6 +55,11 @@ public class AdvancedParams {
   private ConnectOptions connectOptions;
   private TlsOptions tlsOptions;
 
+  private BandwidthManager bandwidthManager;
+  private TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+  private long completionTimeout = DEFAULT_COMPLETION_TIMEOUT;
+  private boolean acceptUncorrelatedInstances;
+
   public AdvancedParams() {
     super();
   }
@@ -124,6 +132,61 @@ public class AdvancedParams {
     this.tlsOptions = tlsOptions;
   }
 
+  public BandwidthManager getBandwidthManager() {
+    return bandwidthManager;
+  }
+
+  /** @param bandwidthManager the manager limiting the outgoing transfers, null for no limit */
+  public void setBandwidthManager(BandwidthManager bandwidthManager) {
+    this.bandwidthManager = bandwidthManager;
+  }
+
+  public TrafficClass getTrafficClass() {
+    return trafficClass;
+  }
+
+  /** @param trafficClass the default value is TrafficClass.INTERACTIVE */
+  public void setTrafficClass(TrafficClass trafficClass) {
+    this.trafficClass = trafficClass == null ? TrafficClass.INTERACTIVE : trafficClass;
+  }
+
+  public long getCompletionTimeout() {
+    return completionTimeout;
+  }
+
+  /**
+   * @param completionTimeout the maximum time in milliseconds to receive the instances of a C-MOVE
+   *     after the final response, when the destination is an embedded storage SCP. The default
+   *     value is 30 seconds.
+   */
+  public void setCompletionTimeout(long completionTimeout) {
+    this.completionTimeout = Math.max(0, completionTimeout);
+  }
+
+  public boolean isAcceptUncorrelatedInstances() {
+    return acceptUncorrelatedInstances;
+  }
+
+  /**
+   * @param acceptUncorrelatedInstances true to accept in the embedded storage SCP of a C-MOVE the
+   *     instances without Move Originator Message ID or AETitle. The default value is false.
+   */
+  public void setAcceptUncorrelatedInstances(boolean acceptUncorrelatedInstances) {
+    this.acceptUncorrelatedInstances = acceptUncorrelatedInstances;
+  }
+
+  /**
+   * @param calledNode the destination of the transfer
+   * @return the token bucket limiting the transfers to the destination or null when there is no
+   *     bandwidth manager
+   */
+  public TokenBucket getBandwidthBucket(DicomNode calledNode) {
+    if (bandwidthManager == null || calledNode == null) {
+      return null;
+    }
+    return bandwidthManager.getBucket(BandwidthManager.getDestination(calledNode), trafficClass);
+  }
+
   public void configureConnect(AAssociateRQ aAssociateRQ, Connection remote, DicomNode calledNode) {
     aAssociateRQ.setCalledAET(calledNode.getAet());
     if (identity != null) {
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the bandwidth of the outgoing transfers with token buckets shared by all the operations
+ * sending to the same destination with the same traffic class. The retrieve operations (C-GET and
+ * C-MOVE to an embedded storage SCP) use the bucket of the called node for the received datasets.
+ *
+ * <p>The background transfers of a destination are slowed down to a share of their rate while
+ * interactive transfers are running to the same destination.
+ */
+public class BandwidthManager {
+
+  public enum TrafficClass {
+    /** Transfers requested by a user, not limited by default */
+    INTERACTIVE,
+    /** Migrations, prefetching and other batch transfers */
+    BACKGROUND
+  }
+
+  /** Rate limiter based on a token bucket. A rate of 0 means no limit. */
+  public static class TokenBucket {
+    private final TokenBucket preemptor;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private volatile long rate;
+    private volatile double preemptedShare = 1.0;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(long rate, TokenBucket preemptor) {
+      this.rate = Math.max(0, rate);
+      this.preemptor = preemptor;
+    }
+
+    /** @return the maximum rate in bytes per second, 0 when not limited */
+    public long getRate() {
+      return rate;
+    }
+
+    public void setRate(long bytesPerSecond) {
+      this.rate = Math.max(0, bytesPerSecond);
+    }
+
+    void setPreemptedShare(double preemptedShare) {
+      this.preemptedShare = preemptedShare;
+    }
+
+    /** @return the number of transfers currently using the bucket */
+    public int getActiveTransfers() {
+      return activeTransfers.get();
+    }
+
+    public void begin() {
+      activeTransfers.incrementAndGet();
+    }
+
+    public void end() {
+      activeTransfers.decrementAndGet();
+    }
+
+    private long getEffectiveRate() {
+      long r = rate;
+      if (r > 0 && preemptor != null && preemptor.getActiveTransfers() > 0) {
+        return Math.max(1, (long) (r * preemptedShare));
+      }
+      return r;
+    }
+
+    /**
+     * Take the tokens for sending the bytes and wait when the bucket is empty. The burst capacity
+     * is one second of transfer at the current rate.
+     *
+     * @param bytes the number of bytes to send
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+      long r = getEffectiveRate();
+      if (r <= 0 || bytes <= 0) {
+        return;
+      }
+      double deficit;
+      synchronized (this) {
+        long now = System.nanoTime();
+        tokens = Math.min(r, tokens + (now - lastRefill) * r / 1_000_000_000.0);
+        lastRefill = now;
+        tokens -= bytes;
+        deficit = -tokens;
+      }
+      if (deficit > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep((long) (deficit * 1_000_000_000.0 / r));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while throttling the transfer");
+        }
+      }
+    }
+  }
+
+  private final Map<TrafficClass, Long> defaultRates = new EnumMap<>(TrafficClass.class);
+  private final Map<String, Long> destinationRates = new ConcurrentHashMap<>();
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private volatile double backgroundShare = 0.25;
+
+  /**
+   * Set the default rate of a traffic class. The rate applies to each destination separately.
+   *
+   * @param trafficClass the traffic class
+   * @param bytesPerSecond the maximum rate, 0 for no limit
+   */
+  public void setRate(TrafficClass trafficClass, long bytesPerSecond) {
+    synchronized (defaultRates) {
+      defaultRates.put(trafficClass, bytesPerSecond);
+    }
+    buckets.forEach(
+        (k, b) -> {
+          if (k.startsWith(trafficClass.name() + '|') && !destinationRates.containsKey(k)) {
+            b.setRate(bytesPerSecond);
+          }
+        });
+  }
+
+  /**
+   * Set the rate of a traffic class for one destination, overriding the default rate.
+   *
+   * @param destination the destination key, see {@link #getDestination(DicomNode)} and {@link
+   *     #getDestination(String)}
+   * @param trafficClass the traffic class
+   * @param bytesPerSecond the maximum rate, 0 for no limit
+   */
+  public void setRate(String destination, TrafficClass trafficClass, long bytesPerSecond) {
+    String key = getKey(destination, trafficClass);
+    destinationRates.put(key, bytesPerSecond);
+    TokenBucket bucket = buckets.get(key);
+    if (bucket != null) {
+      bucket.setRate(bytesPerSecond);
+    }
+  }
+
+  public long getRate(String destination, TrafficClass trafficClass) {
+    Long rate = destinationRates.get(getKey(destination, trafficClass));
+    if (rate != null) {
+      return rate;
+    }
+    synchronized (defaultRates) {
+      Long r = defaultRates.get(trafficClass);
+      return r == null ? 0 : r;
+    }
+  }
+
+  public double getBackgroundShare() {
+    return backgroundShare;
+  }
+
+  /**
+   * @param backgroundShare the share (between 0 and 1) of the background rate applied while
+   *     interactive transfers are running to the same destination. The default value is 0.25.
+   */
+  public void setBackgroundShare(double backgroundShare) {
+    if (backgroundShare <= 0 || backgroundShare > 1) {
+      throw new IllegalArgumentException("The share must be in ]0, 1]");
+    }
+    this.backgroundShare = backgroundShare;
+    buckets.forEach(
+        (k, b) -> {
+          if (k.startsWith(TrafficClass.BACKGROUND.name() + '|')) {
+            b.setPreemptedShare(backgroundShare);
+          }
+        });
+  }
+
+  /**
+   * @param destination the destination key
+   * @param trafficClass the traffic class of the operation
+   * @return the bucket shared by all the transfers to the destination with the same class
+   */
+  public TokenBucket getBucket(String destination, TrafficClass trafficClass) {
+    TrafficClass tc = trafficClass == null ? TrafficClass.INTERACTIVE : trafficClass;
+    if (tc == TrafficClass.BACKGROUND) {
+      TokenBucket interactive = getBucket(destination, TrafficClass.INTERACTIVE);
+      return buckets.computeIfAbsent(
+          getKey(destination, tc),
+          k -> {
+            TokenBucket b = new TokenBucket(getRate(destination, tc), interactive);
+            b.setPreemptedShare(backgroundShare);
+            return b;
+          });
+    }
+    return buckets.computeIfAbsent(
+        getKey(destination, tc), k -> new TokenBucket(getRate(destination, tc), null));
+  }
+
+  private static String getKey(String destination, TrafficClass trafficClass) {
+    return trafficClass.name() + '|' + destination;
+  }
+
+  /**
+   * @param node the DICOM node
+   * @return the destination key of the DICOM node
+   */
+  public static String getDestination(DicomNode node) {
+    return node.getAet() + '@' + node.getHostname() + ':' + node.getPort();
+  }
+
+  /**
+   * @param url the URL of the web service
+   * @return the destination key of the server, the path of the URL is ignored
+   */
+  public static String getDestination(String url) {
+    try {
+      URL u = new URL(url);
+      int port = u.getPort() == -1 ? u.getDefaultPort() : u.getPort();
+      return u.getProtocol() + "://" + u.getHost() + ':' + port;
+    } catch (MalformedURLException e) {
+      return url;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancels one or several DICOM operations, on demand or when the deadline is reached. The
+ * operations first send a C-CANCEL and abort the association when the remote node has not stopped
+ * after the abort delay.
+ *
+ * <p>A token is linked to the operations through {@link DicomProgress#setCancellationToken}.
+ */
+public class CancellationToken implements CancelListener {
+
+  public static final long DEFAULT_ABORT_DELAY = 5000;
+
+  private static final ScheduledExecutorService TIMER =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "dicom-cancellation-timer");
+            t.setDaemon(true);
+            return t;
+          });
+
+  private final List<CancelListener> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean cancelled = new AtomicBoolean(false);
+  private volatile long deadline;
+  private volatile long abortDelay = DEFAULT_ABORT_DELAY;
+  private ScheduledFuture<?> deadlineTask;
+
+  public CancellationToken() {}
+
+  /**
+   * @param timeout the maximum duration of the operations
+   * @param unit the time unit of the timeout
+   */
+  public CancellationToken(long timeout, TimeUnit unit) {
+    setTimeout(timeout, unit);
+  }
+
+  /**
+   * Set the deadline from now. The token is cancelled when the deadline is reached.
+   *
+   * @param timeout the maximum duration of the operations, 0 to remove the deadline
+   * @param unit the time unit of the timeout
+   */
+  public synchronized void setTimeout(long timeout, TimeUnit unit) {
+    if (deadlineTask != null) {
+      deadlineTask.cancel(false);
+      deadlineTask = null;
+    }
+    if (timeout <= 0) {
+      deadline = 0;
+    } else {
+      deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+      deadlineTask = TIMER.schedule(this::cancel, timeout, unit);
+    }
+  }
+
+  /** @return the time in milliseconds of the deadline or 0 when there is no deadline */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  public boolean isDeadlineReached() {
+    long d = deadline;
+    return d > 0 && System.currentTimeMillis() >= d;
+  }
+
+  /** @return the time in milliseconds before the association is aborted after a C-CANCEL */
+  public long getAbortDelay() {
+    return abortDelay;
+  }
+
+  public void setAbortDelay(long abortDelay) {
+    this.abortDelay = Math.max(0, abortDelay);
+  }
+
+  @Override
+  public void cancel() {
+    if (cancelled.compareAndSet(false, true)) {
+      synchronized (this) {
+        if (deadlineTask != null) {
+          deadlineTask.cancel(false);
+          deadlineTask = null;
+        }
+      }
+      for (CancelListener listener : listeners) {
+        listener.cancel();
+      }
+    }
+  }
+
+  public boolean isCancelled() {
+    return cancelled.get();
+  }
+
+  /**
+   * @param listener the listener to notify when the token is cancelled. It is notified
+   *     immediately when the token is already cancelled.
+   */
+  public void addCancelListener(CancelListener listener) {
+    if (listener != null && !listeners.contains(listener)) {
+      listeners.add(listener);
+      if (isCancelled()) {
+        listener.cancel();
+      }
+    }
+  }
+
+  public void removeCancelListener(CancelListener listener) {
+    listeners.remove(listener);
+  }
+}
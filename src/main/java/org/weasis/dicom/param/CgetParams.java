@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+public class CgetParams {
+  public static final int DEFAULT_WRITER_BUFFER_SIZE = 64 * 1024 * 1024;
+
+  private final String filePathFormat;
+  private final int shardingDepth;
+  private final int writerThreads;
+  private final int writerBufferSize;
+
+  /**
+   * @param filePathFormat the relative path of the stored files built from the attributes of each
+   *     instance (e.g. "{0020000D,hash}/{0020000E,hash}/{00080018}"). Can be null.
+   * @param shardingDepth the number of directory levels (0 to 4) named from the hash of the SOP
+   *     Instance UID. Not applied when filePathFormat is set.
+   * @param writerThreads the number of threads writing the received files to their final location,
+   *     0 to write each file before sending the C-STORE-RSP.
+   */
+  public CgetParams(String filePathFormat, int shardingDepth, int writerThreads) {
+    this(filePathFormat, shardingDepth, writerThreads, DEFAULT_WRITER_BUFFER_SIZE);
+  }
+
+  /**
+   * @param filePathFormat the relative path of the stored files built from the attributes of each
+   *     instance (e.g. "{0020000D,hash}/{0020000E,hash}/{00080018}"). Can be null.
+   * @param shardingDepth the number of directory levels (0 to 4) named from the hash of the SOP
+   *     Instance UID. Not applied when filePathFormat is set.
+   * @param writerThreads the number of threads writing the received files to their final location,
+   *     0 to write each file before sending the C-STORE-RSP.
+   * @param writerBufferSize the maximum size in bytes of the datasets waiting for a writer thread,
+   *     a larger dataset is written before sending its C-STORE-RSP.
+   */
+  public CgetParams(
+      String filePathFormat, int shardingDepth, int writerThreads, int writerBufferSize) {
+    this.filePathFormat = filePathFormat;
+    this.shardingDepth = shardingDepth;
+    this.writerThreads = writerThreads;
+    this.writerBufferSize = writerBufferSize;
+  }
+
+  public String getFilePathFormat() {
+    return filePathFormat;
+  }
+
+  public int getShardingDepth() {
+    return shardingDepth;
+  }
+
+  public int getWriterThreads() {
+    return writerThreads;
+  }
+
+  public int getWriterBufferSize() {
+    return writerBufferSize;
+  }
+}
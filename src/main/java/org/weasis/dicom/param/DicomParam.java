@@ -10,12 +10,15 @@
 package org.weasis.dicom.param;
 
 import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.TagUtils;
 
 public class DicomParam {
 
   private final int tag;
   private final String[] values;
   private final int[] parentSeqTags;
+  private volatile VR vr;
 
   public DicomParam(int tag, String... values) {
     this(null, tag, values);
@@ -39,6 +42,22 @@ public class DicomParam {
     return parentSeqTags;
   }
 
+  /**
+   * @param privateCreator the private creator of the tag, null for a public tag
+   * @return the VR of the tag. The value of a public tag is resolved only once.
+   */
+  public VR getVR(String privateCreator) {
+    if (privateCreator != null || TagUtils.isPrivateTag(tag)) {
+      return ElementDictionary.vrOf(tag, privateCreator);
+    }
+    VR val = vr;
+    if (val == null) {
+      val = ElementDictionary.vrOf(tag, null);
+      vr = val;
+    }
+    return val;
+  }
+
   public String getTagName() {
     return ElementDictionary.keywordOf(tag, null);
   }
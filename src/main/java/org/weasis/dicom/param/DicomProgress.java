@@ -12,6 +12,8 @@ package org.weasis.dicom.param;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.Status;
@@ -19,13 +21,14 @@ import org.dcm4che3.net.Status;
 public class DicomProgress implements CancelListener {
 
   private final List<ProgressListener> listenerList;
+  private final List<CancelListener> cancelListeners = new CopyOnWriteArrayList<>();
+  private volatile CancellationToken cancellationToken;
   private Attributes attributes;
-  private volatile boolean cancel;
+  private final AtomicBoolean cancel = new AtomicBoolean(false);
   private File processedFile;
   private volatile boolean lastFailed = false;
 
   public DicomProgress() {
-    this.cancel = false;
     this.listenerList = new ArrayList<>();
   }
 
@@ -76,11 +79,58 @@ public class DicomProgress implements CancelListener {
 
   @Override
   public void cancel() {
-    this.cancel = true;
+    if (cancel.compareAndSet(false, true)) {
+      for (CancelListener listener : cancelListeners) {
+        listener.cancel();
+      }
+    }
+  }
+
+  /**
+   * @param listener the listener to notify when the operation is cancelled. It is notified
+   *     immediately when the operation is already cancelled.
+   */
+  public void addCancelListener(CancelListener listener) {
+    if (listener != null && !cancelListeners.contains(listener)) {
+      cancelListeners.add(listener);
+      if (cancel.get()) {
+        listener.cancel();
+      }
+    }
+  }
+
+  public void removeCancelListener(CancelListener listener) {
+    cancelListeners.remove(listener);
+  }
+
+  public CancellationToken getCancellationToken() {
+    return cancellationToken;
+  }
+
+  /**
+   * Cancel the operation when the token is cancelled or when its deadline is reached.
+   *
+   * @param token the cancellation token shared by one or several operations
+   */
+  public void setCancellationToken(CancellationToken token) {
+    CancellationToken old = this.cancellationToken;
+    if (old != null) {
+      old.removeCancelListener(this);
+    }
+    this.cancellationToken = token;
+    if (token != null) {
+      token.addCancelListener(this);
+    }
+  }
+
+  /** @return the time in milliseconds before the association is aborted after a C-CANCEL */
+  public long getAbortDelay() {
+    CancellationToken token = cancellationToken;
+    return token == null ? CancellationToken.DEFAULT_ABORT_DELAY : token.getAbortDelay();
   }
 
   public boolean isCancel() {
-    return cancel;
+    return cancel.get();
   }
 
   private int getIntTag(int tag) {
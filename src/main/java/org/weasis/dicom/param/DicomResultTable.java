@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.StringUtils;
+
+/**
+ * Compact container for large C-FIND response sets. Instead of keeping one {@link Attributes} per
+ * match, the values of the requested keys are stored in string columns. Columns with repeated
+ * values (e.g. Modality, InstitutionName) are dictionary encoded, columns with mostly unique values
+ * (e.g. UIDs) fall back to a plain array of strings.
+ *
+ * <p>Only the string values of the requested keys are kept (a returning key of type SQ has no
+ * column). The rows can be read through lightweight {@link Row} views or converted to {@link
+ * Attributes} on demand.
+ */
+public class DicomResultTable implements Iterable<DicomResultTable.Row> {
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int MIN_ROWS_FOR_PLAIN = 256;
+
+  private final Column[] columns;
+  private final Object lock = new Object();
+  private int size;
+  private int capacity;
+
+  /** @param keys the matching and returning keys of the query (the same as for C-FIND) */
+  public DicomResultTable(DicomParam... keys) {
+    List<Column> list = new ArrayList<>(keys.length + 1);
+    list.add(new Column(null, Tag.SpecificCharacterSet, VR.CS));
+    for (DicomParam p : keys) {
+      VR vr = ElementDictionary.vrOf(p.getTag(), null);
+      if (vr != VR.SQ && !contains(list, p.getParentSeqTags(), p.getTag())) {
+        list.add(new Column(p.getParentSeqTags(), p.getTag(), vr));
+      }
+    }
+    this.columns = list.toArray(new Column[0]);
+    this.capacity = INITIAL_CAPACITY;
+    for (Column c : columns) {
+      c.ensureCapacity(capacity);
+    }
+  }
+
+  private static int[] normalize(int[] parentSeqTags) {
+    return parentSeqTags == null || parentSeqTags.length == 0 ? null : parentSeqTags;
+  }
+
+  private static boolean contains(List<Column> list, int[] parentSeqTags, int tag) {
+    int[] pSeq = normalize(parentSeqTags);
+    for (Column c : list) {
+      if (c.tag == tag && Arrays.equals(c.parentSeqTags, pSeq)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Add a C-FIND match. Only the values of the columns are copied, the Attributes instance is not
+   * referenced afterwards.
+   *
+   * @param match the dataset of a pending C-FIND-RSP
+   */
+  public void add(Attributes match) {
+    if (match == null) {
+      return;
+    }
+    synchronized (lock) {
+      if (size == capacity) {
+        capacity = capacity + (capacity >> 1);
+        for (Column c : columns) {
+          c.ensureCapacity(capacity);
+        }
+      }
+      for (Column c : columns) {
+        c.set(size, c.readValue(match));
+      }
+      size++;
+    }
+  }
+
+  public int size() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public Row get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    return new Row(index);
+  }
+
+  /** @return all the rows converted to Attributes. Use it only for small result sets. */
+  public List<Attributes> toAttributesList() {
+    int n = size();
+    List<Attributes> list = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      list.add(toAttributes(i));
+    }
+    return list;
+  }
+
+  @Override
+  public Iterator<Row> iterator() {
+    final int n = size();
+    return new Iterator<Row>() {
+      private int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        return index < n;
+      }
+
+      @Override
+      public Row next() {
+        if (index >= n) {
+          throw new NoSuchElementException();
+        }
+        return new Row(index++);
+      }
+    };
+  }
+
+  private String getValue(int row, int[] parentSeqTags, int tag) {
+    int[] pSeq = normalize(parentSeqTags);
+    for (Column c : columns) {
+      if (c.tag == tag && Arrays.equals(c.parentSeqTags, pSeq)) {
+        synchronized (lock) {
+          return c.get(row);
+        }
+      }
+    }
+    return null;
+  }
+
+  private Attributes toAttributes(int row) {
+    Attributes attrs = new Attributes(columns.length);
+    synchronized (lock) {
+      for (Column c : columns) {
+        String val = c.get(row);
+        if (val != null) {
+          getParent(attrs, c.parentSeqTags).setString(c.tag, c.vr, val);
+        }
+      }
+    }
+    return attrs;
+  }
+
+  private static Attributes getParent(Attributes attrs, int[] parentSeqTags) {
+    Attributes parent = attrs;
+    if (parentSeqTags != null) {
+      for (int seqTag : parentSeqTags) {
+        Sequence seq = parent.getSequence(seqTag);
+        if (seq == null || seq.isEmpty()) {
+          seq = parent.newSequence(seqTag, 1);
+          seq.add(new Attributes());
+        }
+        parent = seq.get(0);
+      }
+    }
+    return parent;
+  }
+
+  /** A lightweight view of one match of the result table. */
+  public final class Row {
+    private final int index;
+
+    private Row(int index) {
+      this.index = index;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public String getString(int tag) {
+      return getValue(index, null, tag);
+    }
+
+    public String getString(DicomParam key) {
+      return getValue(index, key.getParentSeqTags(), key.getTag());
+    }
+
+    public String[] getStrings(int tag) {
+      String val = getString(tag);
+      return val == null ? null : StringUtils.split(val, '\\');
+    }
+
+    public Attributes toAttributes() {
+      return DicomResultTable.this.toAttributes(index);
+    }
+  }
+
+  private static final class Column {
+    private static final int NULL_CODE = -1;
+
+    final int[] parentSeqTags;
+    final int tag;
+    final VR vr;
+
+    private Map<String, Integer> dictionary = new HashMap<>();
+    private List<String> entries = new ArrayList<>();
+    private int[] codes = new int[0];
+    private String[] plain;
+
+    Column(int[] parentSeqTags, int tag, VR vr) {
+      this.parentSeqTags = normalize(parentSeqTags);
+      this.tag = tag;
+      this.vr = vr;
+    }
+
+    void ensureCapacity(int capacity) {
+      if (plain != null) {
+        plain = Arrays.copyOf(plain, capacity);
+      } else {
+        codes = Arrays.copyOf(codes, capacity);
+      }
+    }
+
+    String readValue(Attributes match) {
+      Attributes item = match;
+      if (parentSeqTags != null) {
+        for (int seqTag : parentSeqTags) {
+          item = item.getNestedDataset(seqTag);
+          if (item == null) {
+            return null;
+          }
+        }
+      }
+      String[] ss = item.getStrings(tag);
+      if (ss == null || ss.length == 0) {
+        return null;
+      }
+      return ss.length == 1 ? ss[0] : StringUtils.concat(ss, '\\');
+    }
+
+    void set(int row, String value) {
+      if (plain != null) {
+        plain[row] = value;
+        return;
+      }
+      if (value == null) {
+        codes[row] = NULL_CODE;
+        return;
+      }
+      Integer code = dictionary.get(value);
+      if (code == null) {
+        code = entries.size();
+        entries.add(value);
+        dictionary.put(value, code);
+      }
+      codes[row] = code;
+
+      // Most values are unique (e.g. UIDs): the dictionary would only add overhead
+      int rows = row + 1;
+      if (rows >= MIN_ROWS_FOR_PLAIN && entries.size() > rows / 2) {
+        toPlain(rows);
+      }
+    }
+
+    String get(int row) {
+      if (plain != null) {
+        return plain[row];
+      }
+      int code = codes[row];
+      return code == NULL_CODE ? null : entries.get(code);
+    }
+
+    private void toPlain(int rows) {
+      String[] values = new String[codes.length];
+      for (int i = 0; i < rows; i++) {
+        values[i] = get(i);
+      }
+      this.plain = values;
+      this.codes = null;
+      this.dictionary = null;
+      this.entries = null;
+    }
+  }
+}
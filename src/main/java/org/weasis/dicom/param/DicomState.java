@@ -20,6 +20,7 @@ public class DicomState {
   private String message;
   private final List<Attributes> dicomRSP;
   private final DicomProgress progress;
+  private volatile DicomResultTable resultTable;
 
   public DicomState() {
     this(Status.Pending, null, null);
@@ -75,10 +76,29 @@ public class DicomState {
 
   public void addDicomRSP(Attributes dicomRSP) {
     if (dicomRSP != null) {
-      this.dicomRSP.add(dicomRSP);
+      DicomResultTable table = resultTable;
+      if (table == null) {
+        this.dicomRSP.add(dicomRSP);
+      } else {
+        table.add(dicomRSP);
+      }
     }
   }
 
+  public DicomResultTable getResultTable() {
+    return resultTable;
+  }
+
+  /**
+   * Store the next DICOM responses in a compact table instead of the list of Attributes (see
+   * getDicomRSP()).
+   *
+   * @param resultTable the table receiving the responses. Null restores the default behavior.
+   */
+  public void setResultTable(DicomResultTable resultTable) {
+    this.resultTable = resultTable;
+  }
+
   public static DicomState buildMessage(DicomState dcmState, String timeMessage, Exception e) {
     DicomState state = dcmState;
     if (state == null) {
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.dcm4che3.data.Attributes;
+
+/** Receives the retrieved instances in memory instead of writing them to the disk. */
+@FunctionalInterface
+public interface InstanceHandler {
+
+  /**
+   * @param fmi the file meta information (SOP Class UID, SOP Instance UID and Transfer Syntax UID)
+   * @param data the dataset encoded with the transfer syntax of fmi. The stream is valid only
+   *     during the call, the remaining bytes are skipped afterwards.
+   * @throws IOException when the instance cannot be handled, a failure status is returned to the
+   *     sender.
+   */
+  void handle(Attributes fmi, InputStream data) throws IOException;
+
+  /** Called when the retrieve operation is finished (successfully or not). */
+  default void completed() {}
+}
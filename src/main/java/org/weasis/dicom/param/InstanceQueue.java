@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Bounded queue of the retrieved instances. The instances are kept in memory until a consumer
+ * takes them. When the queue is full, the C-STORE-RSP is delayed until a consumer frees a place,
+ * which slows down the sender.
+ */
+public class InstanceQueue implements InstanceHandler {
+
+  // End marker put in the queue when the retrieve operation is finished
+  private static final Instance END = new Instance(new Attributes(0), new byte[0], 0);
+
+  private final BlockingQueue<Instance> queue = new LinkedBlockingQueue<>();
+  private final Semaphore freePlaces;
+  private final AtomicBoolean completed = new AtomicBoolean(false);
+
+  /** @param capacity the maximum number of instances waiting for a consumer */
+  public InstanceQueue(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity must be greater than 0");
+    }
+    this.freePlaces = new Semaphore(capacity);
+  }
+
+  @Override
+  public void handle(Attributes fmi, InputStream data) throws IOException {
+    InstanceBuffer out = new InstanceBuffer();
+    byte[] buf = new byte[FileUtil.FILE_BUFFER];
+    int n;
+    while ((n = data.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    try {
+      freePlaces.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Waiting for a free place in the queue");
+    }
+    queue.add(out.toInstance(fmi));
+  }
+
+  @Override
+  public void completed() {
+    if (completed.compareAndSet(false, true)) {
+      queue.add(END);
+    }
+  }
+
+  /**
+   * @return the next instance or null when the retrieve operation is finished and all the
+   *     instances have been consumed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Instance take() throws InterruptedException {
+    return next(queue.take());
+  }
+
+  /**
+   * @param timeout the maximum time to wait
+   * @param unit the time unit of the timeout
+   * @return the next instance or null when the timeout has elapsed or when all the instances have
+   *     been consumed (see {@link #isCompleted()})
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Instance poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return next(queue.poll(timeout, unit));
+  }
+
+  private Instance next(Instance instance) {
+    if (instance == END) {
+      // Keep the end marker for the other consumers
+      queue.add(END);
+      return null;
+    }
+    if (instance != null) {
+      freePlaces.release();
+    }
+    return instance;
+  }
+
+  public boolean isCompleted() {
+    return completed.get();
+  }
+
+  /** Exposes the internal buffer to avoid copying the dataset. */
+  private static class InstanceBuffer extends ByteArrayOutputStream {
+    Instance toInstance(Attributes fmi) {
+      return new Instance(fmi, buf, count);
+    }
+  }
+
+  public static class Instance {
+    private final Attributes fmi;
+    private final byte[] data;
+    private final int length;
+
+    Instance(Attributes fmi, byte[] data, int length) {
+      this.fmi = fmi;
+      this.data = data;
+      this.length = length;
+    }
+
+    public Attributes getFileMetaInformation() {
+      return fmi;
+    }
+
+    public String getSopInstanceUID() {
+      return fmi.getString(Tag.MediaStorageSOPInstanceUID);
+    }
+
+    public String getTransferSyntaxUID() {
+      return fmi.getString(Tag.TransferSyntaxUID);
+    }
+
+    /** @return the dataset encoded with the transfer syntax of the file meta information */
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(data, 0, length);
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public Attributes readDataset() throws IOException {
+      try (DicomInputStream dis = new DicomInputStream(getInputStream(), getTransferSyntaxUID())) {
+        return dis.readDataset(-1, -1);
+      }
+    }
+  }
+}
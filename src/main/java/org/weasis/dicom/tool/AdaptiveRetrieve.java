@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.op.CFind;
+import org.weasis.dicom.op.CGet;
+import org.weasis.dicom.op.CMove;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.CancellationToken;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
+import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.web.WadoRsRetriever;
+
+/**
+ * Retrieve facade choosing the protocol and the parallelism for each request.
+ *
+ * <p>A profile is learned for each node and each protocol from the past transfers (throughput,
+ * setup time, SOP classes received and failures). The transfers are measured by the handler
+ * receiving the instances: the setup time is the delay before the first instance and the
+ * throughput is computed from the bytes received afterwards. The protocol with the shortest
+ * estimated time is used first, a protocol never used with a node is tried before the others to
+ * learn its profile. When the expected SOP classes are given, the protocols which have already
+ * been used without delivering all of them come last. When a retrieval fails, the next protocol is
+ * used.
+ *
+ * <p>The maximum parallelism of a node is not learned, it must be configured with {@link
+ * NodeProfile#setMaxParallelism(int)}.
+ */
+public class AdaptiveRetrieve {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveRetrieve.class);
+
+  // Weight of the last transfer in the moving averages
+  private static final double ALPHA = 0.3;
+  // Penalty in milliseconds added to the estimated time for each consecutive failure
+  private static final long FAILURE_PENALTY = 60000;
+  // Minimum size of a study in bytes for splitting the retrieval by series
+  private static final long PARALLEL_THRESHOLD = 100L * 1024 * 1024;
+
+  public enum Protocol {
+    C_GET,
+    C_MOVE,
+    WADO_RS
+  }
+
+  @FunctionalInterface
+  public interface Retriever {
+    /**
+     * @param calledNode the node providing the instances
+     * @param progress the progress of this retrieval, cancelled with the adaptive retrieval
+     * @param handler the handler writing each instance in the output directory and measuring the
+     *     transfer. It can be called concurrently.
+     * @param keys the retrieve keys (level and UIDs)
+     * @return the state of the retrieval
+     */
+    DicomState retrieve(
+        DicomNode calledNode, DicomProgress progress, InstanceHandler handler, DicomParam... keys);
+
+    /**
+     * @param calledNode the node providing the instances
+     * @return false when the protocol cannot be used with the node
+     */
+    default boolean supports(DicomNode calledNode) {
+      return true;
+    }
+  }
+
+  /** Performance profile of a protocol with a node */
+  public static class ProtocolProfile {
+    private double throughput;
+    private double setupTime;
+    private int transfers;
+    private int consecutiveFailures;
+    private int failures;
+    private final Set<String> sopClassUIDs = new HashSet<>();
+
+    synchronized void addTransfer(long bytes, long setup, long elapsed) {
+      double rate = bytes * 1000.0 / Math.max(1, elapsed - setup);
+      if (transfers == 0) {
+        throughput = rate;
+        setupTime = setup;
+      } else {
+        throughput = ALPHA * rate + (1 - ALPHA) * throughput;
+        setupTime = ALPHA * setup + (1 - ALPHA) * setupTime;
+      }
+      transfers++;
+      consecutiveFailures = 0;
+    }
+
+    synchronized void addFailure() {
+      failures++;
+      consecutiveFailures++;
+    }
+
+    synchronized void addSopClassUIDs(Collection<String> uids) {
+      sopClassUIDs.addAll(uids);
+    }
+
+    /** @return the SOP Class UIDs already received with the protocol */
+    public synchronized Set<String> getSopClassUIDs() {
+      return new HashSet<>(sopClassUIDs);
+    }
+
+    synchronized boolean lacksSopClasses(Collection<String> uids) {
+      return transfers > 0 && uids != null && !sopClassUIDs.containsAll(uids);
+    }
+
+    /**
+     * @param size the expected size in bytes, 0 when unknown
+     * @return the estimated time in milliseconds or -1 when the protocol has never been used
+     */
+    public synchronized long getEstimatedTime(long size) {
+      if (transfers == 0) {
+        return consecutiveFailures == 0 ? -1 : consecutiveFailures * FAILURE_PENALTY;
+      }
+      double time = setupTime + (throughput > 0 ? size * 1000.0 / throughput : 0);
+      return (long) time + consecutiveFailures * FAILURE_PENALTY;
+    }
+
+    /** @return the average throughput in bytes per second */
+    public synchronized double getThroughput() {
+      return throughput;
+    }
+
+    /** @return the average time in milliseconds before receiving the first instance */
+    public synchronized double getSetupTime() {
+      return setupTime;
+    }
+
+    public synchronized int getTransfers() {
+      return transfers;
+    }
+
+    public synchronized int getFailures() {
+      return failures;
+    }
+  }
+
+  /** Profile of a node, one entry per protocol */
+  public static class NodeProfile {
+    private final Map<Protocol, ProtocolProfile> protocols = new EnumMap<>(Protocol.class);
+    private volatile int maxParallelism = 1;
+
+    NodeProfile() {
+      for (Protocol p : Protocol.values()) {
+        protocols.put(p, new ProtocolProfile());
+      }
+    }
+
+    public ProtocolProfile getProfile(Protocol protocol) {
+      return protocols.get(protocol);
+    }
+
+    /** @return the SOP Class UIDs already received from the node with any protocol */
+    public Set<String> getSupportedSopClassUIDs() {
+      Set<String> set = new HashSet<>();
+      for (ProtocolProfile p : protocols.values()) {
+        set.addAll(p.getSopClassUIDs());
+      }
+      return set;
+    }
+
+    public int getMaxParallelism() {
+      return maxParallelism;
+    }
+
+    /**
+     * @param maxParallelism the maximum number of simultaneous transfers accepted by the node. It
+     *     is not learned, the default value is 1.
+     */
+    public void setMaxParallelism(int maxParallelism) {
+      this.maxParallelism = Math.max(1, maxParallelism);
+    }
+  }
+
+  private final AdvancedParams params;
+  private final DicomNode callingNode;
+  private final Map<Protocol, Retriever> retrievers = new EnumMap<>(Protocol.class);
+  private final Map<String, NodeProfile> profiles = new ConcurrentHashMap<>();
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   */
+  public AdaptiveRetrieve(AdvancedParams params, DicomNode callingNode) {
+    this.params = params;
+    this.callingNode = Objects.requireNonNull(callingNode);
+    retrievers.put(
+        Protocol.C_GET,
+        (calledNode, progress, handler, keys) ->
+            CGet.process(params, callingNode, calledNode, progress, handler, null, keys));
+  }
+
+  /**
+   * Enable C-MOVE with a storage SCP started for each retrieval.
+   *
+   * @param destinationNode the local destination node (AETitle and port) known by the called nodes
+   */
+  public void setMoveDestination(DicomNode destinationNode) {
+    if (destinationNode == null) {
+      setRetriever(Protocol.C_MOVE, null);
+    } else {
+      setRetriever(
+          Protocol.C_MOVE,
+          (calledNode, progress, handler, keys) ->
+              CMove.process(
+                  params, callingNode, calledNode, destinationNode, progress, handler, keys));
+    }
+  }
+
+  /**
+   * Enable WADO-RS with the service of each called node. The protocol is not used with the nodes
+   * without service.
+   *
+   * @param wadoRetrievers the WADO-RS client of a node, null when the node has no WADO-RS service.
+   *     Null to disable the protocol.
+   */
+  public void setWadoRetrievers(Function<DicomNode, WadoRsRetriever> wadoRetrievers) {
+    if (wadoRetrievers == null) {
+      setRetriever(Protocol.WADO_RS, null);
+    } else {
+      setRetriever(Protocol.WADO_RS, new WadoRetriever(wadoRetrievers));
+    }
+  }
+
+  private static class WadoRetriever implements Retriever {
+    private final Function<DicomNode, WadoRsRetriever> wadoRetrievers;
+
+    WadoRetriever(Function<DicomNode, WadoRsRetriever> wadoRetrievers) {
+      this.wadoRetrievers = wadoRetrievers;
+    }
+
+    @Override
+    public boolean supports(DicomNode calledNode) {
+      return wadoRetrievers.apply(calledNode) != null;
+    }
+
+    @Override
+    public DicomState retrieve(
+        DicomNode calledNode, DicomProgress progress, InstanceHandler handler, DicomParam... keys) {
+      WadoRsRetriever wado = wadoRetrievers.apply(calledNode);
+      if (wado == null) {
+        return new DicomState(
+            Status.UnableToProcess, "No WADO-RS service for " + calledNode, null);
+      }
+      // WADO-RS has no cancel request, the next instances are rejected
+      return wado.retrieve(
+          new InstanceHandler() {
+            @Override
+            public void handle(Attributes fmi, InputStream data) throws IOException {
+              if (progress.isCancel()) {
+                throw new IOException("WADO-RS has been cancelled");
+              }
+              handler.handle(fmi, data);
+            }
+
+            @Override
+            public void completed() {
+              handler.completed();
+            }
+          },
+          keys);
+    }
+  }
+
+  /**
+   * @param protocol the protocol
+   * @param retriever the implementation of the protocol or null to disable the protocol
+   */
+  public synchronized void setRetriever(Protocol protocol, Retriever retriever) {
+    if (retriever == null) {
+      retrievers.remove(protocol);
+    } else {
+      retrievers.put(protocol, retriever);
+    }
+  }
+
+  /**
+   * @param calledNode the node
+   * @return the learned profile of the node
+   */
+  public NodeProfile getProfile(DicomNode calledNode) {
+    return profiles.computeIfAbsent(getNodeKey(calledNode), k -> new NodeProfile());
+  }
+
+  private static String getNodeKey(DicomNode node) {
+    return node.getAet() + "@" + node.getHostname() + ":" + node.getPort();
+  }
+
+  /**
+   * @param calledNode the node
+   * @param expectedSize the expected size in bytes, 0 when unknown
+   * @return the available protocols, the fastest first
+   */
+  public List<Protocol> getProtocolOrder(DicomNode calledNode, long expectedSize) {
+    return getProtocolOrder(calledNode, expectedSize, null);
+  }
+
+  /**
+   * @param calledNode the node
+   * @param expectedSize the expected size in bytes, 0 when unknown
+   * @param sopClassUIDs the SOP Class UIDs of the instances to retrieve, null when unknown
+   * @return the available protocols, the fastest first
+   */
+  public List<Protocol> getProtocolOrder(
+      DicomNode calledNode, long expectedSize, Collection<String> sopClassUIDs) {
+    NodeProfile profile = getProfile(calledNode);
+    List<Protocol> list = new ArrayList<>();
+    synchronized (this) {
+      retrievers.forEach(
+          (protocol, retriever) -> {
+            if (retriever.supports(calledNode)) {
+              list.add(protocol);
+            }
+          });
+    }
+    list.sort(
+        (p1, p2) -> {
+          boolean l1 = profile.getProfile(p1).lacksSopClasses(sopClassUIDs);
+          boolean l2 = profile.getProfile(p2).lacksSopClasses(sopClassUIDs);
+          if (l1 != l2) {
+            return l1 ? 1 : -1;
+          }
+          long t1 = profile.getProfile(p1).getEstimatedTime(expectedSize);
+          long t2 = profile.getProfile(p2).getEstimatedTime(expectedSize);
+          // Unknown first for learning the profile, otherwise the enum order
+          if (t1 == t2 || (t1 < 0 && t2 < 0)) {
+            return p1.compareTo(p2);
+          }
+          if (t1 < 0) {
+            return -1;
+          }
+          if (t2 < 0) {
+            return 1;
+          }
+          return Long.compare(t1, t2);
+        });
+    return list;
+  }
+
+  /**
+   * Retrieve the instances with the fastest protocol and fall back to the other protocols on
+   * failure.
+   *
+   * @param calledNode the node providing the instances
+   * @param outputDir the directory where the instances are written
+   * @param expectedSize the expected size in bytes, 0 when unknown
+   * @param keys the retrieve keys (level and UIDs)
+   * @return the state of the last retrieval
+   */
+  public DicomState retrieve(
+      DicomNode calledNode, File outputDir, long expectedSize, DicomParam... keys) {
+    return retrieve(calledNode, outputDir, expectedSize, null, null, keys);
+  }
+
+  /**
+   * Retrieve the instances with the fastest protocol and fall back to the other protocols on
+   * failure.
+   *
+   * @param calledNode the node providing the instances
+   * @param outputDir the directory where the instances are written
+   * @param expectedSize the expected size in bytes, 0 when unknown
+   * @param sopClassUIDs the SOP Class UIDs of the instances to retrieve, null when unknown
+   * @param token the token cancelling the retrieval, can be null
+   * @param keys the retrieve keys (level and UIDs)
+   * @return the state of the last retrieval
+   */
+  public DicomState retrieve(
+      DicomNode calledNode,
+      File outputDir,
+      long expectedSize,
+      Collection<String> sopClassUIDs,
+      CancellationToken token,
+      DicomParam... keys) {
+    Objects.requireNonNull(calledNode);
+    Objects.requireNonNull(outputDir);
+    NodeProfile profile = getProfile(calledNode);
+    DicomState state =
+        new DicomState(Status.UnableToProcess, "No retrieve protocol available", null);
+    for (Protocol protocol : getProtocolOrder(calledNode, expectedSize, sopClassUIDs)) {
+      Retriever retriever;
+      synchronized (this) {
+        retriever = retrievers.get(protocol);
+      }
+      if (retriever == null) {
+        continue;
+      }
+      if (isCancelled(token)) {
+        return new DicomState(Status.Cancel, "Retrieve cancelled", null);
+      }
+      int parallelism = getParallelism(profile, expectedSize);
+      FileWriterHandler handler = new FileWriterHandler(outputDir);
+      if (parallelism > 1) {
+        state = retrieveSeries(retriever, calledNode, token, handler, parallelism, keys);
+      } else {
+        state = retrieve(retriever, calledNode, token, handler, keys);
+      }
+      long elapsed = handler.getElapsedTime();
+      ProtocolProfile pp = profile.getProfile(protocol);
+      if (state.getStatus() == Status.Cancel || isCancelled(token)) {
+        // Not a property of the node, the profile is unchanged
+        return state.getStatus() == Status.Cancel
+            ? state
+            : new DicomState(Status.Cancel, state.getMessage(), null);
+      }
+      if (state.getStatus() == Status.Success) {
+        long bytes = handler.getBytes();
+        // A retrieval without instance does not measure the transfer
+        if (handler.getNumberOfInstances() > 0) {
+          pp.addTransfer(bytes, handler.getFirstInstanceTime(), elapsed);
+          pp.addSopClassUIDs(handler.getSopClassUIDs());
+        }
+        LOGGER.info(
+            "Retrieved {} bytes from {} with {} in {}ms", bytes, calledNode, protocol, elapsed);
+        return state;
+      }
+      pp.addFailure();
+      LOGGER.warn("Retrieve from {} with {} failed: {}", calledNode, protocol, state.getMessage());
+    }
+    return state;
+  }
+
+  private static boolean isCancelled(CancellationToken token) {
+    return token != null && token.isCancelled();
+  }
+
+  private static DicomState retrieve(
+      Retriever retriever,
+      DicomNode calledNode,
+      CancellationToken token,
+      InstanceHandler handler,
+      DicomParam... keys) {
+    // One progress for each retrieval, the status of a retrieval is built from its progress
+    DicomProgress progress = new DicomProgress();
+    progress.setCancellationToken(token);
+    try {
+      return retriever.retrieve(calledNode, progress, handler, keys);
+    } finally {
+      progress.setCancellationToken(null);
+    }
+  }
+
+  private static int getParallelism(NodeProfile profile, long expectedSize) {
+    if (expectedSize < PARALLEL_THRESHOLD) {
+      return 1;
+    }
+    long chunks = (expectedSize + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD;
+    return (int) Math.min(profile.getMaxParallelism(), chunks);
+  }
+
+  private DicomState retrieveSeries(
+      Retriever retriever,
+      DicomNode calledNode,
+      CancellationToken token,
+      InstanceHandler handler,
+      int parallelism,
+      DicomParam... keys) {
+    String studyUID = null;
+    for (DicomParam p : keys) {
+      if (p.getTag() == Tag.StudyInstanceUID && p.getValues() != null) {
+        studyUID = p.getValues().length == 1 ? p.getValues()[0] : null;
+      }
+    }
+    List<String> series = studyUID == null ? null : findSeries(calledNode, studyUID);
+    if (series == null || series.size() < 2) {
+      return retrieve(retriever, calledNode, token, handler, keys);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, series.size()));
+    try {
+      List<Future<DicomState>> futures = new ArrayList<>(series.size());
+      for (String seriesUID : series) {
+        DicomParam[] seriesKeys = {
+          new DicomParam(Tag.QueryRetrieveLevel, QueryRetrieveLevel.SERIES.name()),
+          new DicomParam(Tag.StudyInstanceUID, studyUID),
+          new DicomParam(Tag.SeriesInstanceUID, seriesUID)
+        };
+        futures.add(
+            executor.submit(() -> retrieve(retriever, calledNode, token, handler, seriesKeys)));
+      }
+      DicomState result = null;
+      for (Future<DicomState> future : futures) {
+        DicomState state = future.get();
+        if (result == null || state.getStatus() != Status.Success) {
+          result = state;
+        }
+      }
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new DicomState(Status.Cancel, "Retrieve interrupted", null);
+    } catch (ExecutionException e) {
+      return new DicomState(
+          Status.UnableToProcess,
+          "Retrieve failed" + StringUtil.COLON_AND_SPACE + e.getCause().getMessage(),
+          null);
+    } finally {
+      ServiceUtil.shutdownService(executor);
+    }
+  }
+
+  private List<String> findSeries(DicomNode calledNode, String studyUID) {
+    DicomState state =
+        CFind.process(
+            params,
+            callingNode,
+            calledNode,
+            0,
+            QueryRetrieveLevel.SERIES,
+            new DicomParam(Tag.StudyInstanceUID, studyUID),
+            CFind.SeriesInstanceUID);
+    if (state.getStatus() != Status.Success) {
+      return null;
+    }
+    List<String> list = new ArrayList<>();
+    for (Attributes attrs : state.getDicomRSP()) {
+      String uid = attrs.getString(Tag.SeriesInstanceUID);
+      if (StringUtil.hasText(uid)) {
+        list.add(uid);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Writes each received instance in the output directory and measures the transfer from the
+   * creation of the handler. The instances can be received concurrently.
+   */
+  public static class FileWriterHandler implements InstanceHandler {
+    private final File outputDir;
+    private final long start = System.currentTimeMillis();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger instances = new AtomicInteger();
+    private final AtomicLong firstInstanceTime = new AtomicLong(-1);
+    private final Set<String> sopClassUIDs = ConcurrentHashMap.newKeySet();
+
+    public FileWriterHandler(File outputDir) {
+      this.outputDir = outputDir;
+    }
+
+    @Override
+    public void handle(Attributes fmi, InputStream data) throws IOException {
+      firstInstanceTime.compareAndSet(-1, System.currentTimeMillis() - start);
+      File file = new File(outputDir, fmi.getString(Tag.MediaStorageSOPInstanceUID));
+      FileUtil.prepareToWriteFile(file);
+      try (DicomOutputStream out = new DicomOutputStream(file)) {
+        out.writeFileMetaInformation(fmi);
+        byte[] buf = new byte[FileUtil.FILE_BUFFER];
+        int n;
+        while ((n = data.read(buf)) > 0) {
+          out.write(buf, 0, n);
+          bytes.addAndGet(n);
+        }
+      }
+      instances.incrementAndGet();
+      String cuid = fmi.getString(Tag.MediaStorageSOPClassUID);
+      if (cuid != null) {
+        sopClassUIDs.add(cuid);
+      }
+    }
+
+    /** @return the number of bytes of the datasets written */
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    /** @return the number of instances written */
+    public int getNumberOfInstances() {
+      return instances.get();
+    }
+
+    /** @return the SOP Class UIDs of the instances written */
+    public Set<String> getSopClassUIDs() {
+      return new HashSet<>(sopClassUIDs);
+    }
+
+    /** @return the time in milliseconds before receiving the first instance, -1 when none */
+    public long getFirstInstanceTime() {
+      return firstInstanceTime.get();
+    }
+
+    /** @return the time in milliseconds from the creation of the handler */
+    public long getElapsedTime() {
+      return System.currentTimeMillis() - start;
+    }
+  }
+}
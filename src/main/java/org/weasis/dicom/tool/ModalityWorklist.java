@@ -10,8 +10,6 @@
 package org.weasis.dicom.tool;
 
 import java.text.MessageFormat;
-import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Status;
@@ -21,7 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.core.util.StringUtil;
-import org.weasis.dicom.op.CFind;
+import org.weasis.dicom.op.QueryTemplate;
 import org.weasis.dicom.param.AdvancedParams;
 import org.weasis.dicom.param.DeviceOpService;
 import org.weasis.dicom.param.DicomNode;
@@ -138,6 +136,28 @@ public class ModalityWorklist {
       DicomNode calledNode,
       int cancelAfter,
       DicomParam... keys) {
+    return process(params, callingNode, calledNode, cancelAfter, (QueryTemplate) null, keys);
+  }
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param cancelAfter cancel the query request after the receive of the specified number of
+   *     matches.
+   * @param template the precompiled keys of the query, the values are added to a copy of the
+   *     template. Can be null.
+   * @param values the matching keys of the request. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public static DicomState process(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      int cancelAfter,
+      QueryTemplate template,
+      DicomParam... values) {
     if (callingNode == null || calledNode == null) {
       throw new IllegalArgumentException("callingNode or calledNode cannot be null!");
     }
@@ -158,7 +178,13 @@ public class ModalityWorklist {
       findSCU.setInformationModel(
           getInformationModel(options), options.getTsuidOrder(), options.getQueryOptions());
 
-      addKeys(findSCU, keys);
+      if (template == null) {
+        for (DicomParam p : values) {
+          QueryTemplate.add(findSCU.getKeys(), p);
+        }
+      } else {
+        template.applyTo(findSCU.getKeys(), values);
+      }
 
       findSCU.setCancelAfter(cancelAfter);
       findSCU.setPriority(options.getPriority());
@@ -197,27 +223,6 @@ public class ModalityWorklist {
     }
   }
 
-  private static void addKeys(FindSCU findSCU, DicomParam[] keys) {
-    for (DicomParam p : keys) {
-      int[] pSeq = p.getParentSeqTags();
-      if (pSeq == null || pSeq.length == 0) {
-        CFind.addAttributes(findSCU.getKeys(), p);
-      } else {
-        Attributes parent = findSCU.getKeys();
-        for (int value : pSeq) {
-          Sequence lastSeq = parent.getSequence(value);
-          if (lastSeq == null || lastSeq.isEmpty()) {
-            lastSeq = parent.newSequence(value, 1);
-            lastSeq.add(new Attributes());
-          }
-          parent = lastSeq.get(0);
-        }
-
-        CFind.addAttributes(parent, p);
-      }
-    }
-  }
-
   private static InformationModel getInformationModel(AdvancedParams options) {
     Object model = options.getInformationModel();
     if (model instanceof InformationModel) {
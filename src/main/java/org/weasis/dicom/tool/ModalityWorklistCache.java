@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ServiceUtil;
+
+/**
+ * Polls the modality worklist once on behalf of many local consumers. The last snapshot is indexed
+ * by Scheduled Procedure Step ID and served from memory, each poll computes the added, removed and
+ * changed items and notifies the listeners.
+ *
+ * <p>The items returned by the cache are shared between the consumers and must not be modified.
+ */
+public class ModalityWorklistCache implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ModalityWorklistCache.class);
+
+  private static final OutputStream NULL_OUTPUT =
+      new OutputStream() {
+        @Override
+        public void write(int b) {
+          // Only the digest is computed
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          // Only the digest is computed
+        }
+      };
+
+  public interface Listener {
+    void worklistChanged(ModalityWorklistCache cache, Delta delta);
+  }
+
+  public static class Delta {
+    private final List<Attributes> added;
+    private final List<Attributes> removed;
+    private final List<Attributes> changed;
+
+    Delta(List<Attributes> added, List<Attributes> removed, List<Attributes> changed) {
+      this.added = Collections.unmodifiableList(added);
+      this.removed = Collections.unmodifiableList(removed);
+      this.changed = Collections.unmodifiableList(changed);
+    }
+
+    public List<Attributes> getAdded() {
+      return added;
+    }
+
+    public List<Attributes> getRemoved() {
+      return removed;
+    }
+
+    /** @return the new version of the items which have been modified */
+    public List<Attributes> getChanged() {
+      return changed;
+    }
+
+    public boolean isEmpty() {
+      return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+  }
+
+  private final AdvancedParams params;
+  private final DicomNode callingNode;
+  private final DicomNode calledNode;
+  private final DicomParam[] keys;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final Object pollLock = new Object();
+
+  private volatile Map<String, Attributes> snapshot = Collections.emptyMap();
+  private volatile long lastUpdate;
+  private volatile long version;
+  private volatile DicomState lastState;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS)
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the called DICOM node configuration
+   * @param keys the matching and returning keys. The Scheduled Procedure Step ID is added as
+   *     returning key when missing.
+   */
+  public ModalityWorklistCache(
+      AdvancedParams params, DicomNode callingNode, DicomNode calledNode, DicomParam... keys) {
+    this.params = params;
+    this.callingNode = Objects.requireNonNull(callingNode);
+    this.calledNode = Objects.requireNonNull(calledNode);
+    this.keys = addScheduledProcedureStepID(keys);
+  }
+
+  private static DicomParam[] addScheduledProcedureStepID(DicomParam[] keys) {
+    for (DicomParam p : keys) {
+      if (p.getTag() == Tag.ScheduledProcedureStepID) {
+        return keys;
+      }
+    }
+    DicomParam[] list = Arrays.copyOf(keys, keys.length + 1);
+    list[keys.length] = ModalityWorklist.ScheduledProcedureStepID;
+    return list;
+  }
+
+  public void addListener(Listener listener) {
+    if (listener != null && !listeners.contains(listener)) {
+      listeners.add(listener);
+    }
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Start polling the worklist periodically. The first query is sent immediately.
+   *
+   * @param period the time between two queries
+   * @param unit the time unit of the period
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor();
+      executor.scheduleWithFixedDelay(
+          () -> {
+            try {
+              refresh();
+            } catch (Exception e) {
+              LOGGER.error("Polling the modality worklist", e);
+            }
+          },
+          0,
+          period,
+          unit);
+    }
+  }
+
+  public synchronized void stop() {
+    ServiceUtil.shutdownService(executor);
+    executor = null;
+  }
+
+  public synchronized boolean isRunning() {
+    return executor != null;
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  /**
+   * Query the worklist now and update the snapshot. When the query fails, the previous snapshot is
+   * kept.
+   *
+   * @return the differences with the previous snapshot or null when the query has failed
+   */
+  public Delta refresh() {
+    synchronized (pollLock) {
+      DicomState state = ModalityWorklist.process(params, callingNode, calledNode, keys);
+      lastState = state;
+      if (state.getStatus() != Status.Success) {
+        LOGGER.warn("Cannot update the worklist cache of {}: {}", calledNode, state.getMessage());
+        return null;
+      }
+      return update(state.getDicomRSP());
+    }
+  }
+
+  Delta update(List<Attributes> items) {
+    synchronized (pollLock) {
+      Map<String, Attributes> oldItems = snapshot;
+      Map<String, Attributes> newItems = new LinkedHashMap<>();
+      for (Attributes item : items) {
+        String key = getItemKey(item);
+        String uniqueKey = key;
+        // Never merge the items with the same key
+        for (int n = 2; newItems.containsKey(uniqueKey); n++) {
+          uniqueKey = key + "#" + n;
+        }
+        newItems.put(uniqueKey, item);
+      }
+
+      List<Attributes> added = new ArrayList<>();
+      List<Attributes> changed = new ArrayList<>();
+      List<Attributes> removed = new ArrayList<>();
+      for (Entry<String, Attributes> entry : newItems.entrySet()) {
+        Attributes old = oldItems.get(entry.getKey());
+        if (old == null) {
+          added.add(entry.getValue());
+        } else if (!old.equals(entry.getValue())) {
+          changed.add(entry.getValue());
+        }
+      }
+      for (Entry<String, Attributes> entry : oldItems.entrySet()) {
+        if (!newItems.containsKey(entry.getKey())) {
+          removed.add(entry.getValue());
+        }
+      }
+
+      snapshot = Collections.unmodifiableMap(newItems);
+      lastUpdate = System.currentTimeMillis();
+      Delta delta = new Delta(added, removed, changed);
+      if (!delta.isEmpty()) {
+        version++;
+        for (Listener listener : listeners) {
+          listener.worklistChanged(this, delta);
+        }
+      }
+      return delta;
+    }
+  }
+
+  /**
+   * @param item a worklist item
+   * @return the Scheduled Procedure Step ID or when missing a key built from the digest of the
+   *     whole item. Without Scheduled Procedure Step ID, a modified item is reported as removed and
+   *     added.
+   */
+  public static String getItemKey(Attributes item) {
+    Attributes sps = item.getNestedDataset(Tag.ScheduledProcedureStepSequence);
+    String spsID = sps == null ? null : sps.getString(Tag.ScheduledProcedureStepID);
+    if (StringUtil.hasText(spsID)) {
+      return spsID;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      try (DicomOutputStream out =
+          new DicomOutputStream(
+              new DigestOutputStream(NULL_OUTPUT, digest), UID.ExplicitVRLittleEndian)) {
+        out.writeDataset(null, item);
+      }
+      return "#" + new BigInteger(1, digest.digest()).toString(16);
+    } catch (NoSuchAlgorithmException | IOException e) {
+      throw new IllegalStateException("Cannot compute the key of the worklist item", e);
+    }
+  }
+
+  /** @return the items of the last snapshot indexed by Scheduled Procedure Step ID */
+  public Map<String, Attributes> getSnapshot() {
+    return snapshot;
+  }
+
+  public List<Attributes> getItems() {
+    return new ArrayList<>(snapshot.values());
+  }
+
+  public List<Attributes> getItems(Predicate<Attributes> filter) {
+    List<Attributes> list = new ArrayList<>();
+    for (Attributes item : snapshot.values()) {
+      if (filter.test(item)) {
+        list.add(item);
+      }
+    }
+    return list;
+  }
+
+  public Attributes getItem(String scheduledProcedureStepID) {
+    return snapshot.get(scheduledProcedureStepID);
+  }
+
+  /** @return the time in milliseconds of the last successful query */
+  public long getLastUpdate() {
+    return lastUpdate;
+  }
+
+  /** @return a counter incremented each time the content of the worklist changes */
+  public long getVersion() {
+    return version;
+  }
+
+  /** @return the state of the last query (successful or not), null when never queried */
+  public DicomState getLastState() {
+    return lastState;
+  }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.op.CFind;
+import org.weasis.dicom.op.CGet;
+import org.weasis.dicom.op.CMove;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.BandwidthManager;
+import org.weasis.dicom.param.BandwidthManager.TrafficClass;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.tool.AdaptiveRetrieve.FileWriterHandler;
+
+/**
+ * Retrieves the upcoming studies (and their priors) into a local cache before they are opened.
+ *
+ * <p>The requests are retrieved in priority order by a limited number of concurrent associations,
+ * with C-GET by default (see {@link #setRetrieveStrategy(RetrieveStrategy)}). The retrievals are
+ * {@link TrafficClass#BACKGROUND} transfers: the received datasets share the token bucket of the
+ * called node, which is slowed down while interactive transfers are running. Each study is stored
+ * in its own directory, the least recently used studies are deleted when the cache exceeds the
+ * disk quota, except the studies pinned by a reader.
+ *
+ * <p>A study is retrieved into a temporary directory which is renamed only when the retrieval is
+ * complete, so the cache never contains a partial study, even after a crash. The prior studies are
+ * searched by the workers when the requested study is taken from the queue.
+ */
+public class PrefetchScheduler implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchScheduler.class);
+
+  public static final int PRIORITY_HIGH = 10;
+  public static final int PRIORITY_NORMAL = 5;
+  public static final int PRIORITY_PRIOR = 1;
+
+  // Cannot be a Study Instance UID, the directory is ignored when loading the cache
+  private static final String TMP_DIR = ".tmp";
+
+  public static class Request {
+    private final String studyInstanceUID;
+    private final String patientID;
+    private final int priority;
+    private final int maxPriors;
+    private final long sequence;
+
+    Request(String studyInstanceUID, String patientID, int priority, int maxPriors, long sequence) {
+      this.studyInstanceUID = studyInstanceUID;
+      this.patientID = patientID;
+      this.priority = priority;
+      this.maxPriors = maxPriors;
+      this.sequence = sequence;
+    }
+
+    public String getStudyInstanceUID() {
+      return studyInstanceUID;
+    }
+
+    public String getPatientID() {
+      return patientID;
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+  }
+
+  /** Retrieves a study into a directory of the cache. */
+  @FunctionalInterface
+  public interface RetrieveStrategy {
+
+    /**
+     * @param params the advanced parameters of the scheduler, with the background traffic class
+     * @param callingNode the calling DICOM node configuration
+     * @param calledNode the archive providing the studies
+     * @param outputDir the temporary directory of the study
+     * @param keys the matching keys of the study
+     * @return the state of the retrieval, only a success status adds the study to the cache
+     */
+    DicomState retrieve(
+        AdvancedParams params,
+        DicomNode callingNode,
+        DicomNode calledNode,
+        File outputDir,
+        DicomParam... keys);
+  }
+
+  /** Retrieve the studies with C-GET */
+  public static final RetrieveStrategy C_GET =
+      (params, callingNode, calledNode, outputDir, keys) ->
+          CGet.process(params, callingNode, calledNode, null, outputDir, keys);
+
+  /**
+   * The storage SCP listens on the port of the destination during each retrieval, so the scheduler
+   * must have a concurrency of 1.
+   *
+   * @param destinationNode the node of the embedded storage SCP, which must be known by the archive
+   * @return the strategy retrieving the studies with C-MOVE
+   */
+  public static RetrieveStrategy cmove(DicomNode destinationNode) {
+    Objects.requireNonNull(destinationNode);
+    return (params, callingNode, calledNode, outputDir, keys) ->
+        CMove.process(
+            params,
+            callingNode,
+            calledNode,
+            destinationNode,
+            null,
+            new FileWriterHandler(outputDir),
+            keys);
+  }
+
+  private static class CacheEntry {
+    private final File directory;
+    private final long size;
+    // Number of readers preventing the eviction, guarded by the cache lock
+    private int pins;
+
+    CacheEntry(File directory, long size) {
+      this.directory = directory;
+      this.size = size;
+    }
+  }
+
+  private final AdvancedParams params;
+  private final DicomNode callingNode;
+  private final DicomNode calledNode;
+  private final File cacheDir;
+  private final long diskQuota;
+  private final int maxConcurrency;
+
+  private final PriorityBlockingQueue<Request> queue;
+  private final Set<String> pending = new HashSet<>();
+  // Access order for the LRU eviction
+  private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(64, 0.75f, true);
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile RetrieveStrategy retrieveStrategy = C_GET;
+  private long cacheSize;
+  private ExecutorService executor;
+
+  /**
+   * @param params optional advanced parameters (proxy, authentication, connection and TLS). The
+   *     traffic class is set to {@link TrafficClass#BACKGROUND}.
+   * @param callingNode the calling DICOM node configuration
+   * @param calledNode the archive providing the studies
+   * @param cacheDir the directory of the cache, one sub-directory per study
+   * @param diskQuota the maximum size in bytes of the cache
+   * @param maxConcurrency the maximum number of simultaneous retrievals
+   * @param bandwidth the maximum throughput in bytes per second of the background transfers from
+   *     the called node, 0 to keep the rate of the bandwidth manager of the parameters
+   */
+  public PrefetchScheduler(
+      AdvancedParams params,
+      DicomNode callingNode,
+      DicomNode calledNode,
+      File cacheDir,
+      long diskQuota,
+      int maxConcurrency,
+      long bandwidth) {
+    this.params = params == null ? new AdvancedParams() : params;
+    this.callingNode = Objects.requireNonNull(callingNode);
+    this.calledNode = Objects.requireNonNull(calledNode);
+    this.cacheDir = Objects.requireNonNull(cacheDir);
+    this.diskQuota = diskQuota;
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.params.setTrafficClass(TrafficClass.BACKGROUND);
+    if (bandwidth > 0) {
+      BandwidthManager manager = this.params.getBandwidthManager();
+      if (manager == null) {
+        manager = new BandwidthManager();
+        this.params.setBandwidthManager(manager);
+      }
+      manager.setRate(
+          BandwidthManager.getDestination(calledNode), TrafficClass.BACKGROUND, bandwidth);
+    }
+    this.queue =
+        new PriorityBlockingQueue<>(
+            64,
+            Comparator.comparingInt((Request r) -> -r.priority).thenComparingLong(r -> r.sequence));
+    loadCache();
+  }
+
+  private void loadCache() {
+    // Remove the studies whose retrieval has been interrupted
+    delete(new File(cacheDir, TMP_DIR));
+    File[] dirs = cacheDir.listFiles(f -> f.isDirectory() && !f.getName().equals(TMP_DIR));
+    if (dirs == null) {
+      return;
+    }
+    // The oldest directories are the first to be evicted
+    Arrays.sort(dirs, Comparator.comparingLong(File::lastModified));
+    synchronized (cache) {
+      for (File dir : dirs) {
+        long size = getSize(dir);
+        cache.put(dir.getName(), new CacheEntry(dir, size));
+        cacheSize += size;
+      }
+    }
+  }
+
+  /** @param retrieveStrategy the retrieval of the studies, the default value is {@link #C_GET} */
+  public void setRetrieveStrategy(RetrieveStrategy retrieveStrategy) {
+    this.retrieveStrategy = retrieveStrategy == null ? C_GET : retrieveStrategy;
+  }
+
+  public synchronized void start() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(maxConcurrency);
+      for (int i = 0; i < maxConcurrency; i++) {
+        executor.execute(this::processQueue);
+      }
+    }
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      // Interrupt the workers waiting for a request
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  /**
+   * Schedule the retrieval of a study. Nothing is done when the study is already in the cache or
+   * in the queue.
+   *
+   * @param studyInstanceUID the Study Instance UID
+   * @param patientID the Patient ID, required only to retrieve the priors
+   * @param priority the priority (higher first)
+   * @param maxPriors the number of the most recent prior studies of the patient to retrieve with a
+   *     lower priority. The priors are searched (C-FIND) by a worker of the scheduler.
+   */
+  public void submit(String studyInstanceUID, String patientID, int priority, int maxPriors) {
+    if (!StringUtil.hasText(studyInstanceUID) || isCached(studyInstanceUID)) {
+      return;
+    }
+    synchronized (pending) {
+      if (!pending.add(studyInstanceUID)) {
+        return;
+      }
+    }
+    queue.add(
+        new Request(studyInstanceUID, patientID, priority, maxPriors, sequence.getAndIncrement()));
+  }
+
+  private void submitPriors(Request request) {
+    if (request.maxPriors > 0 && StringUtil.hasText(request.patientID)) {
+      List<String> priors =
+          findPriors(request.patientID, request.studyInstanceUID, request.maxPriors);
+      for (String uid : priors) {
+        submit(uid, request.patientID, Math.min(request.priority, PRIORITY_PRIOR), 0);
+      }
+    }
+  }
+
+  /**
+   * Schedule the studies of worklist items in the order of the list.
+   *
+   * @param items the worklist items (see {@link ModalityWorklist})
+   * @param maxPriors the number of the most recent prior studies to retrieve for each patient
+   */
+  public void submitWorklist(List<Attributes> items, int maxPriors) {
+    for (Attributes item : items) {
+      submit(
+          item.getString(Tag.StudyInstanceUID),
+          item.getString(Tag.PatientID),
+          PRIORITY_NORMAL,
+          maxPriors);
+    }
+  }
+
+  private List<String> findPriors(String patientID, String studyInstanceUID, int maxPriors) {
+    DicomParam[] keys = {
+      new DicomParam(Tag.PatientID, patientID), CFind.StudyInstanceUID, CFind.StudyDate
+    };
+    DicomState state =
+        CFind.process(params, callingNode, calledNode, 0, QueryRetrieveLevel.STUDY, keys);
+    List<String> uids = new ArrayList<>();
+    if (state.getStatus() != Status.Success) {
+      LOGGER.warn("Cannot find the priors of {}: {}", patientID, state.getMessage());
+      return uids;
+    }
+    List<Attributes> studies = new ArrayList<>(state.getDicomRSP());
+    // Most recent first
+    studies.sort(
+        (a, b) -> b.getString(Tag.StudyDate, "").compareTo(a.getString(Tag.StudyDate, "")));
+    for (Attributes study : studies) {
+      String uid = study.getString(Tag.StudyInstanceUID);
+      if (uids.size() >= maxPriors) {
+        break;
+      }
+      if (StringUtil.hasText(uid) && !uid.equals(studyInstanceUID)) {
+        uids.add(uid);
+      }
+    }
+    return uids;
+  }
+
+  private void processQueue() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Request request = queue.take();
+        try {
+          // The priors have a lower priority, they are queued after the requested study
+          submitPriors(request);
+          if (!isCached(request.studyInstanceUID)) {
+            fetch(request);
+          }
+        } finally {
+          synchronized (pending) {
+            pending.remove(request.studyInstanceUID);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fetch(Request request) {
+    File dir = new File(cacheDir, request.studyInstanceUID);
+    File tmpDir = new File(new File(cacheDir, TMP_DIR), request.studyInstanceUID);
+    delete(tmpDir);
+    long start = System.currentTimeMillis();
+    DicomState state =
+        retrieveStrategy.retrieve(
+            params,
+            callingNode,
+            calledNode,
+            tmpDir,
+            new DicomParam(Tag.StudyInstanceUID, request.studyInstanceUID));
+    long size = getSize(tmpDir);
+    if (state.getStatus() != Status.Success) {
+      LOGGER.warn("Cannot prefetch {}: {}", request.studyInstanceUID, state.getMessage());
+      delete(tmpDir);
+      return;
+    }
+    try {
+      delete(dir);
+      Files.move(tmpDir.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.error("Cannot move {} into the prefetch cache", request.studyInstanceUID, e);
+      delete(tmpDir);
+      return;
+    }
+    LOGGER.info(
+        "Prefetched study {} ({} bytes) in {}ms",
+        request.studyInstanceUID,
+        size,
+        System.currentTimeMillis() - start);
+    synchronized (cache) {
+      CacheEntry old = cache.put(request.studyInstanceUID, new CacheEntry(dir, size));
+      cacheSize += size - (old == null ? 0 : old.size);
+      evict(request.studyInstanceUID);
+    }
+  }
+
+  private void evict(String keep) {
+    Iterator<Map.Entry<String, CacheEntry>> it = cache.entrySet().iterator();
+    while (cacheSize > diskQuota && it.hasNext()) {
+      Map.Entry<String, CacheEntry> entry = it.next();
+      if (entry.getValue().pins == 0 && !entry.getKey().equals(keep)) {
+        it.remove();
+        cacheSize -= entry.getValue().size;
+        LOGGER.debug("Evict study {} from the prefetch cache", entry.getKey());
+        delete(entry.getValue().directory);
+      }
+    }
+  }
+
+  /**
+   * @param studyInstanceUID the Study Instance UID
+   * @return the directory of the study or null when the study is not in the cache. The study
+   *     becomes the most recently used but it can be evicted by the next retrieval, use {@link
+   *     #pin(String)} to read the files.
+   */
+  public File getStudyDirectory(String studyInstanceUID) {
+    synchronized (cache) {
+      CacheEntry entry = cache.get(studyInstanceUID);
+      return entry == null ? null : entry.directory;
+    }
+  }
+
+  /**
+   * Get the directory of a study and prevent its eviction until {@link #unpin(String)} is called.
+   *
+   * @param studyInstanceUID the Study Instance UID
+   * @return the directory of the study or null when the study is not in the cache
+   */
+  public File pin(String studyInstanceUID) {
+    synchronized (cache) {
+      CacheEntry entry = cache.get(studyInstanceUID);
+      if (entry == null) {
+        return null;
+      }
+      entry.pins++;
+      return entry.directory;
+    }
+  }
+
+  /**
+   * Allow the eviction of a study pinned by {@link #pin(String)}.
+   *
+   * @param studyInstanceUID the Study Instance UID
+   */
+  public void unpin(String studyInstanceUID) {
+    synchronized (cache) {
+      CacheEntry entry = cache.get(studyInstanceUID);
+      if (entry != null && entry.pins > 0) {
+        entry.pins--;
+        // The cache may exceed the quota while the studies are pinned
+        evict(null);
+      }
+    }
+  }
+
+  public boolean isCached(String studyInstanceUID) {
+    synchronized (cache) {
+      return cache.containsKey(studyInstanceUID);
+    }
+  }
+
+  public boolean isPending(String studyInstanceUID) {
+    synchronized (pending) {
+      return pending.contains(studyInstanceUID);
+    }
+  }
+
+  /** @return the size in bytes of all the studies of the cache */
+  public long getCacheSize() {
+    synchronized (cache) {
+      return cacheSize;
+    }
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  static long getSize(File dir) {
+    AtomicLong size = new AtomicLong();
+    if (!dir.exists()) {
+      return 0;
+    }
+    try {
+      Files.walkFileTree(
+          dir.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              size.addAndGet(attrs.size());
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      LOGGER.error("Cannot get the size of {}", dir, e);
+    }
+    return size.get();
+  }
+
+  private static void delete(File dir) {
+    if (!dir.exists()) {
+      return;
+    }
+    try {
+      Files.walkFileTree(
+          dir.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+              Files.delete(file);
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+              Files.delete(d);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      LOGGER.error("Cannot delete {}", dir, e);
+    }
+  }
+}
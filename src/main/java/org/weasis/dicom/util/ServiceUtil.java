@@ -12,10 +12,17 @@ package org.weasis.dicom.util;
 import java.io.File;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSPHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
@@ -43,6 +50,62 @@ public class ServiceUtil {
     }
   }
 
+  /**
+   * Send a C-CANCEL request and abort the association when the remote node has not sent the final
+   * response after the abort delay.
+   *
+   * @param as the association of the operation
+   * @param rspHandler the response handler of the operation, null to abort without C-CANCEL
+   * @param abortDelay the time in milliseconds before aborting the association
+   */
+  public static void cancelAndAbort(Association as, DimseRSPHandler rspHandler, long abortDelay) {
+    if (as == null || !as.isReadyForDataTransfer()) {
+      return;
+    }
+    if (rspHandler != null) {
+      try {
+        rspHandler.cancel(as);
+      } catch (Exception e) {
+        LOGGER.error("Send C-CANCEL", e);
+      }
+    }
+    // Set when the final response of the cancelled operation has been received
+    AtomicBoolean completed = new AtomicBoolean(false);
+    Runnable abort =
+        () -> {
+          if (!completed.get() && as.isReadyForDataTransfer()) {
+            LOGGER.warn("Abort the association {} after cancellation", as);
+            as.abort();
+          }
+        };
+    ApplicationEntity ae = as.getApplicationEntity();
+    Device device = ae == null ? null : ae.getDevice();
+    if (rspHandler == null
+        || abortDelay <= 0
+        || device == null
+        || device.getExecutor() == null
+        || device.getScheduledExecutor() == null) {
+      abort.run();
+      return;
+    }
+    try {
+      device.execute(() -> waitForCompletion(as, completed));
+      device.schedule(abort, abortDelay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      abort.run();
+    }
+  }
+
+  private static void waitForCompletion(Association as, AtomicBoolean completed) {
+    try {
+      // Returns when the response handlers are removed, by the final response or the release
+      as.waitForOutstandingRSP();
+      completed.set(true);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   public static void forceGettingAttributes(DicomState dcmState, AutoCloseable closeable) {
     DicomProgress p = dcmState.getProgress();
     if (p != null) {
@@ -29,6 +29,7 @@ import org.dcm4che3.util.TagUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
 import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
@@ -57,6 +58,7 @@ public class StoreFromStreamSCU {
   private int nbStatusLog = 0;
   private int numberOfSuboperations = 0;
   private final DicomState state;
+  private final TokenBucket bandwidthBucket;
 
   private final RSPHandlerFactory rspHandlerFactory =
       () ->
@@ -164,6 +166,12 @@ public class StoreFromStreamSCU {
     options.configureTLS(conn, remote);
 
     setAttributes(new Attributes());
+    this.bandwidthBucket = options.getBandwidthBucket(calledNode);
+  }
+
+  /** @return the token bucket limiting the rate of the data sets or null when not limited */
+  public TokenBucket getBandwidthBucket() {
+    return bandwidthBucket;
   }
 
   public DicomNode getCallingNode() {
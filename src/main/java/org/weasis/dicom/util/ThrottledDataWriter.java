@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.PDVOutputStream;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+
+/** DataWriter limiting the rate of the C-STORE data set according to a token bucket. */
+public class ThrottledDataWriter implements DataWriter {
+
+  private final DataWriter writer;
+  private final TokenBucket bucket;
+
+  public ThrottledDataWriter(DataWriter writer, TokenBucket bucket) {
+    this.writer = Objects.requireNonNull(writer);
+    this.bucket = Objects.requireNonNull(bucket);
+  }
+
+  /**
+   * @param writer the data writer
+   * @param bucket the token bucket, can be null
+   * @return the writer unchanged when there is no bucket, otherwise a throttled writer
+   */
+  public static DataWriter wrap(DataWriter writer, TokenBucket bucket) {
+    return bucket == null ? writer : new ThrottledDataWriter(writer, bucket);
+  }
+
+  @Override
+  public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+    bucket.begin();
+    try {
+      writer.writeTo(new ThrottledPDVOutputStream(out, bucket), tsuid);
+    } finally {
+      bucket.end();
+    }
+  }
+
+  private static class ThrottledPDVOutputStream extends PDVOutputStream {
+    private final PDVOutputStream out;
+    private final TokenBucket bucket;
+
+    ThrottledPDVOutputStream(PDVOutputStream out, TokenBucket bucket) {
+      this.out = out;
+      this.bucket = bucket;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      bucket.acquire(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int offset = off;
+      int remaining = len;
+      while (remaining > 0) {
+        int n = Math.min(remaining, ThrottledOutputStream.CHUNK_SIZE);
+        bucket.acquire(n);
+        out.write(b, offset, n);
+        offset += n;
+        remaining -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    @Override
+    public void copyFrom(InputStream in, int len) throws IOException {
+      byte[] buf = new byte[ThrottledOutputStream.CHUNK_SIZE];
+      int remaining = len;
+      while (remaining > 0) {
+        int n = in.read(buf, 0, Math.min(remaining, buf.length));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        write(buf, 0, n);
+        remaining -= n;
+      }
+    }
+
+    @Override
+    public void copyFrom(InputStream in) throws IOException {
+      byte[] buf = new byte[ThrottledOutputStream.CHUNK_SIZE];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        write(buf, 0, n);
+      }
+    }
+  }
+}
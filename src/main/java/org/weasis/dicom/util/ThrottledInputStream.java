@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+
+/**
+ * Input stream limiting the rate of the bytes read according to a token bucket. Unlike {@link
+ * ThrottledOutputStream}, the stream does not count the transfer as active: the wrapped stream
+ * usually belongs to an association and the caller delimits the transfer with {@link
+ * TokenBucket#begin()} and {@link TokenBucket#end()}.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+  private final TokenBucket bucket;
+
+  public ThrottledInputStream(InputStream in, TokenBucket bucket) {
+    super(Objects.requireNonNull(in));
+    this.bucket = Objects.requireNonNull(bucket);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b >= 0) {
+      bucket.acquire(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = in.read(b, off, Math.min(len, ThrottledOutputStream.CHUNK_SIZE));
+    if (n > 0) {
+      bucket.acquire(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = in.skip(Math.min(n, ThrottledOutputStream.CHUNK_SIZE));
+    if (skipped > 0) {
+      bucket.acquire((int) skipped);
+    }
+    return skipped;
+  }
+}
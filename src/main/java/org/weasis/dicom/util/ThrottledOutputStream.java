@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+
+/**
+ * Output stream limiting the rate of the bytes written according to a token bucket. The stream is
+ * counted as an active transfer of the bucket until it is closed.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+  static final int CHUNK_SIZE = 8192;
+
+  private final TokenBucket bucket;
+  private boolean closed;
+
+  public ThrottledOutputStream(OutputStream out, TokenBucket bucket) {
+    super(Objects.requireNonNull(out));
+    this.bucket = Objects.requireNonNull(bucket);
+    bucket.begin();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    bucket.acquire(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int offset = off;
+    int remaining = len;
+    while (remaining > 0) {
+      int n = Math.min(remaining, CHUNK_SIZE);
+      bucket.acquire(n);
+      out.write(b, offset, n);
+      offset += n;
+      remaining -= n;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      bucket.end();
+    }
+    super.close();
+  }
+}
@@ -10,26 +10,51 @@
 package org.weasis.dicom.web;
 
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamResult;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.BulkData;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.io.SAXTransformer;
+import org.dcm4che3.json.JSONReader;
+import org.dcm4che3.json.JSONWriter;
 import org.dcm4che3.util.DateUtils;
 import org.dcm4che3.util.UIDUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.BandwidthManager;
+import org.weasis.dicom.param.BandwidthManager.TrafficClass;
+import org.weasis.dicom.util.ThrottledOutputStream;
+import org.weasis.dicom.util.UnclosableOutputStream;
 import org.weasis.dicom.web.Multipart.ContentType;
 import org.xml.sax.SAXException;
 
@@ -37,12 +62,137 @@ public class AbstractStowrs implements AutoCloseable {
   private static final Logger LOGGER = LoggerFactory.getLogger(AbstractStowrs.class);
   /** @see <a href="https://tools.ietf.org/html/rfc2387">multipart specifications</a> */
   protected static final String MULTIPART_BOUNDARY = "mimeTypeBoundary";
+  /** Default size of the chunks when the length of the request is unknown */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private static final String DEFLATE = "deflate";
 
   private final List<HttpURLConnection> connections;
   private final ContentType contentType;
   private final String requestURL;
   private final String agentName;
   private final Map<String, String> headers;
+  private BandwidthManager bandwidthManager;
+  private TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private boolean compression;
+  private int compressionLevel = Deflater.BEST_SPEED;
+  private volatile Boolean compressionSupported;
+  private int connectTimeout = 10000;
+  private int readTimeout = 60000;
+  private volatile MetricsListener metricsListener;
+  private final Map<HttpURLConnection, RequestMetrics> metrics = new ConcurrentHashMap<>();
+
+  /** Receives the metrics of each STOW request, possibly from several threads. */
+  public interface MetricsListener {
+    void requestCompleted(RequestMetrics metrics);
+  }
+
+  /** The timing and the throughput of a STOW request. The times are in milliseconds. */
+  public static class RequestMetrics {
+    private final String url;
+    private final long startTime;
+    private long connectTime = -1;
+    private long timeToFirstByte = -1;
+    private long totalTime = -1;
+    private long serverTime = -1;
+    private long bytesSent;
+    private int numberOfInstances = -1;
+    private int statusCode;
+
+    RequestMetrics(String url) {
+      this.url = url;
+      this.startTime = System.currentTimeMillis();
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /** @return the time when the request has been created */
+    public long getStartTime() {
+      return startTime;
+    }
+
+    /** @return the time to open the connection (including TLS handshake), -1 when unknown */
+    public long getConnectTime() {
+      return connectTime;
+    }
+
+    /** @return the time between the end of the request body and the response status line */
+    public long getTimeToFirstByte() {
+      return timeToFirstByte;
+    }
+
+    /** @return the time between the creation of the request and the response status line */
+    public long getTotalTime() {
+      return totalTime;
+    }
+
+    /**
+     * @return the processing time reported by the server in the Server-Timing header (the largest
+     *     duration), -1 when not reported
+     */
+    public long getServerTime() {
+      return serverTime;
+    }
+
+    /** @return the number of bytes of the request body written on the connection */
+    public long getBytesSent() {
+      return bytesSent;
+    }
+
+    /** @return the number of instances of the request, -1 when unknown */
+    public int getNumberOfInstances() {
+      return numberOfInstances;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /** @return the throughput of the upload in bytes per second */
+    public double getThroughput() {
+      long time = totalTime - Math.max(0, timeToFirstByte);
+      return time > 0 ? bytesSent * 1000.0 / time : 0;
+    }
+
+    @Override
+    public String toString() {
+      return MessageFormat.format(
+          "STOWRS {0} (HTTP {1}): {2} instances, {3} bytes, connect {4}ms, TTFB {5}ms,"
+              + " server {6}ms, total {7}ms",
+          url,
+          statusCode,
+          numberOfInstances,
+          bytesSent,
+          connectTime,
+          timeToFirstByte,
+          serverTime,
+          totalTime);
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    private final RequestMetrics metrics;
+
+    CountingOutputStream(OutputStream out, RequestMetrics metrics) {
+      super(out);
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      metrics.bytesSent++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      metrics.bytesSent += len;
+    }
+  }
 
   /**
    * @param requestURL the URL of the STOW service
@@ -60,7 +210,7 @@ public class AbstractStowrs implements AutoCloseable {
     this.requestURL = Objects.requireNonNull(getFinalUrl(requestURL), "requestURL cannot be null");
     this.headers = headers;
     this.agentName = agentName;
-    this.connections = new ArrayList<>();
+    this.connections = new CopyOnWriteArrayList<>();
   }
 
   private String getFinalUrl(String requestURL) {
@@ -74,7 +224,127 @@ public class AbstractStowrs implements AutoCloseable {
     return url;
   }
 
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @param chunkSize the size of the chunks when the length of the request is unknown. 0 disables
+   *     the streaming mode and the whole request is buffered in memory before being sent, which is
+   *     only required by servers not supporting the chunked transfer encoding. The compressed
+   *     requests are always sent in chunks.
+   */
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(0, chunkSize);
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /** @param connectTimeout the timeout in milliseconds to open the connection, 0 for no limit */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = Math.max(0, connectTimeout);
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * @param readTimeout the timeout in milliseconds to read the response, 0 for no limit. It must be
+   *     longer than the processing time of the server after the end of the request.
+   */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = Math.max(0, readTimeout);
+  }
+
+  /** @param metricsListener the listener receiving the metrics of each request, null to remove */
+  public void setMetricsListener(MetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  public boolean isCompression() {
+    return compression;
+  }
+
+  /**
+   * Compress the requests with the deflate content coding when the server advertises it in the
+   * Accept-Encoding header of the response to an OPTIONS request (see RFC 7694). A compressed
+   * request has no predictable length and is always sent in chunks.
+   *
+   * @param compression true to compress the requests
+   * @param level the compression level from 1 (fastest) to 9 (smallest), see {@link Deflater}
+   */
+  public void setCompression(boolean compression, int level) {
+    this.compression = compression;
+    this.compressionLevel =
+        Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * @return true when the server accepts the deflate content coding. The server is queried only
+   *     once.
+   */
+  public boolean isCompressionSupported() {
+    Boolean supported = compressionSupported;
+    if (supported == null) {
+      supported = probeCompression();
+      compressionSupported = supported;
+    }
+    return supported;
+  }
+
+  private boolean probeCompression() {
+    HttpURLConnection options = null;
+    try {
+      options = (HttpURLConnection) new URL(requestURL).openConnection();
+      options.setRequestMethod("OPTIONS");
+      options.setConnectTimeout(connectTimeout);
+      options.setReadTimeout(connectTimeout);
+      options.setRequestProperty("User-Agent", agentName == null ? "Weasis STOWRS" : agentName);
+      if (headers != null) {
+        for (Entry<String, String> element : headers.entrySet()) {
+          options.setRequestProperty(element.getKey(), element.getValue());
+        }
+      }
+      options.getResponseCode();
+      String accept = options.getHeaderField("Accept-Encoding");
+      boolean supported = accept != null && accept.toLowerCase().contains(DEFLATE);
+      LOGGER.debug("STOWRS: deflate request encoding supported by {}: {}", requestURL, supported);
+      return supported;
+    } catch (IOException e) {
+      LOGGER.debug("STOWRS: cannot query the supported encodings of {}", requestURL, e);
+      return false;
+    } finally {
+      if (options != null) {
+        releaseResponse(options);
+      }
+    }
+  }
+
+  /**
+   * Build a connection streaming the request with the chunked transfer encoding, so the memory
+   * usage does not depend on the size of the upload.
+   *
+   * @return the HTTP connection
+   * @throws IOException if the connection cannot be opened
+   */
   protected HttpURLConnection buildConnection() throws IOException {
+    return buildConnection(-1);
+  }
+
+  /**
+   * @param contentLength the exact length of the request body to stream it with a Content-Length
+   *     header, -1 when unknown to stream it in chunks
+   * @return the HTTP connection
+   * @throws IOException if the connection cannot be opened
+   */
+  protected HttpURLConnection buildConnection(long contentLength) throws IOException {
     try {
 
       URL url = new URL(requestURL);
@@ -84,8 +354,18 @@ public class AbstractStowrs implements AutoCloseable {
       httpPost.setDoOutput(true); // indicates POST method
       httpPost.setDoInput(true);
       httpPost.setRequestMethod("POST");
-      httpPost.setConnectTimeout(10000);
-      httpPost.setReadTimeout(60000);
+      httpPost.setConnectTimeout(connectTimeout);
+      httpPost.setReadTimeout(readTimeout);
+      boolean deflate = compression && isCompressionSupported();
+      if (deflate) {
+        httpPost.setRequestProperty("Content-Encoding", DEFLATE);
+        // The compressed length is unknown, never buffer the whole request (0 is the default size)
+        httpPost.setChunkedStreamingMode(chunkSize);
+      } else if (contentLength >= 0) {
+        httpPost.setFixedLengthStreamingMode(contentLength);
+      } else if (chunkSize > 0) {
+        httpPost.setChunkedStreamingMode(chunkSize);
+      }
       httpPost.setRequestProperty(
           "Content-Type", //$NON-NLS-1$
           Multipart.MULTIPART_RELATED
@@ -94,6 +374,7 @@ public class AbstractStowrs implements AutoCloseable {
               + "\"; boundary="
               + MULTIPART_BOUNDARY); //$NON-NLS-1$
       httpPost.setRequestProperty("User-Agent", agentName == null ? "Weasis STOWRS" : agentName);
+      httpPost.setRequestProperty("Accept-Encoding", Multipart.ACCEPT_ENCODING);
       httpPost.setRequestProperty(
           "Accept",
           contentType == ContentType.JSON
@@ -106,6 +387,9 @@ public class AbstractStowrs implements AutoCloseable {
         }
       }
       connections.add(httpPost);
+      if (metricsListener != null) {
+        metrics.put(httpPost, new RequestMetrics(requestURL));
+      }
       return httpPost;
 
     } catch (IOException e) {
@@ -118,6 +402,59 @@ public class AbstractStowrs implements AutoCloseable {
     }
   }
 
+  /**
+   * Limit the rate of the requests. The STOW requests share the token bucket of the server with the
+   * other transfers of the same traffic class.
+   *
+   * @param bandwidthManager the bandwidth manager, null for no limit
+   * @param trafficClass the traffic class of the requests
+   */
+  public void setBandwidthManager(BandwidthManager bandwidthManager, TrafficClass trafficClass) {
+    this.bandwidthManager = bandwidthManager;
+    this.trafficClass = trafficClass == null ? TrafficClass.INTERACTIVE : trafficClass;
+  }
+
+  /**
+   * @param httpPost the HTTP connection
+   * @return the output stream of the request, throttled when a bandwidth manager is set and
+   *     compressed when the request has the deflate content coding. The stream must be closed to
+   *     complete the request.
+   * @throws IOException if the output stream cannot be created
+   */
+  protected OutputStream getOutputStream(HttpURLConnection httpPost) throws IOException {
+    // The request properties are not readable once connected
+    boolean deflate = DEFLATE.equals(httpPost.getRequestProperty("Content-Encoding"));
+    RequestMetrics m = metrics.get(httpPost);
+    OutputStream out;
+    if (m == null) {
+      out = httpPost.getOutputStream();
+    } else {
+      // Opening the output stream connects to the server
+      long start = System.currentTimeMillis();
+      out = new CountingOutputStream(httpPost.getOutputStream(), m);
+      m.connectTime = System.currentTimeMillis() - start;
+    }
+    if (bandwidthManager != null) {
+      String destination = BandwidthManager.getDestination(requestURL);
+      out = new ThrottledOutputStream(out, bandwidthManager.getBucket(destination, trafficClass));
+    }
+    if (deflate) {
+      Deflater deflater = new Deflater(compressionLevel);
+      out =
+          new DeflaterOutputStream(out, deflater, DEFAULT_CHUNK_SIZE) {
+            @Override
+            public void close() throws IOException {
+              try {
+                super.close();
+              } finally {
+                deflater.end();
+              }
+            }
+          };
+    }
+    return out;
+  }
+
   private void endMarkers(DataOutputStream out) throws IOException {
     // Final part segment
     out.write(Multipart.Separator.BOUNDARY.getType());
@@ -127,6 +464,23 @@ public class AbstractStowrs implements AutoCloseable {
     out.close();
   }
 
+  /** @return the number of bytes written by {@link #writeContentMarkers(DataOutputStream)} */
+  protected long getContentMarkersLength() {
+    return Multipart.Separator.BOUNDARY.getType().length
+        + MULTIPART_BOUNDARY.length()
+        + Multipart.Separator.FIELD.getType().length
+        + "Content-Type: ".length() // $NON-NLS-1$
+        + contentType.toString().length()
+        + Multipart.Separator.HEADER.getType().length;
+  }
+
+  /** @return the number of bytes of the final boundary of the request */
+  protected static long getEndMarkersLength() {
+    return Multipart.Separator.BOUNDARY.getType().length
+        + MULTIPART_BOUNDARY.length()
+        + Multipart.Separator.STREAM.getType().length;
+  }
+
   protected void writeContentMarkers(DataOutputStream out) throws IOException {
     out.write(Multipart.Separator.BOUNDARY.getType());
     out.writeBytes(MULTIPART_BOUNDARY);
@@ -136,28 +490,123 @@ public class AbstractStowrs implements AutoCloseable {
     out.write(Multipart.Separator.HEADER.getType());
   }
 
+  /**
+   * Write the metadata part encoded in JSON or XML according to the content type. The metadata are
+   * encoded directly into the request without intermediate buffer.
+   *
+   * @param out the output stream of the request
+   * @param metadata the metadata, the bulk data are referenced by their URI
+   * @throws IOException if the metadata cannot be written
+   */
+  protected void writeMetadata(DataOutputStream out, Attributes metadata) throws IOException {
+    writeContentMarkers(out);
+    // The writers close their stream, the request must remain open
+    OutputStream stream = new UnclosableOutputStream(out);
+    if (contentType == ContentType.JSON) {
+      try (JsonGenerator gen = Json.createGenerator(stream)) {
+        new JSONWriter(gen).write(metadata);
+      }
+    } else {
+      try {
+        SAXTransformer.getSAXWriter(new StreamResult(stream)).write(metadata);
+      } catch (TransformerConfigurationException | SAXException e) {
+        throw new IOException("Cannot encode the metadata in XML", e);
+      }
+      stream.flush();
+    }
+  }
+
+  /**
+   * Write a bulk data part. The content of the file is transferred from its file channel.
+   *
+   * @param out the output stream of the request
+   * @param mimeType the media type of the bulk data
+   * @param contentLocation the URI referencing the bulk data in the metadata
+   * @param bulkDataFile the file of the bulk data
+   * @throws IOException if the bulk data cannot be written
+   */
+  protected void writeBulkData(
+      DataOutputStream out, String mimeType, String contentLocation, Path bulkDataFile)
+      throws IOException {
+    out.write(Multipart.Separator.BOUNDARY.getType());
+    out.writeBytes(MULTIPART_BOUNDARY);
+    byte[] fsep = Multipart.Separator.FIELD.getType();
+    out.write(fsep);
+    out.writeBytes("Content-Type: "); // $NON-NLS-1$
+    out.writeBytes(mimeType);
+    out.write(fsep);
+    out.writeBytes("Content-Location: "); // $NON-NLS-1$
+    out.writeBytes(contentLocation);
+    out.write(Multipart.Separator.HEADER.getType());
+
+    try (FileChannel channel = FileChannel.open(bulkDataFile, StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = 0;
+      long size = channel.size();
+      while (position < size) {
+        position += channel.transferTo(position, size - position, target);
+      }
+    }
+  }
+
   protected void writeEndMarkers(HttpURLConnection httpPost, DataOutputStream out, String iuid)
       throws IOException {
     endMarkers(out);
 
+    long end = System.currentTimeMillis();
     int code = httpPost.getResponseCode();
+    notifyMetrics(httpPost, code, end, 1);
     if (code == HttpURLConnection.HTTP_OK) {
       LOGGER.info(
           "STOWRS server response message: HTTP Status-Code 200: OK for {}", iuid); // $NON-NLS-1$
     } else {
       throw new HttpServerErrorException(
-          String.format("STOWRS server response message: %s", httpPost.getResponseMessage()));
+          String.format("STOWRS server response message: %s", httpPost.getResponseMessage()),
+          code);
     }
   }
 
+  /**
+   * Write the final boundary and read the response.
+   *
+   * @param httpPost the HTTP connection
+   * @param out the stream of the request
+   * @return null when all the instances are stored (HTTP 200), otherwise the Store Instances
+   *     Response with the failed instances
+   * @throws IOException if the request fails or the server rejects the request
+   */
   protected Attributes writeEndMarkers(HttpURLConnection httpPost, DataOutputStream out)
       throws IOException, ParserConfigurationException, SAXException {
+    Attributes response = readEndResponse(httpPost, out);
+    return httpPost.getResponseCode() == HttpURLConnection.HTTP_OK ? null : response;
+  }
+
+  /**
+   * Write the final boundary and read the response, including the stored instances.
+   *
+   * @param httpPost the HTTP connection
+   * @param out the stream of the request
+   * @return the Store Instances Response (stored and failed instances), null when the server
+   *     returns HTTP 200 without content
+   * @throws IOException if the request fails or the server rejects the request
+   */
+  protected Attributes readEndResponse(HttpURLConnection httpPost, DataOutputStream out)
+      throws IOException, ParserConfigurationException, SAXException {
     endMarkers(out);
 
+    long end = System.currentTimeMillis();
     int code = httpPost.getResponseCode();
+    notifyMetrics(httpPost, code, end, -1);
     if (code == HttpURLConnection.HTTP_OK) {
       LOGGER.info(
           "STOWRS server response message: HTTP Status-Code 200: OK for all the image set"); //$NON-NLS-1$
+      try {
+        return readResponse(httpPost, httpPost.getInputStream());
+      } catch (Exception e) {
+        // All the instances are stored, the content of the response is optional
+        LOGGER.debug("Cannot read the STOWRS response", e);
+        return null;
+      }
     } else if (code == HttpURLConnection.HTTP_ACCEPTED || code == HttpURLConnection.HTTP_CONFLICT) {
       LOGGER.warn(
           "STOWRS server response message: HTTP Status-Code {}: {}",
@@ -165,14 +614,96 @@ public class AbstractStowrs implements AutoCloseable {
           httpPost.getResponseMessage()); // $NON-NLS-1$
       // See
       // http://dicom.nema.org/medical/dicom/current/output/chtml/part18/sect_6.6.html#table_6.6.1-1
-      return SAXReader.parse(httpPost.getInputStream());
+      InputStream in = code == HttpURLConnection.HTTP_CONFLICT ? httpPost.getErrorStream() : null;
+      return readResponse(httpPost, in == null ? httpPost.getInputStream() : in);
     } else {
       throw new HttpServerErrorException(
           String.format(
               "STOWRS server response message: HTTP Status-Code %d: %s",
-              code, httpPost.getResponseMessage()));
+              code, httpPost.getResponseMessage()),
+          code);
+    }
+  }
+
+  /**
+   * @param httpPost the HTTP connection
+   * @param numberOfInstances the number of instances of the request, reported in the metrics
+   */
+  protected void setNumberOfInstances(HttpURLConnection httpPost, int numberOfInstances) {
+    RequestMetrics m = metrics.get(httpPost);
+    if (m != null) {
+      m.numberOfInstances = numberOfInstances;
     }
-    return null;
+  }
+
+  private void notifyMetrics(HttpURLConnection httpPost, int code, long end, int instances) {
+    RequestMetrics m = metrics.remove(httpPost);
+    MetricsListener listener = metricsListener;
+    if (m == null || listener == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    m.statusCode = code;
+    m.timeToFirstByte = now - end;
+    m.totalTime = now - m.startTime;
+    m.serverTime = getServerTime(httpPost.getHeaderField("Server-Timing"));
+    if (m.numberOfInstances < 0) {
+      m.numberOfInstances = instances;
+    }
+    LOGGER.debug("{}", m);
+    listener.requestCompleted(m);
+  }
+
+  /**
+   * @param serverTiming the value of the Server-Timing header (e.g. "db;dur=53, app;dur=47.2")
+   * @return the largest duration in milliseconds, -1 when there is no duration
+   */
+  static long getServerTime(String serverTiming) {
+    long max = -1;
+    if (serverTiming != null) {
+      for (String metric : serverTiming.split(",")) {
+        for (String param : metric.split(";")) {
+          String p = param.trim();
+          if (p.startsWith("dur=")) {
+            try {
+              max = Math.max(max, Math.round(Double.parseDouble(p.substring(4).replace("\"", ""))));
+            } catch (NumberFormatException e) {
+              LOGGER.debug("Invalid Server-Timing duration: {}", p);
+            }
+          }
+        }
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Read the Store Instances Response Module (ReferencedSOPSequence and FailedSOPSequence) in XML
+   * or JSON according to the Content-Type of the response.
+   *
+   * @param httpPost the HTTP connection
+   * @param in the content of the response
+   * @return the response attributes or null when the response has no content
+   */
+  protected static Attributes readResponse(HttpURLConnection httpPost, InputStream in)
+      throws IOException, ParserConfigurationException, SAXException {
+    if (in == null || httpPost.getContentLengthLong() == 0) {
+      return null;
+    }
+    PushbackInputStream stream = new PushbackInputStream(Multipart.decodeContent(httpPost, in), 1);
+    int first = stream.read();
+    if (first == -1) {
+      return null;
+    }
+    stream.unread(first);
+    String type = httpPost.getContentType();
+    if (type != null && type.toLowerCase().contains("json")) {
+      JSONReader reader =
+          new JSONReader(
+              Json.createParser(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+      return reader.readDataset(null);
+    }
+    return SAXReader.parse(stream);
   }
 
   protected static void ensureUID(Attributes attrs, int tag) {
@@ -217,12 +748,45 @@ public class AbstractStowrs implements AutoCloseable {
 
   protected void removeConnection(HttpURLConnection httpPost) {
     connections.remove(httpPost);
+    metrics.remove(httpPost);
+  }
+
+  /**
+   * Read the remaining response and close the streams without disconnecting, so the underlying
+   * socket returns to the keep-alive cache of HttpURLConnection and is reused by the next request.
+   *
+   * @param httpPost the HTTP connection
+   */
+  protected void releaseConnection(HttpURLConnection httpPost) {
+    removeConnection(httpPost);
+    releaseResponse(httpPost);
+  }
+
+  private static void releaseResponse(HttpURLConnection httpPost) {
+    try {
+      InputStream in =
+          httpPost.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+              ? httpPost.getErrorStream()
+              : httpPost.getInputStream();
+      if (in != null) {
+        try (InputStream stream = in) {
+          byte[] buf = new byte[4096];
+          while (stream.read(buf) != -1) {
+            // Discard the remaining content
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Cannot drain the response, the connection is closed", e);
+      httpPost.disconnect();
+    }
   }
 
   @Override
   public void close() throws Exception {
     connections.forEach(HttpURLConnection::disconnect);
     connections.clear();
+    metrics.clear();
   }
 
   public ContentType getContentType() {
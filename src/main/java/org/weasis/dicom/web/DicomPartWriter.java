@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.util.AttributesFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.core.util.StringUtil;
+
+/**
+ * Multipart handler writing each application/dicom part into a file. The part is transferred from
+ * the channel of the part into the file channel of a temporary file, then only the header of the
+ * file is parsed to build the final path with the storage pattern (see {@link AttributesFormat}).
+ * The other parts are skipped.
+ *
+ * <p>The handler can be shared by several multipart responses parsed concurrently.
+ */
+public class DicomPartWriter implements Multipart.Handler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DicomPartWriter.class);
+
+  private static final String TMP_DIR = "tmp";
+
+  private final File storageDir;
+  private final AttributesFormat filePathFormat;
+  private final boolean parseDataset;
+  private final Map<String, Path> index = Collections.synchronizedMap(new LinkedHashMap<>());
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /** @param storageDir the base path of storage folder, the file name is the SOP Instance UID */
+  public DicomPartWriter(File storageDir) {
+    this(storageDir, null);
+  }
+
+  /**
+   * @param storageDir the base path of storage folder
+   * @param filePathPattern the pattern of the file path relative to the storage folder (e.g.
+   *     "{0020000D}/{0020000E}/{00080018}.dcm"). When null, the file name is the SOP Instance UID.
+   */
+  public DicomPartWriter(File storageDir, String filePathPattern) {
+    this.storageDir = Objects.requireNonNull(storageDir);
+    if (StringUtil.hasText(filePathPattern)) {
+      this.filePathFormat = new AttributesFormat(filePathPattern);
+      this.parseDataset = hasDatasetAttributes(filePathPattern);
+    } else {
+      this.filePathFormat = null;
+      this.parseDataset = false;
+    }
+  }
+
+  private static boolean hasDatasetAttributes(String pattern) {
+    // The file meta information is always read, the dataset only when required by the pattern
+    Matcher regexMatcher = Pattern.compile("\\{(.*?)\\}").matcher(pattern);
+    while (regexMatcher.find()) {
+      if (!regexMatcher.group(1).startsWith("0002")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void readBodyPart(
+      MultipartReader multipartReader, int partNumber, Map<String, String> headers)
+      throws IOException {
+    String type = getContentType(headers);
+    if (type != null && !isDicom(type)) {
+      LOGGER.debug("Skip the part {} of type {}", partNumber, type);
+      multipartReader.newPartInputStream().close();
+      return;
+    }
+
+    File tmpDir = new File(storageDir, TMP_DIR);
+    tmpDir.mkdirs();
+    Path tmp = Files.createTempFile(tmpDir.toPath(), "part", ".dcm");
+    try {
+      try (MultipartReader.PartInputStream part = multipartReader.newPartInputStream();
+          FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        long position = 0;
+        long n;
+        while ((n = channel.transferFrom(part, position, Long.MAX_VALUE - position)) > 0) {
+          position += n;
+        }
+      }
+      Attributes attrs = parse(tmp);
+      String iuid = attrs.getString(Tag.MediaStorageSOPInstanceUID);
+      String filename = filePathFormat == null ? iuid : filePathFormat.format(attrs);
+      Path dest = getDestination(filename);
+      Files.createDirectories(dest.getParent());
+      Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING);
+      index.put(iuid, dest);
+    } catch (MultipartStreamException e) {
+      // The multipart stream is broken, the next parts cannot be read
+      FileUtil.delete(tmp.toFile());
+      throw e;
+    } catch (Exception e) {
+      FileUtil.delete(tmp.toFile());
+      failures.incrementAndGet();
+      LOGGER.error("Cannot write the part {}", partNumber, e);
+    }
+  }
+
+  private Path getDestination(String filename) throws IOException {
+    // The path comes from the received attributes, it must not escape from the storage folder
+    Path base = storageDir.toPath().toAbsolutePath().normalize();
+    Path dest = base.resolve(filename).normalize();
+    if (!dest.startsWith(base) || dest.equals(base) || dest.startsWith(base.resolve(TMP_DIR))) {
+      throw new IOException("Invalid file path outside the storage folder: " + filename);
+    }
+    return dest;
+  }
+
+  private static String getContentType(Map<String, String> headers) {
+    for (Entry<String, String> entry : headers.entrySet()) {
+      if (Multipart.CONTENT_TYPE.equalsIgnoreCase(entry.getKey())) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static boolean isDicom(String contentType) {
+    String type = contentType.trim().toLowerCase(Locale.ENGLISH);
+    int end = type.indexOf(';');
+    if (end >= 0) {
+      type = type.substring(0, end).trim();
+    }
+    return Multipart.ContentType.DICOM.getType().equals(type);
+  }
+
+  private Attributes parse(Path file) throws IOException {
+    try (DicomInputStream in = new DicomInputStream(file.toFile())) {
+      Attributes fmi = in.readFileMetaInformation();
+      if (fmi == null || !fmi.containsValue(Tag.MediaStorageSOPInstanceUID)) {
+        throw new IOException("The part has no file meta information");
+      }
+      if (!parseDataset) {
+        return fmi;
+      }
+      in.setIncludeBulkData(IncludeBulkData.NO);
+      Attributes attrs = in.readDataset(-1, Tag.PixelData);
+      attrs.addAll(fmi);
+      return attrs;
+    }
+  }
+
+  /** @return the path of each stored instance by SOP Instance UID, in the order of reception */
+  public Map<String, Path> getIndex() {
+    synchronized (index) {
+      return new LinkedHashMap<>(index);
+    }
+  }
+
+  /** @return the number of DICOM parts which cannot be written */
+  public int getNumberOfFailures() {
+    return failures.get();
+  }
+
+  /** Clear the index and the number of failures, the files are kept. */
+  public void reset() {
+    index.clear();
+    failures.set(0);
+  }
+}
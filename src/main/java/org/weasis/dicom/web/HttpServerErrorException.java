@@ -13,11 +13,28 @@ public class HttpServerErrorException extends RuntimeException {
 
   private static final long serialVersionUID = 1253673551984892314L;
 
+  private final int statusCode;
+
   public HttpServerErrorException(String message) {
+    this(message, -1);
+  }
+
+  /**
+   * @param message the detail message
+   * @param statusCode the HTTP status code of the response
+   */
+  public HttpServerErrorException(String message, int statusCode) {
     super(message);
+    this.statusCode = statusCode;
   }
 
   public HttpServerErrorException(String message, Throwable cause) {
     super(message, cause);
+    this.statusCode = -1;
+  }
+
+  /** @return the HTTP status code of the response, -1 when unknown */
+  public int getStatusCode() {
+    return statusCode;
   }
 }
@@ -11,10 +11,15 @@ package org.weasis.dicom.web;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import org.weasis.core.util.StringUtil;
 
 public class Multipart {
@@ -25,6 +30,8 @@ public class Multipart {
 
   public static final String CONTENT_TYPE = "Content-Type";
   public static final String MULTIPART_RELATED = "multipart/related";
+  /** Value of the Accept-Encoding HTTP property for the content codings decoded by this class */
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
 
   /** Carriage return, '\r', 0x0D, 13 in decimal */
   public static final byte CR = 0x0D;
@@ -82,23 +89,86 @@ public class Multipart {
 
   public static void parseMultipartRelated(
       URLConnection urlConnection, InputStream inputStream, Handler handler) throws IOException {
+    parseMultipartRelated(urlConnection, inputStream, handler, MultipartReader.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param urlConnection the connection providing the Content-Type with the boundary
+   * @param inputStream the multipart content
+   * @param handler the handler receiving each part
+   * @param bufferSize the size of the read buffer in bytes
+   * @throws IOException if the content cannot be read
+   */
+  public static void parseMultipartRelated(
+      URLConnection urlConnection, InputStream inputStream, Handler handler, int bufferSize)
+      throws IOException {
     String contentType = urlConnection.getContentType();
     byte[] boundary = getBoundary(contentType, MULTIPART_RELATED);
     if (boundary == null) {
       throw new IllegalStateException("Cannot find boundary of multipart");
     }
-    MultipartReader multipartReader = new MultipartReader(inputStream, boundary);
+    InputStream in = decodeContent(urlConnection, inputStream);
+    MultipartReader multipartReader = new MultipartReader(in, boundary, bufferSize);
     multipartReader.setHeaderEncoding("UTF8");
 
     int k = 1;
     boolean nextPart = multipartReader.skipFirstBoundary();
     while (nextPart) {
-      String headersString = multipartReader.readHeaders();
-      handler.readBodyPart(multipartReader, k++, getHeaders(headersString));
+      handler.readBodyPart(multipartReader, k++, multipartReader.readHeaderFields());
       nextPart = multipartReader.readBoundary();
     }
   }
 
+  /**
+   * Decode the content according to the Content-Encoding of the response (gzip or deflate).
+   *
+   * @param urlConnection the connection providing the Content-Encoding
+   * @param inputStream the content of the response
+   * @return the decoded content or the same stream when the content is not encoded
+   * @throws IOException if the content cannot be read
+   */
+  public static InputStream decodeContent(URLConnection urlConnection, InputStream inputStream)
+      throws IOException {
+    String encoding = urlConnection.getContentEncoding();
+    if (inputStream == null || !StringUtil.hasText(encoding)) {
+      return inputStream;
+    }
+    encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+    if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+      return new GZIPInputStream(inputStream);
+    }
+    if ("deflate".equals(encoding)) {
+      // Some servers send raw deflate data instead of the zlib format
+      PushbackInputStream in = new PushbackInputStream(inputStream, 2);
+      byte[] header = new byte[2];
+      int n = 0;
+      // A read can return a single byte, the header must be complete before checking it
+      while (n < header.length) {
+        int r = in.read(header, n, header.length - n);
+        if (r < 0) {
+          break;
+        }
+        n += r;
+      }
+      if (n == 0) {
+        return in;
+      }
+      in.unread(header, 0, n);
+      return new InflaterInputStream(in, new Inflater(!isZlibHeader(header, n)));
+    }
+    if (!"identity".equals(encoding)) {
+      throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+    return inputStream;
+  }
+
+  private static boolean isZlibHeader(byte[] header, int length) {
+    // Compression method 8 and the check bits making the 16-bit header a multiple of 31
+    return length == 2
+        && (header[0] & 0x0F) == 8
+        && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+  }
+
   protected static Map<String, String> getHeaders(String header) {
     final Map<String, String> headers = new HashMap<>();
     int length = header.length();
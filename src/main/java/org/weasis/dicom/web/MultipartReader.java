@@ -9,10 +9,18 @@
  */
 package org.weasis.dicom.web;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,30 +28,40 @@ public class MultipartReader {
   private static final Logger LOGGER = LoggerFactory.getLogger(MultipartReader.class);
 
   public static final int HEADER_PART_MAX_SIZE = 16384;
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
 
   private final InputStream inputStream;
   private final byte[] boundary;
   private String headerEncoding;
   private int currentBoundaryLength;
+  // Bad character shift table of the Boyer-Moore-Horspool search for the current boundary
+  private final int[] skipTable = new int[256];
   private final byte[] buffer;
   private final int bufferSize;
   private int headBuffer = 0;
   private int tailBuffer = 0;
+  private byte[] headerBytes = new byte[256];
+  private int headerLength;
+  private final HeaderFields headerFields = new HeaderFields();
 
   /**
    * @param inputStream the <code>InputStream</code> of a multipart exchange.
    * @param boundary the mark to delimit the parts of a multipart stream.
    */
   public MultipartReader(InputStream input, byte[] boundary) {
-    this(input, boundary, 4096);
+    this(input, boundary, DEFAULT_BUFFER_SIZE);
   }
 
   /**
    * @param inputStream the <code>InputStream</code> of a multipart exchange.
    * @param boundary the mark to delimit the parts of a multipart stream.
-   * @param bufferSize the size of the buffer in bytes. Default is 4096.
+   * @param bufferSize the size of the buffer in bytes. Default is 65536. A large buffer reduces the
+   *     number of reads and boundary searches for large parts.
    */
   public MultipartReader(InputStream input, byte[] boundary, int bufSize) {
+    if (bufSize < 2 * (boundary.length + Multipart.Separator.BOUNDARY.getType().length)) {
+      throw new IllegalArgumentException("The buffer size is too small for the boundary");
+    }
     this.inputStream = input;
     this.bufferSize = bufSize;
     this.buffer = new byte[bufSize];
@@ -52,6 +70,15 @@ public class MultipartReader {
     this.currentBoundaryLength = boundary.length + blength;
     System.arraycopy(Multipart.Separator.BOUNDARY.getType(), 0, this.boundary, 0, blength);
     System.arraycopy(boundary, 0, this.boundary, blength, boundary.length);
+    updateSkipTable();
+  }
+
+  private void updateSkipTable() {
+    int last = currentBoundaryLength - 1;
+    Arrays.fill(skipTable, currentBoundaryLength);
+    for (int i = 0; i < last; i++) {
+      skipTable[boundary[i] & 0xFF] = last - i;
+    }
   }
 
   public String getHeaderEncoding() {
@@ -64,11 +91,7 @@ public class MultipartReader {
 
   public byte readByte() throws IOException {
     if (headBuffer == tailBuffer) {
-      headBuffer = 0;
-      tailBuffer = inputStream.read(buffer, headBuffer, bufferSize);
-      if (tailBuffer == -1) {
-        throw new MultipartStreamException("No more data is available");
-      }
+      fillBuffer();
     }
     return buffer[headBuffer++];
   }
@@ -89,47 +112,124 @@ public class MultipartReader {
   }
 
   public String readHeaders() throws IOException {
-    int k = 0;
-    byte b;
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    int headerSize = 0;
-    byte[] hsep = Multipart.Separator.HEADER.getType();
-    while (k < hsep.length) {
-      b = readByte();
-      headerSize++;
-      if (headerSize > HEADER_PART_MAX_SIZE) {
-        throw new MultipartStreamException(
-            "Header content is larger than "
-                + HEADER_PART_MAX_SIZE
-                + " bytes (max size defined in reader)");
-      }
-      if (b == hsep[k]) {
-        k++;
-      } else {
-        k = 0;
+    readHeaderBytes();
+    return new String(headerBytes, 0, headerLength, getHeaderCharset());
+  }
+
+  /**
+   * Read the headers of the part and index the fields in a single pass over the bytes, without
+   * decoding the whole header block first. The values are decoded when they are requested.
+   *
+   * @return the header fields of the part. The view is reused by the reader, it is valid until the
+   *     headers of the next part are read.
+   * @throws IOException if the headers cannot be read
+   */
+  public Map<String, String> readHeaderFields() throws IOException {
+    readHeaderBytes();
+    headerFields.index(getHeaderCharset());
+    return headerFields;
+  }
+
+  private static int indexOfCRLF(byte[] b, int start, int end) {
+    for (int i = start; i < end - 1; i++) {
+      if (b[i] == Multipart.CR && b[i + 1] == Multipart.LF) {
+        return i;
       }
-      baos.write(b);
     }
+    return end;
+  }
+
+  private static String trimmed(byte[] b, int start, int end, Charset charset) {
+    int e = trimEnd(b, start, end);
+    int s = trimStart(b, start, e);
+    return new String(b, s, e - s, charset);
+  }
+
+  private static int trimStart(byte[] b, int start, int end) {
+    int s = start;
+    while (s < end && (b[s] == ' ' || b[s] == '\t')) {
+      s++;
+    }
+    return s;
+  }
 
-    String headers = null;
+  private static int trimEnd(byte[] b, int start, int end) {
+    int e = end;
+    while (e > start && (b[e - 1] == ' ' || b[e - 1] == '\t')) {
+      e--;
+    }
+    return e;
+  }
+
+  private Charset getHeaderCharset() {
     if (headerEncoding != null) {
       try {
-        headers = baos.toString(headerEncoding);
-      } catch (UnsupportedEncodingException e) {
+        return Charset.forName(headerEncoding);
+      } catch (IllegalArgumentException e) {
         LOGGER.error("Decoding header", e);
       }
     }
+    return Charset.defaultCharset();
+  }
+
+  /**
+   * Copy the header block up to the empty line (CRLFCRLF) into the reusable header buffer. The
+   * separator is searched directly in the read buffer instead of reading byte by byte.
+   */
+  private void readHeaderBytes() throws IOException {
+    byte[] hsep = Multipart.Separator.HEADER.getType();
+    headerLength = 0;
+    int k = 0;
+    while (k < hsep.length) {
+      if (headBuffer == tailBuffer) {
+        fillBuffer();
+      }
+      int start = headBuffer;
+      while (headBuffer < tailBuffer && k < hsep.length) {
+        byte b = buffer[headBuffer++];
+        if (b == hsep[k]) {
+          k++;
+        } else {
+          k = b == hsep[0] ? 1 : 0;
+        }
+        if (k == 2 && headerLength + headBuffer - start == 2) {
+          // No header field, only the empty line
+          k = hsep.length;
+        }
+      }
+      appendHeaderBytes(start, headBuffer - start);
+    }
+  }
+
+  private void appendHeaderBytes(int start, int length) throws MultipartStreamException {
+    int size = headerLength + length;
+    if (size > HEADER_PART_MAX_SIZE) {
+      throw new MultipartStreamException(
+          "Header content is larger than "
+              + HEADER_PART_MAX_SIZE
+              + " bytes (max size defined in reader)");
+    }
+    if (size > headerBytes.length) {
+      headerBytes = Arrays.copyOf(headerBytes, Math.min(HEADER_PART_MAX_SIZE, size * 2));
+    }
+    System.arraycopy(buffer, start, headerBytes, headerLength, length);
+    headerLength = size;
+  }
 
-    if (headers == null) {
-      headers = baos.toString();
+  private void fillBuffer() throws IOException {
+    headBuffer = 0;
+    tailBuffer = inputStream.read(buffer, headBuffer, bufferSize);
+    if (tailBuffer == -1) {
+      tailBuffer = 0;
+      throw new MultipartStreamException("No more data is available");
     }
-    return headers;
   }
 
   public boolean skipFirstBoundary() throws IOException {
     // Special case for the first boundary delimiter => remove CRLF
     System.arraycopy(boundary, 2, boundary, 0, boundary.length - 2);
     currentBoundaryLength = boundary.length - 2;
+    updateSkipTable();
     try {
       discardDataBeforeDelimiter();
       return readBoundary();
@@ -139,6 +239,7 @@ public class MultipartReader {
       currentBoundaryLength = boundary.length;
       boundary[0] = Multipart.CR;
       boundary[1] = Multipart.LF;
+      updateSkipTable();
     }
   }
 
@@ -175,28 +276,180 @@ public class MultipartReader {
     return -1;
   }
 
+  /**
+   * Find the boundary with the Boyer-Moore-Horspool algorithm. The last byte of the window is
+   * compared first and the window is shifted according to the skip table, so most of the data is
+   * skipped without being compared to the boundary.
+   *
+   * @return the position of the boundary in the buffer or -1 when not found
+   */
   protected int findStartingBoundaryPosition() {
-    int start;
-    int b = 0;
+    int last = currentBoundaryLength - 1;
+    byte lastByte = boundary[last];
     int end = tailBuffer - currentBoundaryLength;
-    for (start = headBuffer; start <= end && b != currentBoundaryLength; start++) {
-      start = findFirstBoundaryCharacter(start);
-      if (start == -1 || start > end) {
-        return -1;
+    int start = headBuffer;
+    while (start <= end) {
+      byte c = buffer[start + last];
+      if (c == lastByte) {
+        int b = last - 1;
+        while (b >= 0 && buffer[start + b] == boundary[b]) {
+          b--;
+        }
+        if (b < 0) {
+          return start;
+        }
       }
-      for (b = 1; b < currentBoundaryLength; b++) {
-        if (buffer[start + b] != boundary[b]) {
-          break;
+      start += skipTable[c & 0xFF];
+    }
+    return -1;
+  }
+
+  /**
+   * Stream of the content of a part. It is also a {@link ReadableByteChannel}, so the content can
+   * be written to a file with {@link java.nio.channels.FileChannel#transferFrom}.
+   */
+  /**
+   * Case-insensitive view of the header fields over the header bytes of the current part. Folded
+   * lines are unfolded and repeated fields are joined with a comma.
+   */
+  public class HeaderFields extends AbstractMap<String, String> {
+    // Name start, name end, value start and value end (including the folded lines) of each field
+    private int[] offsets = new int[32];
+    private int count;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+
+    private void index(Charset charset) {
+      this.charset = charset;
+      this.count = 0;
+      byte[] b = headerBytes;
+      int end = headerLength;
+      int pos = 0;
+      while (pos < end) {
+        int lineEnd = indexOfCRLF(b, pos, end);
+        if (lineEnd == pos) {
+          break; // Empty line, end of the headers
+        }
+        int colon = -1;
+        for (int i = pos; i < lineEnd; i++) {
+          if (b[i] == ':') {
+            colon = i;
+            break;
+          }
+        }
+        int valueEnd = lineEnd;
+        int next = lineEnd + 2;
+        // The continuation lines start with a space or a tab
+        while (next < end && (b[next] == ' ' || b[next] == '\t')) {
+          valueEnd = indexOfCRLF(b, next, end);
+          next = valueEnd + 2;
         }
+        if (colon != -1) {
+          if (4 * count + 4 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          }
+          int k = 4 * count++;
+          offsets[k] = pos;
+          offsets[k + 1] = colon;
+          offsets[k + 2] = colon + 1;
+          offsets[k + 3] = valueEnd;
+        }
+        pos = next;
       }
     }
-    if (b == currentBoundaryLength) {
-      return start - 1;
+
+    private boolean matches(int field, String name) {
+      int start = offsets[4 * field];
+      int end = trimEnd(headerBytes, start, offsets[4 * field + 1]);
+      start = trimStart(headerBytes, start, end);
+      if (end - start != name.length()) {
+        return false;
+      }
+      for (int i = 0; i < name.length(); i++) {
+        char c = (char) (headerBytes[start + i] & 0xFF);
+        if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String getName(int field) {
+      return trimmed(
+          headerBytes, offsets[4 * field], offsets[4 * field + 1], StandardCharsets.ISO_8859_1);
+    }
+
+    private String getValue(int field) {
+      byte[] b = headerBytes;
+      int end = offsets[4 * field + 3];
+      int pos = offsets[4 * field + 2];
+      StringBuilder value = new StringBuilder();
+      while (true) {
+        int lineEnd = indexOfCRLF(b, pos, end);
+        if (value.length() > 0) {
+          value.append(' ');
+        }
+        value.append(trimmed(b, pos, lineEnd, charset));
+        if (lineEnd >= end) {
+          return value.toString();
+        }
+        pos = lineEnd + 2;
+      }
+    }
+
+    @Override
+    public String get(Object key) {
+      if (!(key instanceof String)) {
+        return null;
+      }
+      String value = null;
+      for (int i = 0; i < count; i++) {
+        if (matches(i, (String) key)) {
+          value = value == null ? getValue(i) : value + "," + getValue(i);
+        }
+      }
+      return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      if (key instanceof String) {
+        for (int i = 0; i < count; i++) {
+          if (matches(i, (String) key)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return count == 0;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      Map<String, String> fields = new LinkedHashMap<>();
+      for (int i = 0; i < count; i++) {
+        String name = getName(i);
+        if (!containsName(fields, name)) {
+          fields.put(name, get(name));
+        }
+      }
+      return Collections.unmodifiableMap(fields).entrySet();
+    }
+
+    private boolean containsName(Map<String, String> fields, String name) {
+      for (String n : fields.keySet()) {
+        if (n.equalsIgnoreCase(name)) {
+          return true;
+        }
+      }
+      return false;
     }
-    return -1;
   }
 
-  public class PartInputStream extends InputStream implements AutoCloseable {
+  public class PartInputStream extends InputStream implements ReadableByteChannel {
     private static final String STREAM_CLOSED_EX = "PartInputStream has been closed";
 
     private int position;
@@ -271,6 +524,33 @@ public class MultipartReader {
       return k;
     }
 
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (closed) {
+        throw new MultipartStreamException(STREAM_CLOSED_EX);
+      }
+      if (!dst.hasRemaining()) {
+        return 0;
+      }
+      int k = available();
+      if (k == 0) {
+        k = readInputStream();
+        if (k == 0) {
+          return -1;
+        }
+      }
+      k = Math.min(k, dst.remaining());
+      dst.put(buffer, headBuffer, k);
+      headBuffer += k;
+      total += k;
+      return k;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closed;
+    }
+
     @Override
     public int read() throws IOException {
       if (closed) {
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.json.Json;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.json.JSONReader;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.dcm4che3.util.TagUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomResultTable;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ServiceUtil;
+
+/**
+ * QIDO-RS client using the same keys and returning the same state as {@link
+ * org.weasis.dicom.op.CFind}. DicomParam with values are matching keys, DicomParam with no value
+ * are added as includefield. The JSON response is parsed as a stream, one dataset at a time.
+ *
+ * <p>When a page size is defined, the matches are requested with offset and limit. After the first
+ * page, several pages are requested concurrently until a page is not complete. The matches are
+ * always added in the order of the pages.
+ */
+public class QidoRsQuery {
+  private static final Logger LOGGER = LoggerFactory.getLogger(QidoRsQuery.class);
+
+  public static final String APPLICATION_DICOM_JSON = "application/dicom+json";
+
+  private final String serviceURL;
+  private final String agentName;
+  private final Map<String, String> headers;
+  private int pageSize;
+  private int parallelRequests = 4;
+  private boolean fuzzyMatching;
+  private int connectTimeout = 10000;
+  private int readTimeout = 60000;
+
+  /**
+   * @param serviceURL the base URL of the QIDO-RS service (without "/studies")
+   * @param agentName the value of the User-Agent HTTP property
+   * @param headers some additional header properties (e.g. authentication)
+   */
+  public QidoRsQuery(String serviceURL, String agentName, Map<String, String> headers) {
+    String url = Objects.requireNonNull(serviceURL, "serviceURL cannot be null").trim();
+    if (url.endsWith("/")) {
+      url = url.substring(0, url.length() - 1);
+    }
+    if (url.endsWith("/studies")) {
+      url = url.substring(0, url.length() - 8);
+    }
+    this.serviceURL = url;
+    this.agentName = agentName;
+    this.headers = headers;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /** @param pageSize the number of matches requested by page, 0 for a single request */
+  public void setPageSize(int pageSize) {
+    this.pageSize = Math.max(0, pageSize);
+  }
+
+  public int getParallelRequests() {
+    return parallelRequests;
+  }
+
+  /** @param parallelRequests the maximum number of pages requested concurrently */
+  public void setParallelRequests(int parallelRequests) {
+    this.parallelRequests = Math.max(1, parallelRequests);
+  }
+
+  public boolean isFuzzyMatching() {
+    return fuzzyMatching;
+  }
+
+  public void setFuzzyMatching(boolean fuzzyMatching) {
+    this.fuzzyMatching = fuzzyMatching;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public DicomState process(DicomParam... keys) {
+    return process(0, QueryRetrieveLevel.STUDY, null, keys);
+  }
+
+  /**
+   * @param cancelAfter stop the query after the receive of the specified number of matches, 0 for
+   *     no limit.
+   * @param level the query level: STUDY, SERIES or IMAGE. When the keys have a single value of the
+   *     Study Instance UID (and of the Series Instance UID for IMAGE), the query is restricted to
+   *     the resource of the study (or the series).
+   * @param resultTable the compact table receiving the matches instead of
+   *     DicomState.getDicomRSP(). Can be null.
+   * @param keys the matching and returning keys. DicomParam with no value is a returning key.
+   * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error
+   *     message and the progression.
+   */
+  public DicomState process(
+      int cancelAfter, QueryRetrieveLevel level, DicomResultTable resultTable, DicomParam... keys) {
+    DicomState state = new DicomState(new DicomProgress());
+    state.setResultTable(resultTable);
+    AtomicLong firstResponse = new AtomicLong(-1);
+    long t1 = System.currentTimeMillis();
+    int count = 0;
+    try {
+      String url = getQueryURL(level == null ? QueryRetrieveLevel.STUDY : level, keys);
+      if (pageSize == 0) {
+        if (cancelAfter > 0) {
+          url += (url.indexOf('?') < 0 ? '?' : '&') + "limit=" + cancelAfter;
+        }
+        int size = request(url, firstResponse, newConsumer(state, cancelAfter, 0));
+        count = cancelAfter > 0 ? Math.min(size, cancelAfter) : size;
+      } else {
+        count = queryPages(state, url, firstResponse, cancelAfter);
+      }
+      state.setStatus(Status.Success);
+      long t2 = System.currentTimeMillis();
+      String timeMsg =
+          MessageFormat.format(
+              "QIDO-RS connected in {0}ms to {1}. Query {2} matches in {3}ms.",
+              firstResponse.get() < 0 ? 0 : firstResponse.get() - t1, serviceURL, count, t2 - t1);
+      return DicomState.buildMessage(state, timeMsg, null);
+    } catch (Exception e) {
+      LOGGER.error("QIDO-RS query", e);
+      state.setStatus(Status.UnableToProcess);
+      return DicomState.buildMessage(state, null, e);
+    }
+  }
+
+  private int queryPages(DicomState state, String url, AtomicLong firstResponse, int cancelAfter)
+      throws Exception {
+    // The first page is added while it is parsed
+    int size = request(pageURL(url, 0), firstResponse, newConsumer(state, cancelAfter, 0));
+    int count = cancelAfter > 0 ? Math.min(size, cancelAfter) : size;
+    int offset = pageSize;
+    boolean complete = size < pageSize;
+    if (complete || reachedLimit(count, cancelAfter)) {
+      return count;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelRequests);
+    try {
+      while (!complete && !reachedLimit(count, cancelAfter)) {
+        List<Future<List<Attributes>>> futures = new ArrayList<>(parallelRequests);
+        for (int i = 0; i < parallelRequests; i++) {
+          String pageUrl = pageURL(url, offset);
+          futures.add(
+              executor.submit(
+                  () -> {
+                    List<Attributes> list = new ArrayList<>(pageSize);
+                    request(pageUrl, firstResponse, list::add);
+                    return list;
+                  }));
+          offset += pageSize;
+        }
+        for (Future<List<Attributes>> f : futures) {
+          if (complete || reachedLimit(count, cancelAfter)) {
+            f.cancel(true);
+            continue;
+          }
+          List<Attributes> page = getResult(f);
+          count = addMatches(state, page, cancelAfter, count);
+          complete = page.size() < pageSize;
+        }
+      }
+    } finally {
+      ServiceUtil.shutdownService(executor);
+    }
+    return count;
+  }
+
+  private static boolean reachedLimit(int count, int cancelAfter) {
+    return cancelAfter > 0 && count >= cancelAfter;
+  }
+
+  private static Consumer<Attributes> newConsumer(DicomState state, int cancelAfter, int count) {
+    int[] nb = {count};
+    return match -> {
+      if (!reachedLimit(nb[0], cancelAfter)) {
+        state.addDicomRSP(match);
+        nb[0]++;
+      }
+    };
+  }
+
+  private static int addMatches(
+      DicomState state, List<Attributes> matches, int cancelAfter, int count) {
+    int nb = count;
+    for (Attributes match : matches) {
+      if (reachedLimit(nb, cancelAfter)) {
+        break;
+      }
+      state.addDicomRSP(match);
+      nb++;
+    }
+    return nb;
+  }
+
+  private static List<Attributes> getResult(Future<List<Attributes>> future) throws Exception {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    }
+  }
+
+  private String pageURL(String url, int offset) {
+    return url + (url.indexOf('?') < 0 ? '?' : '&') + "offset=" + offset + "&limit=" + pageSize;
+  }
+
+  String getQueryURL(QueryRetrieveLevel level, DicomParam... keys)
+      throws UnsupportedEncodingException {
+    String studyUID = getSingleValue(keys, Tag.StudyInstanceUID);
+    String seriesUID = getSingleValue(keys, Tag.SeriesInstanceUID);
+    StringBuilder buf = new StringBuilder(serviceURL);
+    int pathTag = 0;
+    int pathTag2 = 0;
+    switch (level) {
+      case STUDY:
+        buf.append("/studies");
+        break;
+      case SERIES:
+        if (studyUID != null) {
+          buf.append("/studies/").append(studyUID);
+          pathTag = Tag.StudyInstanceUID;
+        }
+        buf.append("/series");
+        break;
+      case IMAGE:
+        if (studyUID != null) {
+          buf.append("/studies/").append(studyUID);
+          pathTag = Tag.StudyInstanceUID;
+          if (seriesUID != null) {
+            buf.append("/series/").append(seriesUID);
+            pathTag2 = Tag.SeriesInstanceUID;
+          }
+        }
+        buf.append("/instances");
+        break;
+      default:
+        throw new IllegalArgumentException("QIDO-RS does not support the level " + level);
+    }
+
+    char separator = '?';
+    for (DicomParam p : keys) {
+      int tag = p.getTag();
+      boolean nested = p.getParentSeqTags() != null && p.getParentSeqTags().length > 0;
+      if (!nested && (tag == pathTag || tag == pathTag2)) {
+        continue;
+      }
+      String[] values = p.getValues();
+      buf.append(separator);
+      separator = '&';
+      if (values == null || values.length == 0) {
+        buf.append("includefield=").append(getAttributePath(p));
+      } else {
+        buf.append(getAttributePath(p)).append('=');
+        buf.append(URLEncoder.encode(String.join(",", values), StandardCharsets.UTF_8.name()));
+      }
+    }
+    if (fuzzyMatching) {
+      buf.append(separator).append("fuzzymatching=true");
+    }
+    return buf.toString();
+  }
+
+  private static String getAttributePath(DicomParam p) {
+    StringBuilder buf = new StringBuilder();
+    int[] parents = p.getParentSeqTags();
+    if (parents != null) {
+      for (int tag : parents) {
+        buf.append(TagUtils.toHexString(tag)).append('.');
+      }
+    }
+    return buf.append(TagUtils.toHexString(p.getTag())).toString();
+  }
+
+  private static String getSingleValue(DicomParam[] keys, int tag) {
+    for (DicomParam p : keys) {
+      int[] parents = p.getParentSeqTags();
+      if (p.getTag() == tag && (parents == null || parents.length == 0)) {
+        String[] values = p.getValues();
+        if (values != null && values.length == 1 && StringUtil.hasText(values[0])) {
+          return values[0];
+        }
+      }
+    }
+    return null;
+  }
+
+  private HttpURLConnection buildConnection(String url) throws IOException {
+    HttpURLConnection httpGet = (HttpURLConnection) new URL(url).openConnection();
+    httpGet.setUseCaches(false);
+    httpGet.setDoInput(true);
+    httpGet.setRequestMethod("GET");
+    httpGet.setConnectTimeout(connectTimeout);
+    httpGet.setReadTimeout(readTimeout);
+    httpGet.setRequestProperty("Accept", APPLICATION_DICOM_JSON);
+    httpGet.setRequestProperty("User-Agent", agentName == null ? "Weasis QIDORS" : agentName);
+    httpGet.setRequestProperty("Accept-Encoding", Multipart.ACCEPT_ENCODING);
+    if (headers != null) {
+      for (Entry<String, String> element : headers.entrySet()) {
+        httpGet.setRequestProperty(element.getKey(), element.getValue());
+      }
+    }
+    return httpGet;
+  }
+
+  /** @return the number of matches of the response */
+  private int request(String url, AtomicLong firstResponse, Consumer<Attributes> consumer)
+      throws IOException {
+    LOGGER.debug("QIDO-RS: {}", url);
+    HttpURLConnection httpGet = buildConnection(url);
+    try {
+      int code = httpGet.getResponseCode();
+      firstResponse.compareAndSet(-1, System.currentTimeMillis());
+      if (code == HttpURLConnection.HTTP_NO_CONTENT) {
+        return 0;
+      }
+      if (code != HttpURLConnection.HTTP_OK) {
+        throw new HttpServerErrorException(
+            String.format(
+                "QIDO-RS server response message: HTTP Status-Code %d: %s",
+                code, httpGet.getResponseMessage()));
+      }
+      String warning = httpGet.getHeaderField("Warning");
+      if (warning != null) {
+        LOGGER.warn("QIDO-RS: {}", warning);
+      }
+      int[] count = {0};
+      try (InputStream in = httpGet.getInputStream()) {
+        JSONReader reader =
+            new JSONReader(
+                Json.createParser(
+                    new InputStreamReader(
+                        Multipart.decodeContent(httpGet, in), StandardCharsets.UTF_8)));
+        reader.readDatasets(
+            (fmi, dataset) -> {
+              consumer.accept(dataset);
+              count[0]++;
+            });
+        // Read the remaining content, so the connection can be reused
+        byte[] buf = new byte[4096];
+        while (in.read(buf) != -1) {
+          // Discard the remaining content
+        }
+      }
+      return count[0];
+    } catch (IOException | RuntimeException e) {
+      // Includes the JSON parsing errors, the connection cannot be reused
+      httpGet.disconnect();
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return serviceURL;
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.web.StowrsMultiFiles.BatchResult;
+
+/**
+ * Uploads a set of DICOM files with STOW-RS and records the outcome of each instance from the
+ * ReferencedSOPSequence and the FailedSOPSequence of the responses in a checkpoint file. Calling
+ * {@link #upload(List)} again only sends the instances which have failed or have not been sent.
+ *
+ * <p>The checkpoint is a properties file written after each request, the key is the path of the
+ * file and the value is the outcome followed by the SOP Instance UID. The invalid entries are
+ * ignored when loading the checkpoint.
+ */
+public class StowrsBatchUploader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StowrsBatchUploader.class);
+
+  private static final String URL_KEY = "stow.url";
+
+  public enum Outcome {
+    STORED,
+    FAILED,
+    NOT_SENT
+  }
+
+  private final StowrsMultiFiles stowrs;
+  private final File checkpointFile;
+  private final Properties checkpoint = new Properties();
+
+  /**
+   * @param stowrs the STOW-RS client, its batch size and parallelism are used for each attempt
+   * @param checkpointFile the file recording the outcome of each instance
+   */
+  public StowrsBatchUploader(StowrsMultiFiles stowrs, File checkpointFile) {
+    this.stowrs = Objects.requireNonNull(stowrs);
+    this.checkpointFile = Objects.requireNonNull(checkpointFile);
+    loadCheckpoint();
+  }
+
+  private void loadCheckpoint() {
+    if (checkpointFile.canRead()) {
+      try (InputStream in = new FileInputStream(checkpointFile)) {
+        checkpoint.load(in);
+      } catch (IOException e) {
+        LOGGER.error("Cannot read the STOWRS checkpoint {}", checkpointFile, e);
+      }
+      if (!stowrs.getRequestURL().equals(checkpoint.getProperty(URL_KEY))) {
+        LOGGER.warn("The checkpoint {} belongs to another STOWRS service", checkpointFile);
+        checkpoint.clear();
+      }
+      checkpoint
+          .stringPropertyNames()
+          .forEach(
+              key -> {
+                if (!URL_KEY.equals(key) && parseOutcome(checkpoint.getProperty(key)) == null) {
+                  LOGGER.warn("Ignore the invalid checkpoint entry {}", key);
+                  checkpoint.remove(key);
+                }
+              });
+    }
+    checkpoint.setProperty(URL_KEY, stowrs.getRequestURL());
+  }
+
+  private static Outcome parseOutcome(String value) {
+    int index = value.indexOf(';');
+    String name = index < 0 ? value : value.substring(0, index);
+    for (Outcome outcome : Outcome.values()) {
+      if (outcome.name().equals(name)) {
+        return outcome;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void saveCheckpoint() {
+    File tmp = new File(checkpointFile.getPath() + ".tmp");
+    FileUtil.prepareToWriteFile(tmp);
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      checkpoint.store(out, "STOWRS upload checkpoint");
+    } catch (IOException e) {
+      LOGGER.error("Cannot write the STOWRS checkpoint {}", checkpointFile, e);
+      return;
+    }
+    try {
+      Files.move(
+          tmp.toPath(),
+          checkpointFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.error("Cannot write the STOWRS checkpoint {}", checkpointFile, e);
+    }
+  }
+
+  /**
+   * @param file a DICOM file
+   * @return the outcome of the last attempt for the file
+   */
+  public synchronized Outcome getOutcome(File file) {
+    String value = checkpoint.getProperty(getKey(file));
+    Outcome outcome = value == null ? null : parseOutcome(value);
+    return outcome == null ? Outcome.NOT_SENT : outcome;
+  }
+
+  /**
+   * @param files the DICOM files of the upload
+   * @return the files which have failed or have not been sent
+   */
+  public List<File> getPendingFiles(List<File> files) {
+    List<File> pending = new ArrayList<>();
+    for (File file : files) {
+      if (getOutcome(file) != Outcome.STORED) {
+        pending.add(file);
+      }
+    }
+    return pending;
+  }
+
+  /** Forget all the outcomes and delete the checkpoint file. */
+  public synchronized void reset() {
+    checkpoint.clear();
+    checkpoint.setProperty(URL_KEY, stowrs.getRequestURL());
+    FileUtil.delete(checkpointFile);
+  }
+
+  /**
+   * Upload the files which are not yet stored according to the checkpoint.
+   *
+   * @param files the DICOM files of the upload
+   * @return the state of the whole upload, including the instances stored by previous attempts
+   */
+  public DicomState upload(List<File> files) {
+    List<File> pending = getPendingFiles(files);
+    LOGGER.info(
+        "STOWRS: {} instances to upload, {} already stored",
+        pending.size(),
+        files.size() - pending.size());
+    DicomState result = null;
+    if (!pending.isEmpty()) {
+      result = stowrs.upload(pending, this::reconcile);
+    }
+
+    DicomState state = new DicomState(new DicomProgress());
+    int failed = 0;
+    int notSent = 0;
+    for (File file : files) {
+      Outcome outcome = getOutcome(file);
+      if (outcome == Outcome.FAILED) {
+        failed++;
+      } else if (outcome == Outcome.NOT_SENT) {
+        notSent++;
+      }
+    }
+    int completed = files.size() - failed - notSent;
+    if (failed + notSent == 0) {
+      state.setStatus(Status.Success);
+    } else {
+      state.setStatus(completed > 0 ? Status.OneOrMoreFailures : Status.UnableToProcess);
+    }
+    DicomProgress p = state.getProgress();
+    Attributes cmd = Optional.ofNullable(p.getAttributes()).orElseGet(Attributes::new);
+    cmd.setInt(Tag.Status, VR.US, state.getStatus());
+    cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+    cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed);
+    cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+    cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US, notSent);
+    p.setAttributes(cmd);
+    if (state.getStatus() == Status.Success) {
+      return DicomState.buildMessage(state, "all the files has been tranfered", null);
+    }
+    Exception e = result == null ? null : new RuntimeException(result.getMessage());
+    return DicomState.buildMessage(state, null, e);
+  }
+
+  void reconcile(BatchResult result) {
+    Map<File, Outcome> outcomes = new LinkedHashMap<>();
+    // Parsed once, several files can have the same SOP Instance UID
+    Map<File, String> uids = new HashMap<>();
+    if (result.getException() == null) {
+      Set<String> referenced = getUIDs(result.getResponse(), Tag.ReferencedSOPSequence);
+      Set<String> failed = getUIDs(result.getResponse(), Tag.FailedSOPSequence);
+      // A response without content means all the instances are stored
+      boolean allStored = referenced.isEmpty() && failed.isEmpty();
+      for (File file : result.getFiles()) {
+        String uid = getSopInstanceUID(file);
+        uids.put(file, uid);
+        if (uid == null || failed.contains(uid)) {
+          outcomes.put(file, Outcome.FAILED);
+        } else if (allStored || referenced.contains(uid)) {
+          outcomes.put(file, Outcome.STORED);
+        } else {
+          outcomes.put(file, Outcome.NOT_SENT);
+        }
+      }
+    } else {
+      for (File file : result.getFiles()) {
+        outcomes.put(file, Outcome.NOT_SENT);
+      }
+    }
+
+    synchronized (this) {
+      for (Map.Entry<File, Outcome> entry : outcomes.entrySet()) {
+        File file = entry.getKey();
+        if (entry.getValue() == Outcome.NOT_SENT) {
+          checkpoint.remove(getKey(file));
+        } else {
+          String uid = uids.get(file);
+          checkpoint.setProperty(
+              getKey(file), entry.getValue().name() + (uid == null ? "" : ";" + uid));
+        }
+      }
+      saveCheckpoint();
+    }
+  }
+
+  private static Set<String> getUIDs(Attributes response, int sequenceTag) {
+    Set<String> uids = new HashSet<>();
+    Sequence seq = response == null ? null : response.getSequence(sequenceTag);
+    if (seq != null) {
+      for (Attributes item : seq) {
+        String uid = item.getString(Tag.ReferencedSOPInstanceUID);
+        if (StringUtil.hasText(uid)) {
+          uids.add(uid);
+        }
+      }
+    }
+    return uids;
+  }
+
+  private static String getKey(File file) {
+    return file.getAbsolutePath();
+  }
+
+  private static String getSopInstanceUID(File file) {
+    try (DicomInputStream dis = new DicomInputStream(file)) {
+      Attributes fmi = dis.readFileMetaInformation();
+      if (fmi != null && fmi.containsValue(Tag.MediaStorageSOPInstanceUID)) {
+        return fmi.getString(Tag.MediaStorageSOPInstanceUID);
+      }
+      return dis.readDataset(-1, Tag.PixelData).getString(Tag.SOPInstanceUID);
+    } catch (IOException e) {
+      LOGGER.warn("Cannot read the SOP Instance UID of {}", file, e);
+      return null;
+    }
+  }
+}
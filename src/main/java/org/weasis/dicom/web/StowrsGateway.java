@@ -0,0 +1,608 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DeviceListenerService;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.ListenerParams;
+import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.web.StowrsMultiFiles.BatchListener;
+import org.weasis.dicom.web.StowrsMultiFiles.BatchResult;
+
+/**
+ * Receives instances with C-STORE and forwards them with STOW-RS. Each instance is written into a
+ * spool folder grouped by study, a study is posted when its size reaches the batch limit or when
+ * its first instance has waited longer than the batch delay.
+ *
+ * <p>The C-STORE-RSP is Success when the instance is written in the spool. When the spool exceeds
+ * its quota the instance is refused with the status Out of Resources (A700) so that the modality
+ * can retry later. An instance received again replaces the copy of the spool.
+ *
+ * <p>The instances which cannot be posted stay in the spool and are sent again after the retry
+ * delay, up to the maximum number of retries. The instances rejected by the STOW-RS service (in
+ * the FailedSOPSequence or with an HTTP 4xx response) are moved into the failed folder. The
+ * instances remaining in the spool are posted again when the gateway starts.
+ */
+public class StowrsGateway {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StowrsGateway.class);
+
+  private static final String TMP_DIR = "tmp";
+  private static final String FAILED_DIR = "failed";
+  private static final String SUFFIX = ".dcm";
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final Pattern UID_NAME = Pattern.compile("[0-9A-Za-z][0-9A-Za-z._\\-]*");
+
+  private final Device device = new Device("stowgateway");
+  private final ApplicationEntity ae = new ApplicationEntity("*");
+  private final Connection conn = new Connection();
+  private final DeviceListenerService deviceService;
+  private final File spoolDir;
+  private final Uploader uploader;
+  private final Map<String, StudyBatch> pending = new LinkedHashMap<>();
+  // The instances of the spool, guarded by the lock of pending
+  private final Map<File, SpoolEntry> spooled = new HashMap<>();
+  private final AtomicLong spoolSize = new AtomicLong();
+
+  private long maxBatchBytes = 50 * 1024 * 1024L;
+  private long maxBatchDelay = 5000;
+  private long retryDelay = 60000;
+  private int maxRetries = 10;
+  private long maxSpoolBytes = 2 * 1024 * 1024 * 1024L;
+  private int uploadThreads = 2;
+  private volatile ScheduledExecutorService executor;
+
+  /** Posts the files of a study, the result of each request is sent to the listener. */
+  interface Uploader {
+    void upload(List<File> files, BatchListener listener);
+  }
+
+  private static class StudyBatch {
+    private final Set<File> files = new LinkedHashSet<>();
+    private long size;
+    private final long dueTime;
+
+    StudyBatch(long dueTime) {
+      this.dueTime = dueTime;
+    }
+  }
+
+  private static class SpoolEntry {
+    private final String studyUID;
+    private long length;
+    // Incremented when the instance is received again, so an older upload does not delete it
+    private int generation;
+    private int attempts;
+
+    SpoolEntry(String studyUID) {
+      this.studyUID = studyUID;
+    }
+  }
+
+  private final BasicCStoreSCP cstoreSCP =
+      new BasicCStoreSCP("*") {
+
+        @Override
+        protected void store(
+            Association as,
+            PresentationContext pc,
+            Attributes rq,
+            PDVInputStream data,
+            Attributes rsp)
+            throws IOException {
+          if (maxSpoolBytes > 0 && spoolSize.get() >= maxSpoolBytes) {
+            LOGGER.warn(
+                "{}: spool is full, refuse {}", as, rq.getString(Tag.AffectedSOPInstanceUID));
+            throw new DicomServiceException(Status.OutOfResources, "Spool is full");
+          }
+          rsp.setInt(Tag.Status, VR.US, Status.Success);
+
+          String cuid = rq.getString(Tag.AffectedSOPClassUID);
+          String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+          File file = new File(spoolDir, TMP_DIR + File.separator + UUID.randomUUID() + SUFFIX);
+          try {
+            Attributes fmi = as.createFileMetaInformation(iuid, cuid, pc.getTransferSyntax());
+            storeTo(as, fmi, data, file);
+            spool(readStudyInstanceUID(file), iuid, file);
+          } catch (Exception e) {
+            FileUtil.delete(file);
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+          }
+        }
+      };
+
+  /**
+   * @param spoolDir the folder containing the instances waiting to be posted
+   * @param stowrs the STOW-RS client. Its limits of files and bytes per request and its parallel
+   *     requests apply to each batch.
+   */
+  public StowrsGateway(File spoolDir, StowrsMultiFiles stowrs) {
+    this(spoolDir, Objects.requireNonNull(stowrs)::upload);
+  }
+
+  StowrsGateway(File spoolDir, Uploader uploader) {
+    this.spoolDir = Objects.requireNonNull(spoolDir);
+    this.uploader = Objects.requireNonNull(uploader);
+    DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+    serviceRegistry.addDicomService(new BasicCEchoSCP());
+    serviceRegistry.addDicomService(cstoreSCP);
+    device.setDimseRQHandler(serviceRegistry);
+    device.addConnection(conn);
+    device.addApplicationEntity(ae);
+    ae.setAssociationAcceptor(true);
+    ae.addConnection(conn);
+    this.deviceService = new DeviceListenerService(device);
+  }
+
+  public long getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  /** @param maxBatchBytes the size of a study which triggers the upload, 0 for no limit */
+  public void setMaxBatchBytes(long maxBatchBytes) {
+    this.maxBatchBytes = Math.max(0, maxBatchBytes);
+  }
+
+  public long getMaxBatchDelay() {
+    return maxBatchDelay;
+  }
+
+  /** @param maxBatchDelay the maximum time in milliseconds an instance waits before the upload */
+  public void setMaxBatchDelay(long maxBatchDelay) {
+    this.maxBatchDelay = Math.max(100, maxBatchDelay);
+  }
+
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /** @param retryDelay the time in milliseconds before posting again after an error */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = Math.max(0, retryDelay);
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @param maxRetries the maximum number of attempts to post an instance when the service cannot
+   *     be reached, then the instance is moved into the failed folder
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = Math.max(1, maxRetries);
+  }
+
+  public long getMaxSpoolBytes() {
+    return maxSpoolBytes;
+  }
+
+  /**
+   * @param maxSpoolBytes the size of the spool above which the instances are refused, 0 for no
+   *     limit
+   */
+  public void setMaxSpoolBytes(long maxSpoolBytes) {
+    this.maxSpoolBytes = Math.max(0, maxSpoolBytes);
+  }
+
+  public int getUploadThreads() {
+    return uploadThreads;
+  }
+
+  /** @param uploadThreads the number of studies posted concurrently, applied at the next start */
+  public void setUploadThreads(int uploadThreads) {
+    this.uploadThreads = Math.max(1, uploadThreads);
+  }
+
+  /** @return the size in bytes of the instances in the spool */
+  public long getSpoolSize() {
+    return spoolSize.get();
+  }
+
+  public boolean isRunning() {
+    return conn.isListening();
+  }
+
+  public ApplicationEntity getApplicationEntity() {
+    return ae;
+  }
+
+  public Connection getConnection() {
+    return conn;
+  }
+
+  public Device getDevice() {
+    return device;
+  }
+
+  /**
+   * Start the DICOM Listener and the uploads of the studies
+   *
+   * @param scpNode the listener DICOM node. Set hostname to null for binding all the network
+   *     interface. For binding all the AETs see ListenerParams.
+   * @param params the listener parameters
+   * @throws Exception
+   */
+  public synchronized void start(DicomNode scpNode, ListenerParams params) throws Exception {
+    if (isRunning()) {
+      throw new IOException("Cannot start a STOW-RS Gateway because it is already running.");
+    }
+    AdvancedParams options = Objects.requireNonNull(params).getParams();
+    if (params.isBindCallingAet()) {
+      options.configureBind(ae, conn, scpNode);
+    } else {
+      options.configureBind(conn, scpNode);
+    }
+    options.configure(conn);
+    options.configureTLS(conn, null);
+    ae.setAcceptedCallingAETitles(params.getAcceptedCallingAETitles());
+    if (ae.getTransferCapabilities().isEmpty()) {
+      ae.addTransferCapability(
+          new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
+    }
+
+    startUploads();
+    try {
+      deviceService.start();
+    } catch (Exception e) {
+      stopUploads();
+      throw e;
+    }
+  }
+
+  /** Stop the DICOM Listener. The instances not yet posted stay in the spool. */
+  public synchronized void stop() {
+    deviceService.stop();
+    stopUploads();
+  }
+
+  synchronized void startUploads() {
+    loadSpool();
+    executor = Executors.newScheduledThreadPool(uploadThreads);
+    long period = Math.max(100, Math.min(1000, maxBatchDelay / 2));
+    executor.scheduleWithFixedDelay(this::flushDue, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stopUploads() {
+    ServiceUtil.shutdownService(executor);
+    executor = null;
+    synchronized (pending) {
+      pending.clear();
+      spooled.clear();
+      spoolSize.set(0);
+    }
+  }
+
+  /** Post all the pending studies without waiting for the batch limits. */
+  public void flush() {
+    List<String> studies;
+    synchronized (pending) {
+      studies = new ArrayList<>(pending.keySet());
+    }
+    studies.forEach(this::submit);
+  }
+
+  /** Post all the pending studies in the current thread, including the ones waiting for a retry. */
+  void uploadPending() {
+    List<String> studies;
+    synchronized (pending) {
+      studies = new ArrayList<>(pending.keySet());
+    }
+    for (String studyUID : studies) {
+      Map<File, Integer> files = takeBatch(studyUID);
+      if (files != null) {
+        upload(studyUID, files);
+      }
+    }
+  }
+
+  private void loadSpool() {
+    File[] studyDirs = spoolDir.listFiles(File::isDirectory);
+    if (studyDirs == null) {
+      return;
+    }
+    for (File dir : studyDirs) {
+      if (TMP_DIR.equals(dir.getName()) || FAILED_DIR.equals(dir.getName())) {
+        continue;
+      }
+      File[] files = dir.listFiles(f -> f.isFile() && f.getName().endsWith(SUFFIX));
+      if (files != null && files.length > 0) {
+        synchronized (pending) {
+          for (File f : files) {
+            register(dir.getName(), f, 0);
+          }
+        }
+        LOGGER.info("STOW-RS Gateway: {} instances of {} found in the spool", files.length, dir);
+      }
+    }
+  }
+
+  /**
+   * Move a received instance into the folder of its study. An instance received again replaces
+   * the previous copy, which is then sent only once.
+   *
+   * @param studyUID the Study Instance UID
+   * @param iuid the SOP Instance UID
+   * @param file the received file
+   * @throws IOException if the file cannot be moved into the spool
+   */
+  void spool(String studyUID, String iuid, File file) throws IOException {
+    if (!isValidName(studyUID) || !isValidName(iuid)) {
+      throw new IOException("Invalid UID: " + studyUID + " / " + iuid);
+    }
+    File dest = new File(new File(spoolDir, studyUID), iuid + SUFFIX);
+    boolean full;
+    synchronized (pending) {
+      // Replacing the file and registering it are atomic for the uploads
+      FileUtil.prepareToWriteFile(dest);
+      Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      StudyBatch batch = register(studyUID, dest, maxBatchDelay);
+      full = maxBatchBytes > 0 && batch.size >= maxBatchBytes;
+    }
+    if (full) {
+      submit(studyUID);
+    }
+  }
+
+  private static boolean isValidName(String uid) {
+    // The UIDs are used as file names, they cannot be a path or a folder of the spool
+    return uid != null
+        && UID_NAME.matcher(uid).matches()
+        && !TMP_DIR.equals(uid)
+        && !FAILED_DIR.equals(uid);
+  }
+
+  private StudyBatch register(String studyUID, File file, long delay) {
+    long length = file.length();
+    SpoolEntry entry = spooled.computeIfAbsent(file, k -> new SpoolEntry(studyUID));
+    long oldLength = entry.length;
+    spoolSize.addAndGet(length - oldLength);
+    entry.length = length;
+    entry.generation++;
+    entry.attempts = 0;
+
+    StudyBatch batch =
+        pending.computeIfAbsent(studyUID, k -> new StudyBatch(System.currentTimeMillis() + delay));
+    if (batch.files.add(file)) {
+      batch.size += length;
+    } else {
+      batch.size += length - oldLength;
+    }
+    return batch;
+  }
+
+  private void flushDue() {
+    long now = System.currentTimeMillis();
+    List<String> studies = new ArrayList<>();
+    synchronized (pending) {
+      for (Map.Entry<String, StudyBatch> entry : pending.entrySet()) {
+        if (entry.getValue().dueTime <= now) {
+          studies.add(entry.getKey());
+        }
+      }
+    }
+    studies.forEach(this::submit);
+  }
+
+  private void submit(String studyUID) {
+    ScheduledExecutorService service = executor;
+    if (service != null) {
+      Map<File, Integer> files = takeBatch(studyUID);
+      if (files != null) {
+        service.execute(() -> upload(studyUID, files));
+      }
+    }
+  }
+
+  /** @return the files of the study with their generation, null when there is nothing to post */
+  private Map<File, Integer> takeBatch(String studyUID) {
+    synchronized (pending) {
+      StudyBatch batch = pending.remove(studyUID);
+      if (batch == null) {
+        return null;
+      }
+      Map<File, Integer> files = new LinkedHashMap<>();
+      for (File f : batch.files) {
+        SpoolEntry entry = spooled.get(f);
+        if (entry != null) {
+          if (f.exists()) {
+            files.put(f, entry.generation);
+          } else {
+            forget(f, entry);
+          }
+        }
+      }
+      return files.isEmpty() ? null : files;
+    }
+  }
+
+  private void upload(String studyUID, Map<File, Integer> files) {
+    LOGGER.info("STOW-RS Gateway: post {} instances of the study {}", files.size(), studyUID);
+    List<File> list = new ArrayList<>(files.keySet());
+    try {
+      uploader.upload(list, r -> handleResult(r, files));
+    } catch (Exception e) {
+      LOGGER.error("STOW-RS Gateway: cannot post the study {}", studyUID, e);
+      handleResult(new BatchResult(list, null, e), files);
+    }
+  }
+
+  private void handleResult(BatchResult result, Map<File, Integer> generations) {
+    Exception exception = result.getException();
+    boolean retryable = exception != null && isRetryable(exception);
+    Set<String> failedUIDs = new HashSet<>();
+    for (Attributes sop : result.getFailedSOPs()) {
+      failedUIDs.add(sop.getString(Tag.ReferencedSOPInstanceUID));
+    }
+
+    synchronized (pending) {
+      for (File f : result.getFiles()) {
+        SpoolEntry entry = spooled.get(f);
+        Integer generation = generations.get(f);
+        if (entry == null || generation == null || entry.generation != generation) {
+          // Received again during the upload, the new copy is already pending
+          continue;
+        }
+        if (!f.exists()) {
+          forget(f, entry);
+        } else if (retryable) {
+          entry.attempts++;
+          if (entry.attempts >= maxRetries) {
+            LOGGER.error("STOW-RS Gateway: cannot post {} after {} attempts", f, entry.attempts);
+            moveToFailed(f, entry);
+          } else {
+            StudyBatch batch =
+                pending.computeIfAbsent(
+                    entry.studyUID, k -> new StudyBatch(System.currentTimeMillis() + retryDelay));
+            if (batch.files.add(f)) {
+              batch.size += entry.length;
+            }
+          }
+        } else if (exception != null) {
+          LOGGER.error("STOW-RS Gateway: {} has been rejected: {}", f, exception.getMessage());
+          moveToFailed(f, entry);
+        } else if (failedUIDs.contains(getSopInstanceUID(f))) {
+          LOGGER.error("STOW-RS Gateway: {} is in the FailedSOPSequence", f);
+          moveToFailed(f, entry);
+        } else {
+          FileUtil.delete(f);
+          forget(f, entry);
+        }
+      }
+      deleteEmptyFolders(result.getFiles());
+    }
+  }
+
+  /**
+   * @param e the exception of a request
+   * @return false when the service has rejected the request (HTTP 4xx), posting it again would
+   *     fail the same way
+   */
+  static boolean isRetryable(Exception e) {
+    if (e instanceof HttpServerErrorException) {
+      int code = ((HttpServerErrorException) e).getStatusCode();
+      return code < 400
+          || code >= 500
+          || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+          || code == TOO_MANY_REQUESTS;
+    }
+    return true;
+  }
+
+  private static String getSopInstanceUID(File file) {
+    String name = file.getName();
+    return name.substring(0, name.length() - SUFFIX.length());
+  }
+
+  private void moveToFailed(File file, SpoolEntry entry) {
+    File dest = new File(new File(spoolDir, FAILED_DIR), entry.studyUID);
+    LOGGER.info("STOW-RS Gateway: move {} to {}", file, dest);
+    dest.mkdirs();
+    try {
+      Path target = new File(dest, file.getName()).toPath();
+      Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOGGER.error("STOW-RS Gateway: cannot move {} to {}", file, dest, e);
+      FileUtil.delete(file);
+    }
+    forget(file, entry);
+  }
+
+  private void forget(File file, SpoolEntry entry) {
+    spooled.remove(file);
+    spoolSize.addAndGet(-entry.length);
+  }
+
+  private static void deleteEmptyFolders(List<File> files) {
+    Set<File> dirs = new HashSet<>();
+    for (File f : files) {
+      dirs.add(f.getParentFile());
+    }
+    for (Iterator<File> it = dirs.iterator(); it.hasNext(); ) {
+      String[] list = it.next().list();
+      if (list == null || list.length > 0) {
+        it.remove();
+      }
+    }
+    dirs.forEach(File::delete);
+  }
+
+  /** @return the number of instances waiting in the spool or being posted */
+  public int getNumberOfPendingInstances() {
+    synchronized (pending) {
+      return spooled.size();
+    }
+  }
+
+  private static void storeTo(Association as, Attributes fmi, PDVInputStream data, File file)
+      throws IOException {
+    LOGGER.debug("{}: M-WRITE {}", as, file);
+    file.getParentFile().mkdirs();
+    try (DicomOutputStream out = new DicomOutputStream(file)) {
+      out.writeFileMetaInformation(fmi);
+      data.copyTo(out);
+    }
+  }
+
+  private static String readStudyInstanceUID(File file) throws IOException {
+    try (DicomInputStream in = new DicomInputStream(file)) {
+      in.setIncludeBulkData(IncludeBulkData.NO);
+      String uid = in.readDataset(-1, Tag.SeriesInstanceUID).getString(Tag.StudyInstanceUID);
+      if (!StringUtil.hasText(uid)) {
+        throw new IOException("Missing Study Instance UID in " + file);
+      }
+      return uid;
+    }
+  }
+}
@@ -18,6 +18,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
@@ -29,10 +33,67 @@ import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ServiceUtil;
 
+/**
+ * Uploads a set of DICOM files with STOW-RS. The files can be split into several requests limited
+ * by a number of files and/or a number of bytes, and the requests can be posted concurrently. The
+ * HTTP connections are released to the keep-alive cache after each request.
+ */
 public class StowrsMultiFiles extends AbstractStowrs {
   private static final Logger LOGGER = LoggerFactory.getLogger(StowrsMultiFiles.class);
 
+  private int maxFilesPerRequest;
+  private long maxBytesPerRequest;
+  private int parallelRequests = 1;
+
+  /** Receives the result of each request, possibly from several threads. */
+  interface BatchListener {
+    void batchCompleted(BatchResult result);
+  }
+
+  static class BatchResult {
+    private final List<File> files;
+    private final Attributes response;
+    private final List<Attributes> failedSOPs;
+    private final Exception exception;
+
+    BatchResult(List<File> files, Attributes response, Exception exception) {
+      this.files = files;
+      this.response = response;
+      this.exception = exception;
+      this.failedSOPs = new ArrayList<>();
+      if (response != null) {
+        Sequence seq = response.getSequence(Tag.FailedSOPSequence);
+        if (seq != null) {
+          failedSOPs.addAll(seq);
+        }
+      }
+    }
+
+    List<File> getFiles() {
+      return files;
+    }
+
+    /** @return the Store Instances Response or null when the response has no content */
+    Attributes getResponse() {
+      return response;
+    }
+
+    List<Attributes> getFailedSOPs() {
+      return failedSOPs;
+    }
+
+    /** @return the exception when the request has failed, then no instance has been stored */
+    Exception getException() {
+      return exception;
+    }
+
+    int getNumberOfFailures() {
+      return exception == null ? failedSOPs.size() : files.size();
+    }
+  }
+
   public StowrsMultiFiles(String requestURL, Multipart.ContentType contentType) throws IOException {
     this(requestURL, contentType, null, null);
   }
@@ -46,65 +107,189 @@ public class StowrsMultiFiles extends AbstractStowrs {
     super(requestURL, contentType, agentName, headers);
   }
 
+  public int getMaxFilesPerRequest() {
+    return maxFilesPerRequest;
+  }
+
+  /** @param maxFilesPerRequest the maximum number of files in one request, 0 for no limit */
+  public void setMaxFilesPerRequest(int maxFilesPerRequest) {
+    this.maxFilesPerRequest = Math.max(0, maxFilesPerRequest);
+  }
+
+  public long getMaxBytesPerRequest() {
+    return maxBytesPerRequest;
+  }
+
+  /**
+   * @param maxBytesPerRequest the maximum size of the files in one request, 0 for no limit. A file
+   *     larger than the limit is sent alone.
+   */
+  public void setMaxBytesPerRequest(long maxBytesPerRequest) {
+    this.maxBytesPerRequest = Math.max(0, maxBytesPerRequest);
+  }
+
+  public int getParallelRequests() {
+    return parallelRequests;
+  }
+
+  /** @param parallelRequests the number of requests posted concurrently, the default value is 1 */
+  public void setParallelRequests(int parallelRequests) {
+    this.parallelRequests = Math.max(1, parallelRequests);
+  }
+
   public DicomState uploadDicom(List<String> filesOrFolders, boolean recursive) throws IOException {
-    HttpURLConnection httpPost = buildConnection();
+    List<File> files = new ArrayList<>();
+    for (String entry : filesOrFolders) {
+      File file = new File(entry);
+      if (file.isDirectory()) {
+        FileUtil.getAllFilesInDirectory(file, files, recursive);
+      } else {
+        files.add(file);
+      }
+    }
+    return upload(files, null);
+  }
+
+  DicomState upload(List<File> files, BatchListener listener) {
     DicomState state = new DicomState(new DicomProgress());
-    String message = null;
-    int nbFile = 0;
-    try (DataOutputStream out = new DataOutputStream(httpPost.getOutputStream())) {
-      for (String entry : filesOrFolders) {
-        File file = new File(entry);
-        if (file.isDirectory()) {
-          List<File> fileList = new ArrayList<>();
-          FileUtil.getAllFilesInDirectory(file, fileList, recursive);
-          for (File f : fileList) {
-            uploadFile(f, out);
-            nbFile++;
-          }
-        } else {
-          uploadFile(file, out);
-          nbFile++;
+    List<List<File>> batches = splitInBatches(files);
+    List<BatchResult> results = new ArrayList<>(batches.size());
+    int nbThreads = Math.min(parallelRequests, batches.size());
+    if (nbThreads <= 1) {
+      for (List<File> batch : batches) {
+        results.add(uploadBatch(batch, listener));
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+      try {
+        List<Future<BatchResult>> futures = new ArrayList<>(batches.size());
+        for (List<File> batch : batches) {
+          futures.add(executor.submit(() -> uploadBatch(batch, listener)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+          results.add(getResult(futures.get(i), batches.get(i)));
         }
+      } finally {
+        ServiceUtil.shutdownService(executor);
       }
-      Attributes error = writeEndMarkers(httpPost, out);
-      if (error == null) {
-        state.setStatus(Status.Success);
-        message = "all the files has been tranfered";
-      } else {
-        message = "one or more files has not been tranfered";
-        state.setStatus(Status.OneOrMoreFailures);
-        DicomProgress p = state.getProgress();
-        if (p != null) {
-          Sequence seq = error.getSequence(Tag.FailedSOPSequence);
-          if (seq != null && !seq.isEmpty()) {
-            Attributes cmd = Optional.ofNullable(p.getAttributes()).orElseGet(Attributes::new);
-            cmd.setInt(Tag.Status, VR.US, Status.OneOrMoreFailures);
-            cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, nbFile);
-            cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, seq.size());
-            cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
-            cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US, 0);
-            p.setAttributes(cmd);
-            message =
-                seq.stream()
-                    .map(
-                        s ->
-                            s.getString(Tag.ReferencedSOPInstanceUID, "Unknown SopUID")
-                                + " -> "
-                                + s.getString(Tag.FailureReason))
-                    .collect(Collectors.joining(","));
-            return DicomState.buildMessage(
-                state, null, new RuntimeException("Failed instances: " + message));
-          }
+    }
+    return buildState(state, files.size(), results);
+  }
+
+  private static BatchResult getResult(Future<BatchResult> future, List<File> files) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return new BatchResult(files, null, e);
+    } catch (ExecutionException e) {
+      return new BatchResult(files, null, (Exception) e.getCause());
+    }
+  }
+
+  List<List<File>> splitInBatches(List<File> files) {
+    List<List<File>> batches = new ArrayList<>();
+    List<File> batch = new ArrayList<>();
+    long batchSize = 0;
+    for (File file : files) {
+      long length = file.length();
+      boolean full =
+          (maxFilesPerRequest > 0 && batch.size() >= maxFilesPerRequest)
+              || (maxBytesPerRequest > 0 && batchSize + length > maxBytesPerRequest);
+      if (full && !batch.isEmpty()) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchSize = 0;
+      }
+      batch.add(file);
+      batchSize += length;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  private BatchResult uploadBatch(List<File> files, BatchListener listener) {
+    BatchResult result = postBatch(files);
+    if (listener != null) {
+      listener.batchCompleted(result);
+    }
+    return result;
+  }
+
+  private BatchResult postBatch(List<File> files) {
+    HttpURLConnection httpPost = null;
+    try {
+      // The length is known in advance, so the files are streamed without chunk overhead
+      httpPost = buildConnection(getContentLength(files));
+      setNumberOfInstances(httpPost, files.size());
+      try (DataOutputStream out = new DataOutputStream(getOutputStream(httpPost))) {
+        for (File file : files) {
+          uploadFile(file, out);
         }
+        return new BatchResult(files, readEndResponse(httpPost, out), null);
       }
     } catch (Exception e) {
-      state.setStatus(Status.UnableToProcess);
       LOGGER.error("STOWRS: error when posting data", e); // $NON-NLS-1$
-      return DicomState.buildMessage(state, "STOWRS: error when posting data", e);
+      return new BatchResult(files, null, e);
     } finally {
-      removeConnection(httpPost);
+      if (httpPost != null) {
+        releaseConnection(httpPost);
+      }
+    }
+  }
+
+  private static DicomState buildState(
+      DicomState state, int numberOfFiles, List<BatchResult> results) {
+    int nbFailed = numberOfFiles;
+    Exception exception = null;
+    List<Attributes> failedSOPs = new ArrayList<>();
+    for (BatchResult r : results) {
+      nbFailed -= r.getFiles().size() - r.getNumberOfFailures();
+      failedSOPs.addAll(r.getFailedSOPs());
+      if (exception == null) {
+        exception = r.getException();
+      }
+    }
+
+    if (nbFailed == 0) {
+      state.setStatus(Status.Success);
+      return DicomState.buildMessage(state, "all the files has been tranfered", null);
+    }
+
+    state.setStatus(nbFailed < numberOfFiles ? Status.OneOrMoreFailures : Status.UnableToProcess);
+    DicomProgress p = state.getProgress();
+    Attributes cmd = Optional.ofNullable(p.getAttributes()).orElseGet(Attributes::new);
+    cmd.setInt(Tag.Status, VR.US, state.getStatus());
+    cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, numberOfFiles - nbFailed);
+    cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, nbFailed);
+    cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+    cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US, 0);
+    p.setAttributes(cmd);
+
+    if (!failedSOPs.isEmpty()) {
+      String message =
+          failedSOPs.stream()
+              .map(
+                  s ->
+                      s.getString(Tag.ReferencedSOPInstanceUID, "Unknown SopUID")
+                          + " -> "
+                          + s.getString(Tag.FailureReason))
+              .collect(Collectors.joining(","));
+      return DicomState.buildMessage(
+          state, null, new RuntimeException("Failed instances: " + message, exception));
+    }
+    return DicomState.buildMessage(state, "STOWRS: error when posting data", exception);
+  }
+
+  long getContentLength(List<File> files) {
+    long length = getEndMarkersLength();
+    for (File file : files) {
+      length += getContentMarkersLength() + file.length();
     }
-    return DicomState.buildMessage(state, message, null);
+    return length;
   }
 
   private void uploadFile(File file, DataOutputStream out) throws IOException {
@@ -9,24 +9,17 @@
  */
 package org.weasis.dicom.web;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.nio.file.Files;
 import java.util.Map;
-import javax.json.Json;
-import javax.json.stream.JsonGenerator;
-import javax.xml.transform.stream.StreamResult;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.BulkData;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomOutputStream;
-import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.json.JSONWriter;
 import org.weasis.core.util.FileUtil;
 
 public class StowrsSingleFile extends AbstractStowrs implements UploadSingleFile {
@@ -47,7 +40,7 @@ public class StowrsSingleFile extends AbstractStowrs implements UploadSingleFile
   public void uploadDicom(InputStream in, Attributes fmi, String tsuid, String iuid)
       throws IOException {
     HttpURLConnection httpPost = buildConnection();
-    try (DataOutputStream out = new DataOutputStream(httpPost.getOutputStream());
+    try (DataOutputStream out = new DataOutputStream(getOutputStream(httpPost));
         DicomOutputStream dos = new DicomOutputStream(out, tsuid)) {
       writeContentMarkers(out);
       dos.writeFileMetaInformation(fmi);
@@ -66,7 +59,7 @@ public class StowrsSingleFile extends AbstractStowrs implements UploadSingleFile
   @Override
   public void uploadDicom(Attributes metadata, String tsuid) throws IOException {
     HttpURLConnection httpPost = buildConnection();
-    try (DataOutputStream out = new DataOutputStream(httpPost.getOutputStream());
+    try (DataOutputStream out = new DataOutputStream(getOutputStream(httpPost));
         DicomOutputStream dos = new DicomOutputStream(out, tsuid)) {
       writeContentMarkers(out);
       Attributes fmi = metadata.createFileMetaInformation(tsuid);
@@ -92,34 +85,9 @@ public class StowrsSingleFile extends AbstractStowrs implements UploadSingleFile
     ensureUID(metadata, Tag.SeriesInstanceUID);
     ensureUID(metadata, Tag.SOPInstanceUID);
 
-    try (ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(httpPost.getOutputStream())) {
-      if (getContentType() == Multipart.ContentType.JSON)
-        try (JsonGenerator gen = Json.createGenerator(bOut)) {
-          new JSONWriter(gen).write(metadata);
-        }
-      else {
-        SAXTransformer.getSAXWriter(new StreamResult(bOut)).write(metadata);
-      }
-
-      writeContentMarkers(out);
-
-      out.write(bOut.toByteArray());
-
-      // Segment and headers for a part
-      out.write(Multipart.Separator.BOUNDARY.getType());
-      out.writeBytes(MULTIPART_BOUNDARY);
-      byte[] fsep = Multipart.Separator.FIELD.getType();
-      out.write(fsep);
-      out.writeBytes("Content-Type: "); // $NON-NLS-1$
-      out.writeBytes(mimeType);
-      out.write(fsep);
-      out.writeBytes("Content-Location: "); // $NON-NLS-1$
-      out.writeBytes(getContentLocation(metadata));
-      out.write(Multipart.Separator.HEADER.getType());
-
-      Files.copy(bulkDataFile.toPath(), out);
-
+    try (DataOutputStream out = new DataOutputStream(getOutputStream(httpPost))) {
+      writeMetadata(out, metadata);
+      writeBulkData(out, mimeType, getContentLocation(metadata), bulkDataFile.toPath());
       writeEndMarkers(httpPost, out, metadata.getString(Tag.SOPInstanceUID));
     } finally {
       removeConnection(httpPost);
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.StringUtil;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomProgress;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
+import org.weasis.dicom.util.ServiceUtil;
+
+/**
+ * WADO-RS client retrieving studies, series or instances as multipart/related application/dicom.
+ * Each part is streamed to the handler without being buffered, and the series of a study can be
+ * requested concurrently. The HTTP connections are released to the keep-alive cache after each
+ * request.
+ *
+ * <p>The handler is called from several threads when the series are retrieved concurrently.
+ */
+public class WadoRsRetriever {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WadoRsRetriever.class);
+
+  /** Accept any transfer syntax, usually the one of the stored instances */
+  public static final String ANY_TRANSFER_SYNTAX = "*";
+
+  private final String serviceURL;
+  private final String agentName;
+  private final Map<String, String> headers;
+  private String[] transferSyntaxes = {ANY_TRANSFER_SYNTAX};
+  private int parallelRequests = 4;
+  private int bufferSize = MultipartReader.DEFAULT_BUFFER_SIZE;
+  private int connectTimeout = 10000;
+  private int readTimeout = 60000;
+
+  /**
+   * @param serviceURL the base URL of the WADO-RS service (without "/studies")
+   * @param agentName the value of the User-Agent HTTP property
+   * @param headers some additional header properties (e.g. authentication)
+   */
+  public WadoRsRetriever(String serviceURL, String agentName, Map<String, String> headers) {
+    String url = Objects.requireNonNull(serviceURL, "serviceURL cannot be null").trim();
+    if (url.endsWith("/")) {
+      url = url.substring(0, url.length() - 1);
+    }
+    if (url.endsWith("/studies")) {
+      url = url.substring(0, url.length() - 8);
+    }
+    this.serviceURL = url;
+    this.agentName = agentName;
+    this.headers = headers;
+  }
+
+  public String[] getTransferSyntaxes() {
+    return transferSyntaxes;
+  }
+
+  /**
+   * @param transferSyntaxes the accepted transfer syntaxes in order of preference. The default
+   *     value is {@link #ANY_TRANSFER_SYNTAX}.
+   */
+  public void setTransferSyntaxes(String... transferSyntaxes) {
+    if (transferSyntaxes == null || transferSyntaxes.length == 0) {
+      this.transferSyntaxes = new String[] {ANY_TRANSFER_SYNTAX};
+    } else {
+      this.transferSyntaxes = Arrays.copyOf(transferSyntaxes, transferSyntaxes.length);
+    }
+  }
+
+  public int getParallelRequests() {
+    return parallelRequests;
+  }
+
+  /** @param parallelRequests the maximum number of series requested concurrently */
+  public void setParallelRequests(int parallelRequests) {
+    this.parallelRequests = Math.max(1, parallelRequests);
+  }
+
+  /** @param bufferSize the size of the buffer of the multipart parser */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /** @return the value of the Accept header with one media range per transfer syntax */
+  public String getAcceptHeader() {
+    return Arrays.stream(transferSyntaxes)
+        .map(
+            ts ->
+                Multipart.MULTIPART_RELATED
+                    + "; type=\""
+                    + Multipart.ContentType.DICOM
+                    + "\"; transfer-syntax="
+                    + ts)
+        .collect(Collectors.joining(", "));
+  }
+
+  public DicomState retrieveStudy(String studyUID, InstanceHandler handler) {
+    return retrieveResources(handler, getResourceURL(studyUID, null, null));
+  }
+
+  public DicomState retrieveSeries(String studyUID, String seriesUID, InstanceHandler handler) {
+    return retrieveResources(handler, getResourceURL(studyUID, seriesUID, null));
+  }
+
+  /**
+   * Retrieve several series of a study concurrently.
+   *
+   * @param studyUID the Study Instance UID
+   * @param seriesUIDs the Series Instance UIDs
+   * @param handler the handler receiving each instance
+   * @return the state of the retrieval
+   */
+  public DicomState retrieveSeries(
+      String studyUID, List<String> seriesUIDs, InstanceHandler handler) {
+    String[] urls = new String[seriesUIDs.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = getResourceURL(studyUID, seriesUIDs.get(i), null);
+    }
+    return retrieveResources(handler, urls);
+  }
+
+  public DicomState retrieveInstance(
+      String studyUID, String seriesUID, String sopInstanceUID, InstanceHandler handler) {
+    return retrieveResources(handler, getResourceURL(studyUID, seriesUID, sopInstanceUID));
+  }
+
+  /**
+   * Retrieve the instances matching the UIDs of the keys. Several values of Series Instance UID or
+   * SOP Instance UID are retrieved concurrently.
+   *
+   * @param handler the handler receiving each instance
+   * @param keys the Study Instance UID (required), Series Instance UID and SOP Instance UID. The
+   *     SOP Instance UIDs require one Series Instance UID.
+   * @return the state of the retrieval
+   */
+  public DicomState retrieve(InstanceHandler handler, DicomParam... keys) {
+    String[] studies = getValues(keys, Tag.StudyInstanceUID);
+    String[] series = getValues(keys, Tag.SeriesInstanceUID);
+    String[] instances = getValues(keys, Tag.SOPInstanceUID);
+    if (studies.length != 1) {
+      return new DicomState(
+          Status.UnableToProcess, "WADO-RS requires one Study Instance UID", null);
+    }
+    if (instances.length > 0 && series.length != 1) {
+      // Do not retrieve the whole study or several series instead of the requested instances
+      return new DicomState(
+          Status.UnableToProcess,
+          "WADO-RS requires one Series Instance UID to retrieve SOP Instance UIDs",
+          null);
+    }
+    List<String> urls = new ArrayList<>();
+    if (instances.length > 0) {
+      for (String iuid : instances) {
+        urls.add(getResourceURL(studies[0], series[0], iuid));
+      }
+    } else if (series.length > 0) {
+      for (String suid : series) {
+        urls.add(getResourceURL(studies[0], suid, null));
+      }
+    } else {
+      urls.add(getResourceURL(studies[0], null, null));
+    }
+    return retrieveResources(handler, urls.toArray(new String[0]));
+  }
+
+  private static String[] getValues(DicomParam[] keys, int tag) {
+    for (DicomParam p : keys) {
+      if (p.getTag() == tag && p.getValues() != null) {
+        return Arrays.stream(p.getValues()).filter(StringUtil::hasText).toArray(String[]::new);
+      }
+    }
+    return new String[0];
+  }
+
+  private String getResourceURL(String studyUID, String seriesUID, String sopInstanceUID) {
+    StringBuilder buf = new StringBuilder(serviceURL);
+    buf.append("/studies/").append(Objects.requireNonNull(studyUID));
+    if (seriesUID != null) {
+      buf.append("/series/").append(seriesUID);
+      if (sopInstanceUID != null) {
+        buf.append("/instances/").append(sopInstanceUID);
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * @param handler the handler receiving each instance
+   * @param urls the WADO-RS resources, requested concurrently
+   * @return the state of the retrieval. A resource without instance (HTTP 204 or 404) is an empty
+   *     result, not a failure.
+   */
+  public DicomState retrieveResources(InstanceHandler handler, String... urls) {
+    Objects.requireNonNull(handler);
+    DicomState state = new DicomState(new DicomProgress());
+    Counter counter = new Counter();
+    long t1 = System.currentTimeMillis();
+    List<Exception> errors = new ArrayList<>();
+    try {
+      int nbThreads = Math.min(parallelRequests, urls.length);
+      if (nbThreads <= 1) {
+        for (String url : urls) {
+          addError(errors, request(url, handler, counter));
+        }
+      } else {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+          List<Future<Exception>> futures = new ArrayList<>(urls.length);
+          for (String url : urls) {
+            futures.add(executor.submit(() -> request(url, handler, counter)));
+          }
+          for (Future<Exception> f : futures) {
+            addError(errors, getResult(f));
+          }
+        } finally {
+          ServiceUtil.shutdownService(executor);
+        }
+      }
+    } finally {
+      handler.completed();
+    }
+    long t2 = System.currentTimeMillis();
+    return buildState(state, counter, errors, t1, t2);
+  }
+
+  private static void addError(List<Exception> errors, Exception e) {
+    if (e != null) {
+      errors.add(e);
+    }
+  }
+
+  private static Exception getResult(Future<Exception> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return e;
+    } catch (ExecutionException e) {
+      return (Exception) e.getCause();
+    }
+  }
+
+  private DicomState buildState(
+      DicomState state, Counter counter, List<Exception> errors, long t1, long t2) {
+    int completed = counter.completed.get();
+    int failed = counter.failed.get();
+    if (errors.isEmpty() && failed == 0) {
+      state.setStatus(Status.Success);
+    } else if (completed > 0) {
+      state.setStatus(Status.OneOrMoreFailures);
+    } else {
+      state.setStatus(Status.UnableToProcess);
+    }
+    DicomProgress p = state.getProgress();
+    Attributes cmd = Optional.ofNullable(p.getAttributes()).orElseGet(Attributes::new);
+    cmd.setInt(Tag.Status, VR.US, state.getStatus());
+    cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+    cmd.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed);
+    cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+    cmd.setInt(Tag.NumberOfRemainingSuboperations, VR.US, 0);
+    p.setAttributes(cmd);
+
+    String timeMsg =
+        MessageFormat.format(
+            "WADO-RS connected in {0}ms to {1}. Get {2} instances in {3}ms.",
+            counter.firstResponse.get() < 0 ? 0 : counter.firstResponse.get() - t1,
+            serviceURL,
+            completed,
+            t2 - t1);
+    Exception e = errors.isEmpty() ? null : errors.get(0);
+    return DicomState.buildMessage(state, timeMsg, e);
+  }
+
+  private static class Counter {
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong firstResponse = new AtomicLong(-1);
+  }
+
+  HttpURLConnection openConnection(String url) throws IOException {
+    return (HttpURLConnection) new URL(url).openConnection();
+  }
+
+  private HttpURLConnection buildConnection(String url) throws IOException {
+    HttpURLConnection httpGet = openConnection(url);
+    httpGet.setUseCaches(false);
+    httpGet.setDoInput(true);
+    httpGet.setRequestMethod("GET");
+    httpGet.setConnectTimeout(connectTimeout);
+    httpGet.setReadTimeout(readTimeout);
+    httpGet.setRequestProperty("Accept", getAcceptHeader());
+    httpGet.setRequestProperty("User-Agent", agentName == null ? "Weasis WADORS" : agentName);
+    httpGet.setRequestProperty("Accept-Encoding", Multipart.ACCEPT_ENCODING);
+    if (headers != null) {
+      for (Entry<String, String> element : headers.entrySet()) {
+        httpGet.setRequestProperty(element.getKey(), element.getValue());
+      }
+    }
+    return httpGet;
+  }
+
+  private Exception request(String url, InstanceHandler handler, Counter counter) {
+    HttpURLConnection httpGet = null;
+    try {
+      httpGet = buildConnection(url);
+      int code = httpGet.getResponseCode();
+      counter.firstResponse.compareAndSet(-1, System.currentTimeMillis());
+      if (code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_FOUND) {
+        // No matching instance is an empty result, not a failure of the retrieval
+        LOGGER.info("WADO-RS: no instance found for {}", url);
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+          discard(httpGet.getErrorStream());
+        }
+        return null;
+      }
+      if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+        throw new HttpServerErrorException(
+            String.format(
+                "WADO-RS server response message: HTTP Status-Code %d: %s",
+                code, httpGet.getResponseMessage()));
+      }
+      if (code == HttpURLConnection.HTTP_PARTIAL) {
+        LOGGER.warn("WADO-RS: some instances of {} are not available", url);
+      }
+      try (InputStream in = httpGet.getInputStream()) {
+        Multipart.parseMultipartRelated(
+            httpGet,
+            in,
+            (reader, partNumber, partHeaders) -> readPart(reader, handler, counter),
+            bufferSize);
+        // Read the epilogue, so the connection can be reused
+        discard(in);
+      }
+      return null;
+    } catch (Exception e) {
+      LOGGER.error("WADO-RS: cannot retrieve {}", url, e);
+      if (httpGet != null) {
+        httpGet.disconnect();
+      }
+      return e;
+    }
+  }
+
+  private static void discard(InputStream in) throws IOException {
+    if (in != null) {
+      try (InputStream stream = in) {
+        byte[] buf = new byte[4096];
+        while (stream.read(buf) != -1) {
+          // Discard the remaining content
+        }
+      }
+    }
+  }
+
+  private static void readPart(MultipartReader reader, InstanceHandler handler, Counter counter)
+      throws IOException {
+    try (MultipartReader.PartInputStream part = reader.newPartInputStream();
+        DicomInputStream dis = new DicomInputStream(part)) {
+      Attributes fmi = dis.readFileMetaInformation();
+      if (fmi == null) {
+        throw new IOException("The part has no file meta information");
+      }
+      handler.handle(fmi, dis);
+      counter.completed.incrementAndGet();
+    } catch (MultipartStreamException e) {
+      // The multipart stream is broken, the next parts cannot be read
+      throw e;
+    } catch (Exception e) {
+      counter.failed.incrementAndGet();
+      LOGGER.error("WADO-RS: cannot handle an instance", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return serviceURL;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.dcm4che3.tool.findscu;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.json.JSONReader;
+import org.dcm4che3.json.JSONWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FindSCUTest {
+
+  @Test
+  public void testJsonLines() throws IOException {
+    StringWriter out = new StringWriter();
+    JsonGenerator gen = Json.createGenerator(new FindSCU.JsonLinesWriter(out));
+    gen.writeStartArray();
+    Attributes match = new Attributes();
+    match.setString(Tag.PatientName, VR.PN, "Doe^John, \"[Jr]\" {x}\\");
+    match.setString(Tag.ModalitiesInStudy, VR.CS, "CT", "MR");
+    new JSONWriter(gen).write(match);
+    gen.flush();
+    // Each match is written as soon as it is complete
+    Assert.assertTrue(out.toString().endsWith("}\n"));
+    new JSONWriter(gen).write(new Attributes());
+    gen.writeEnd();
+    gen.close();
+
+    String[] lines = out.toString().split("\n", -1);
+    Assert.assertEquals(3, lines.length);
+    Assert.assertEquals("", lines[2]);
+    Attributes parsed =
+        new JSONReader(Json.createParser(new StringReader(lines[0])))
+            .readDataset(new Attributes());
+    Assert.assertEquals("Doe^John, \"[Jr]\" {x}\\", parsed.getString(Tag.PatientName));
+    Assert.assertArrayEquals(new String[] {"CT", "MR"}, parsed.getStrings(Tag.ModalitiesInStudy));
+    Assert.assertEquals("{}", lines[1]);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.dcm4che3.tool.movescu;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomNode;
+
+public class MoveSCUTest {
+  private static final String CALLING_AET = "WEASIS";
+  private static final int MESSAGE_ID = 5;
+
+  private MoveSCU moveSCU;
+  private List<String> handled;
+
+  @Before
+  public void setUp() throws IOException {
+    handled = new ArrayList<>();
+    moveSCU = new MoveSCU();
+    moveSCU.getApplicationEntity().setAETitle(CALLING_AET);
+    moveSCU.setStorageSCP(
+        new DicomNode("STORESCP", "localhost", 11113),
+        (fmi, data) -> handled.add(fmi.getString(Tag.MediaStorageSOPInstanceUID)));
+    moveSCU.startMove(MESSAGE_ID);
+  }
+
+  private static Attributes storeRq(int originatorID, String originatorAET) {
+    Attributes rq = new Attributes();
+    if (originatorID != -1) {
+      rq.setInt(Tag.MoveOriginatorMessageID, VR.US, originatorID);
+    }
+    if (originatorAET != null) {
+      rq.setString(Tag.MoveOriginatorApplicationEntityTitle, VR.AE, originatorAET);
+    }
+    return rq;
+  }
+
+  private void receive(Attributes rq, String iuid) throws DicomServiceException {
+    Attributes fmi =
+        Attributes.createFileMetaInformation(
+            iuid, UID.CTImageStorage, UID.ExplicitVRLittleEndian);
+    moveSCU.receive(rq, fmi, new ByteArrayInputStream(new byte[0]));
+  }
+
+  private static Attributes finalRsp(int completed, int warning) {
+    Attributes cmd = new Attributes();
+    cmd.setInt(Tag.Status, VR.US, 0);
+    cmd.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+    cmd.setInt(Tag.NumberOfWarningSuboperations, VR.US, warning);
+    return cmd;
+  }
+
+  @Test
+  public void testCorrelation() {
+    Assert.assertTrue(moveSCU.isRelated(storeRq(MESSAGE_ID, CALLING_AET)));
+    Assert.assertFalse(moveSCU.isRelated(storeRq(MESSAGE_ID + 1, CALLING_AET)));
+    Assert.assertFalse(moveSCU.isRelated(storeRq(MESSAGE_ID, "OTHER")));
+
+    // Without originator, the instances are rejected by default
+    Assert.assertFalse(moveSCU.isRelated(storeRq(-1, null)));
+    Assert.assertFalse(moveSCU.isRelated(storeRq(MESSAGE_ID, null)));
+    Assert.assertFalse(moveSCU.isRelated(storeRq(-1, CALLING_AET)));
+
+    moveSCU.setAcceptUncorrelatedInstances(true);
+    Assert.assertTrue(moveSCU.isRelated(storeRq(-1, null)));
+    Assert.assertTrue(moveSCU.isRelated(storeRq(MESSAGE_ID, null)));
+    Assert.assertTrue(moveSCU.isRelated(storeRq(-1, CALLING_AET)));
+    // A different originator is never accepted
+    Assert.assertFalse(moveSCU.isRelated(storeRq(MESSAGE_ID + 1, null)));
+    Assert.assertFalse(moveSCU.isRelated(storeRq(-1, "OTHER")));
+  }
+
+  @Test
+  public void testReceive() throws Exception {
+    receive(storeRq(MESSAGE_ID, CALLING_AET), "1.2.3.1");
+    try {
+      receive(storeRq(MESSAGE_ID + 1, CALLING_AET), "1.2.3.2");
+      Assert.fail("The instance of another C-MOVE must be rejected");
+    } catch (DicomServiceException e) {
+      Assert.assertEquals(0x0110, e.getStatus());
+    }
+    Assert.assertEquals(1, handled.size());
+    Assert.assertEquals("1.2.3.1", handled.get(0));
+
+    List<MoveSCU.ReceivedInstance> instances = moveSCU.getReceivedInstances();
+    Assert.assertEquals(1, instances.size());
+    MoveSCU.ReceivedInstance instance = instances.get(0);
+    Assert.assertEquals("1.2.3.1", instance.getSopInstanceUID());
+    Assert.assertEquals(UID.CTImageStorage, instance.getSopClassUID());
+    Assert.assertTrue(instance.getTransferTime() >= 0);
+    Assert.assertTrue(instance.getLatency() >= instance.getTransferTime());
+  }
+
+  @Test
+  public void testLatency() throws Exception {
+    Thread.sleep(50);
+    receive(storeRq(MESSAGE_ID, CALLING_AET), "1.2.3.1");
+    // The latency starts at the C-MOVE request
+    Assert.assertTrue(moveSCU.getReceivedInstances().get(0).getLatency() >= 50);
+  }
+
+  @Test
+  public void testWaitForCompletion() throws Exception {
+    // No final response
+    Assert.assertEquals(-1, moveSCU.getNumberOfExpectedInstances());
+    Assert.assertFalse(moveSCU.waitForCompletion(10));
+
+    moveSCU.setFinalResponse(finalRsp(1, 1));
+    Assert.assertEquals(2, moveSCU.getNumberOfExpectedInstances());
+    receive(storeRq(MESSAGE_ID, CALLING_AET), "1.2.3.1");
+    long start = System.currentTimeMillis();
+    Assert.assertFalse(moveSCU.waitForCompletion(50));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+
+    Thread receiver =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+                receive(storeRq(MESSAGE_ID, CALLING_AET), "1.2.3.2");
+              } catch (Exception e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    receiver.start();
+    Assert.assertTrue(moveSCU.waitForCompletion(5000));
+    receiver.join();
+    Assert.assertEquals(2, moveSCU.getReceivedInstances().size());
+  }
+}
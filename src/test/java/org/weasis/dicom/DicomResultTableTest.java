@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.op.CFind;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomResultTable;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.tool.ModalityWorklist;
+
+public class DicomResultTableTest {
+
+  @Test
+  public void testCompactStorage() {
+    DicomParam[] keys = {
+      CFind.PatientID, CFind.StudyInstanceUID, CFind.Modality, ModalityWorklist.ScheduledStationName
+    };
+    DicomResultTable table = new DicomResultTable(keys);
+    DicomState state = new DicomState();
+    state.setResultTable(table);
+
+    int nb = 1000;
+    for (int i = 0; i < nb; i++) {
+      Attributes attrs = new Attributes();
+      attrs.setString(Tag.PatientID, VR.LO, "PAT" + i);
+      attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3." + i);
+      attrs.setString(Tag.Modality, VR.CS, i % 2 == 0 ? "CT" : "MR");
+      attrs.setString(Tag.StudyDescription, VR.LO, "Not a requested key");
+      Attributes sps = new Attributes();
+      sps.setString(Tag.ScheduledStationName, VR.SH, "STATION\\BACKUP");
+      attrs.newSequence(Tag.ScheduledProcedureStepSequence, 1).add(sps);
+      state.addDicomRSP(attrs);
+    }
+
+    Assert.assertTrue(state.getDicomRSP().isEmpty());
+    Assert.assertEquals(nb, table.size());
+
+    DicomResultTable.Row row = table.get(501);
+    Assert.assertEquals("PAT501", row.getString(Tag.PatientID));
+    Assert.assertEquals("1.2.3.501", row.getString(Tag.StudyInstanceUID));
+    Assert.assertEquals("MR", row.getString(CFind.Modality));
+    Assert.assertNull(row.getString(Tag.StudyDescription));
+    Assert.assertEquals("STATION\\BACKUP", row.getString(ModalityWorklist.ScheduledStationName));
+
+    Attributes attrs = row.toAttributes();
+    Assert.assertEquals("PAT501", attrs.getString(Tag.PatientID));
+    Attributes sps = attrs.getNestedDataset(Tag.ScheduledProcedureStepSequence);
+    Assert.assertNotNull(sps);
+    Assert.assertArrayEquals(
+        new String[] {"STATION", "BACKUP"}, sps.getStrings(Tag.ScheduledStationName));
+
+    int count = 0;
+    for (DicomResultTable.Row r : table) {
+      Assert.assertEquals("PAT" + r.getIndex(), r.getString(Tag.PatientID));
+      count++;
+    }
+    Assert.assertEquals(nb, count);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.web.MultipartReader;
+import org.weasis.dicom.web.MultipartReader.PartInputStream;
+
+public class MultipartReaderTest {
+  private static final String BOUNDARY = "6c0a9a2e-4b5d-4c8e-9d3f-boundary";
+
+  private static byte[] buildPayload(List<byte[]> parts) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(("preamble\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+    for (byte[] part : parts) {
+      out.write("\r\nContent-Type: application/dicom\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      out.write(part);
+      out.write(("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+    }
+    out.write("--\r\n".getBytes(StandardCharsets.US_ASCII));
+    return out.toByteArray();
+  }
+
+  private static List<byte[]> readParts(byte[] payload, int bufferSize, boolean channel)
+      throws IOException {
+    MultipartReader reader =
+        new MultipartReader(
+            new ByteArrayInputStream(payload),
+            BOUNDARY.getBytes(StandardCharsets.US_ASCII),
+            bufferSize);
+    List<byte[]> parts = new ArrayList<>();
+    boolean nextPart = reader.skipFirstBoundary();
+    while (nextPart) {
+      String headers = reader.readHeaders();
+      Assert.assertTrue(headers.contains("application/dicom"));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (PartInputStream in = reader.newPartInputStream()) {
+        if (channel) {
+          ByteBuffer buf = ByteBuffer.allocate(333);
+          while (in.read(buf) != -1) {
+            out.write(buf.array(), 0, buf.position());
+            buf.clear();
+          }
+        } else {
+          byte[] buf = new byte[333];
+          int n;
+          while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+          }
+        }
+      }
+      parts.add(out.toByteArray());
+      nextPart = reader.readBoundary();
+    }
+    return parts;
+  }
+
+  @Test
+  public void testPartsWithBoundaryLikeData() throws IOException {
+    Random random = new Random(42);
+    List<byte[]> parts = new ArrayList<>();
+    // Data full of CR, LF and dashes, with prefixes of the boundary
+    byte[] crData = new byte[20000];
+    for (int i = 0; i < crData.length; i++) {
+      crData[i] = (byte) "\r\n-6c0a".charAt(random.nextInt(7));
+    }
+    parts.add(crData);
+    byte[] randomData = new byte[50000];
+    random.nextBytes(randomData);
+    parts.add(randomData);
+    parts.add(("\r\n--" + BOUNDARY.substring(0, 20)).getBytes(StandardCharsets.US_ASCII));
+    parts.add(new byte[0]);
+
+    byte[] payload = buildPayload(parts);
+    for (int bufferSize : new int[] {128, 1000, 4096, 65536}) {
+      for (boolean channel : new boolean[] {false, true}) {
+        List<byte[]> result = readParts(payload, bufferSize, channel);
+        Assert.assertEquals(parts.size(), result.size());
+        for (int i = 0; i < parts.size(); i++) {
+          String message = "Part " + i + ", buffer " + bufferSize + ", channel " + channel;
+          Assert.assertArrayEquals(message, parts.get(i), result.get(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHeaderFields() throws IOException {
+    String payload =
+        "--"
+            + BOUNDARY
+            + "\r\nContent-Type: application/dicom; transfer-syntax=1.2.840.10008.1.2.1\r\n"
+            + "Content-Location: http://host/studies/1.2\r\n"
+            + "X-Folded: first\r\n\tsecond\r\n"
+            + "X-Multi: a\r\nx-multi: b\r\n\r\n"
+            + "data\r\n--"
+            + BOUNDARY
+            + "\r\n\r\nno header\r\n--"
+            + BOUNDARY
+            + "--";
+    MultipartReader reader =
+        new MultipartReader(
+            new ByteArrayInputStream(payload.getBytes(StandardCharsets.US_ASCII)),
+            BOUNDARY.getBytes(StandardCharsets.US_ASCII),
+            128);
+    Assert.assertTrue(reader.skipFirstBoundary());
+    Map<String, String> headers = reader.readHeaderFields();
+    Assert.assertEquals(
+        "application/dicom; transfer-syntax=1.2.840.10008.1.2.1", headers.get("Content-Type"));
+    Assert.assertEquals("http://host/studies/1.2", headers.get("Content-Location"));
+    Assert.assertEquals("first second", headers.get("X-Folded"));
+    Assert.assertEquals("a,b", headers.get("X-Multi"));
+    // The names are case-insensitive
+    Assert.assertEquals("http://host/studies/1.2", headers.get("content-location"));
+    Assert.assertTrue(headers.containsKey("CONTENT-TYPE"));
+    Assert.assertNull(headers.get("Content-Length"));
+    Assert.assertEquals(4, headers.size());
+    Assert.assertEquals("a,b", headers.entrySet().stream().skip(3).findFirst().get().getValue());
+    reader.newPartInputStream().close();
+    Assert.assertTrue(reader.readBoundary());
+    // The view is reused for the next part
+    Assert.assertSame(headers, reader.readHeaderFields());
+    Assert.assertTrue(headers.isEmpty());
+    Assert.assertNull(headers.get("Content-Type"));
+    reader.newPartInputStream().close();
+    Assert.assertFalse(reader.readBoundary());
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.op;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceQueue;
+
+public class CGetTest {
+
+  private static int getClosedPort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInMemoryWithoutHandler() {
+    CGet.process(
+        null,
+        new DicomNode("WEASIS-SCU"),
+        new DicomNode("DICOMSERVER", "localhost", 11112),
+        null,
+        (InstanceQueue) null,
+        null);
+  }
+
+  @Test
+  public void testInMemoryCompletesOnFailure() throws Exception {
+    InstanceQueue queue = new InstanceQueue(2);
+    DicomState state =
+        CGet.process(
+            null,
+            new DicomNode("WEASIS-SCU"),
+            new DicomNode("NOSCP", "localhost", getClosedPort()),
+            null,
+            queue,
+            null,
+            new DicomParam(Tag.StudyInstanceUID, "1.2.3"));
+    Assert.assertNotNull(state);
+    Assert.assertNotEquals(Status.Success, state.getStatus());
+    // The consumer is released when the retrieve operation fails
+    Assert.assertTrue(queue.isCompleted());
+    Assert.assertNull(queue.take());
+  }
+}
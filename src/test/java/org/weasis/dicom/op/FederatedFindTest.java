@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.op;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.op.FederatedFind.NodeResult;
+import org.weasis.dicom.op.FederatedFind.Precedence;
+import org.weasis.dicom.op.FederatedFind.Result;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomState;
+
+public class FederatedFindTest {
+  private static final DicomNode NODE_A = new DicomNode("ARCHIVE_A", "localhost", 11112);
+  private static final DicomNode NODE_B = new DicomNode("ARCHIVE_B", "localhost", 11113);
+
+  private static Attributes study(String uid, String description, String modalities) {
+    Attributes attrs = new Attributes();
+    if (uid != null) {
+      attrs.setString(Tag.StudyInstanceUID, VR.UI, uid);
+    }
+    if (description != null) {
+      attrs.setString(Tag.StudyDescription, VR.LO, description);
+    }
+    if (modalities != null) {
+      attrs.setString(Tag.ModalitiesInStudy, VR.CS, modalities);
+    }
+    return attrs;
+  }
+
+  private static NodeResult result(DicomNode node, boolean timedOut, Attributes... matches) {
+    DicomState state = new DicomState(Status.Success, null, null);
+    for (Attributes match : matches) {
+      state.addDicomRSP(match);
+    }
+    return new NodeResult(node, state, 10, timedOut);
+  }
+
+  @Test
+  public void testNodeOrder() {
+    Result result =
+        FederatedFind.merge(
+            Arrays.asList(
+                result(NODE_A, false, study("1.2.1", "CT A", null), study("1.2.2", "MR", null)),
+                result(NODE_B, false, study("1.2.1", "CT B", "CT\\SR"))),
+            Precedence.NODE_ORDER);
+
+    Assert.assertEquals(2, result.getMatches().size());
+    Attributes merged = result.getMatches().get(0);
+    Assert.assertEquals("CT A", merged.getString(Tag.StudyDescription));
+    // Missing values are supplemented from the other node
+    Assert.assertArrayEquals(new String[] {"CT", "SR"}, merged.getStrings(Tag.ModalitiesInStudy));
+    Assert.assertEquals(Arrays.asList(NODE_A, NODE_B), result.getSources("1.2.1"));
+    Assert.assertEquals(Collections.singletonList(NODE_A), result.getSources("1.2.2"));
+    Assert.assertTrue(result.getSources("1.2.3").isEmpty());
+  }
+
+  @Test
+  public void testMostComplete() {
+    Result result =
+        FederatedFind.merge(
+            Arrays.asList(
+                result(NODE_A, false, study("1.2.1", "CT A", null)),
+                result(NODE_B, false, study("1.2.1", "CT B", "CT"))),
+            Precedence.MOST_COMPLETE);
+
+    Assert.assertEquals(1, result.getMatches().size());
+    Attributes merged = result.getMatches().get(0);
+    Assert.assertEquals("CT B", merged.getString(Tag.StudyDescription));
+    Assert.assertEquals("CT", merged.getString(Tag.ModalitiesInStudy));
+    // The node of the kept match is the first source
+    Assert.assertEquals(Arrays.asList(NODE_B, NODE_A), result.getSources("1.2.1"));
+  }
+
+  @Test
+  public void testTimedOutNode() {
+    Result result =
+        FederatedFind.merge(
+            Arrays.asList(
+                result(NODE_A, true, study("1.2.1", "CT A", null)),
+                result(NODE_B, false, study("1.2.2", "MR", null), study(null, "No UID", null))),
+            Precedence.NODE_ORDER);
+
+    // The matches of the timed out node are ignored, the matches without UID are kept at the end
+    Assert.assertEquals(2, result.getMatches().size());
+    Assert.assertEquals("1.2.2", result.getMatches().get(0).getString(Tag.StudyInstanceUID));
+    Assert.assertEquals("No UID", result.getMatches().get(1).getString(Tag.StudyDescription));
+    Assert.assertTrue(result.getSources("1.2.1").isEmpty());
+    Assert.assertEquals(2, result.getNodeResults().size());
+    Assert.assertEquals(Status.Success, result.getStatus());
+
+    Result none =
+        FederatedFind.merge(
+            Collections.singletonList(result(NODE_A, true, study("1.2.1", "CT A", null))),
+            Precedence.NODE_ORDER);
+    Assert.assertTrue(none.getMatches().isEmpty());
+    Assert.assertEquals(Status.UnableToProcess, none.getStatus());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.op;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomParam;
+
+public class QueryTemplateTest {
+  private static final int PRIVATE_CREATOR = 0x00090010;
+  private static final int PRIVATE_TAG = 0x00091001;
+
+  @Test
+  public void testNewKeys() {
+    QueryTemplate template =
+        new QueryTemplate(
+            new DicomParam(Tag.Modality, "CT"),
+            CFind.PatientID,
+            CFind.StudyInstanceUID,
+            new DicomParam(
+                new int[] {Tag.ScheduledProcedureStepSequence}, Tag.ScheduledStationAETitle));
+
+    Attributes keys =
+        template.newKeys(
+            new DicomParam(Tag.PatientID, "12345"),
+            new DicomParam(Tag.AccessionNumber, "ACC1"),
+            new DicomParam(
+                new int[] {Tag.ScheduledProcedureStepSequence},
+                Tag.ScheduledStationAETitle,
+                "CT1"));
+    Assert.assertEquals("CT", keys.getString(Tag.Modality));
+    Assert.assertEquals("12345", keys.getString(Tag.PatientID));
+    Assert.assertEquals(VR.LO, keys.getVR(Tag.PatientID));
+    // A key not declared in the template
+    Assert.assertEquals("ACC1", keys.getString(Tag.AccessionNumber));
+    Assert.assertEquals(VR.SH, keys.getVR(Tag.AccessionNumber));
+    // Returning key
+    Assert.assertTrue(keys.contains(Tag.StudyInstanceUID));
+    Assert.assertNull(keys.getString(Tag.StudyInstanceUID));
+    Attributes sps = keys.getNestedDataset(Tag.ScheduledProcedureStepSequence);
+    Assert.assertEquals("CT1", sps.getString(Tag.ScheduledStationAETitle));
+    Assert.assertEquals(VR.AE, sps.getVR(Tag.ScheduledStationAETitle));
+
+    // The template is not modified by a request
+    Attributes other = template.newKeys();
+    Assert.assertNull(other.getString(Tag.PatientID));
+    Assert.assertFalse(other.contains(Tag.AccessionNumber));
+    Assert.assertNull(
+        other
+            .getNestedDataset(Tag.ScheduledProcedureStepSequence)
+            .getString(Tag.ScheduledStationAETitle));
+  }
+
+  @Test
+  public void testPrivateKeys() {
+    QueryTemplate template =
+        new QueryTemplate(
+            new DicomParam(PRIVATE_CREATOR, "CREATOR A"), new DicomParam(PRIVATE_TAG));
+
+    Attributes keys = template.newKeys(new DicomParam(PRIVATE_TAG, "value"));
+    Assert.assertEquals("CREATOR A", keys.getString(PRIVATE_CREATOR));
+    Assert.assertEquals(VR.LO, keys.getVR(PRIVATE_CREATOR));
+    Assert.assertEquals("CREATOR A", keys.getPrivateCreator(PRIVATE_TAG));
+    Assert.assertEquals("value", keys.getString(PRIVATE_TAG));
+
+    // The VR of a private key is resolved with the private creator of the target
+    Attributes target = new Attributes();
+    template.applyTo(target, new DicomParam(PRIVATE_TAG, "other"));
+    Assert.assertEquals("other", target.getString(PRIVATE_TAG));
+    Assert.assertEquals(
+        new DicomParam(PRIVATE_TAG).getVR(target.getPrivateCreator(PRIVATE_TAG)),
+        target.getVR(PRIVATE_TAG));
+  }
+}
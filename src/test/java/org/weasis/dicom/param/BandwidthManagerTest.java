@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.io.InterruptedIOException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.BandwidthManager.TokenBucket;
+import org.weasis.dicom.param.BandwidthManager.TrafficClass;
+
+public class BandwidthManagerTest {
+  private static final String DESTINATION = "http://localhost:8080";
+
+  private static long measure(TokenBucket bucket, int bytes) throws InterruptedIOException {
+    long start = System.nanoTime();
+    bucket.acquire(bytes);
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+  @Test
+  public void testUnlimited() throws InterruptedIOException {
+    TokenBucket bucket = new BandwidthManager().getBucket(DESTINATION, TrafficClass.INTERACTIVE);
+    Assert.assertEquals(0, bucket.getRate());
+    Assert.assertTrue(measure(bucket, Integer.MAX_VALUE) < 100);
+  }
+
+  @Test
+  public void testRate() throws InterruptedIOException {
+    TokenBucket bucket = new TokenBucket(1_000_000, null);
+    // The bucket is empty at the beginning, 200 KB take 200 ms at 1 MB/s
+    long elapsed = measure(bucket, 200_000);
+    Assert.assertTrue("Elapsed " + elapsed, elapsed >= 150 && elapsed < 1000);
+
+    bucket.setRate(0);
+    Assert.assertTrue(measure(bucket, 10_000_000) < 100);
+  }
+
+  @Test
+  public void testPreemption() throws InterruptedIOException {
+    BandwidthManager manager = new BandwidthManager();
+    manager.setRate(TrafficClass.BACKGROUND, 1_000_000);
+    manager.setBackgroundShare(0.5);
+    TokenBucket background = manager.getBucket(DESTINATION, TrafficClass.BACKGROUND);
+    TokenBucket interactive = manager.getBucket(DESTINATION, TrafficClass.INTERACTIVE);
+
+    interactive.begin();
+    try {
+      // 100 KB take 200 ms at half of 1 MB/s
+      long elapsed = measure(background, 100_000);
+      Assert.assertTrue("Elapsed " + elapsed, elapsed >= 150 && elapsed < 1000);
+    } finally {
+      interactive.end();
+    }
+    Assert.assertEquals(0, interactive.getActiveTransfers());
+  }
+
+  @Test
+  public void testRates() {
+    BandwidthManager manager = new BandwidthManager();
+    manager.setRate(TrafficClass.BACKGROUND, 1000);
+    TokenBucket bucket = manager.getBucket(DESTINATION, TrafficClass.BACKGROUND);
+    Assert.assertSame(bucket, manager.getBucket(DESTINATION, TrafficClass.BACKGROUND));
+    Assert.assertEquals(1000, bucket.getRate());
+
+    // The rate of the destination overrides the default rate
+    manager.setRate(DESTINATION, TrafficClass.BACKGROUND, 500);
+    Assert.assertEquals(500, bucket.getRate());
+    manager.setRate(TrafficClass.BACKGROUND, 2000);
+    Assert.assertEquals(500, bucket.getRate());
+    Assert.assertEquals(2000, manager.getRate("other", TrafficClass.BACKGROUND));
+    Assert.assertEquals(0, manager.getRate("other", TrafficClass.INTERACTIVE));
+  }
+
+  @Test(expected = InterruptedIOException.class)
+  public void testInterrupted() throws InterruptedIOException {
+    TokenBucket bucket = new TokenBucket(1000, null);
+    Thread.currentThread().interrupt();
+    try {
+      bucket.acquire(10_000);
+    } finally {
+      Assert.assertTrue(Thread.interrupted());
+    }
+  }
+
+  @Test
+  public void testDestination() {
+    Assert.assertEquals(
+        "https://host:443", BandwidthManager.getDestination("https://host/dicomweb/studies"));
+    Assert.assertEquals(
+        "http://host:8080", BandwidthManager.getDestination("http://host:8080/dicomweb"));
+    Assert.assertEquals(
+        "AET@host:104", BandwidthManager.getDestination(new DicomNode("AET", "host", 104)));
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DicomParamTest {
+
+  @Test
+  public void testPublicVR() {
+    DicomParam param = new DicomParam(Tag.StudyDate, "20210101");
+    Assert.assertEquals(VR.DA, param.getVR(null));
+    // Resolved once
+    Assert.assertSame(param.getVR(null), param.getVR(null));
+    Assert.assertEquals("StudyDate", param.getTagName());
+  }
+
+  @Test
+  public void testPrivateVR() {
+    int privateTag = 0x00091001;
+    DicomParam param = new DicomParam(privateTag, "value");
+    // Never cached, the VR depends on the private creator
+    Assert.assertEquals(ElementDictionary.vrOf(privateTag, "CREATOR A"), param.getVR("CREATOR A"));
+    Assert.assertEquals(ElementDictionary.vrOf(privateTag, "CREATOR B"), param.getVR("CREATOR B"));
+    Assert.assertEquals(ElementDictionary.vrOf(privateTag, null), param.getVR(null));
+    Assert.assertEquals(VR.LO, new DicomParam(0x00090010).getVR(null));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DicomProgressTest {
+
+  @Test
+  public void testConcurrentCancel() throws InterruptedException {
+    DicomProgress progress = new DicomProgress();
+    AtomicInteger notified = new AtomicInteger();
+    progress.addCancelListener(notified::incrementAndGet);
+
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                  progress.cancel();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertTrue(progress.isCancel());
+    Assert.assertEquals(1, notified.get());
+    Assert.assertEquals(Status.Cancel, progress.getStatus());
+
+    // A listener added after the cancellation is notified immediately
+    AtomicInteger late = new AtomicInteger();
+    progress.addCancelListener(late::incrementAndGet);
+    progress.cancel();
+    Assert.assertEquals(1, late.get());
+    Assert.assertEquals(1, notified.get());
+  }
+
+  @Test
+  public void testCancellationToken() {
+    DicomProgress progress = new DicomProgress();
+    CancellationToken token = new CancellationToken();
+    progress.setCancellationToken(token);
+    token.cancel();
+    Assert.assertTrue(progress.isCancel());
+
+    DicomProgress unlinked = new DicomProgress();
+    CancellationToken other = new CancellationToken();
+    unlinked.setCancellationToken(other);
+    unlinked.setCancellationToken(null);
+    other.cancel();
+    Assert.assertFalse(unlinked.isCancel());
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.param;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.InstanceQueue.Instance;
+
+public class InstanceQueueTest {
+
+  private static void put(InstanceQueue queue, String iuid) throws IOException {
+    Attributes fmi =
+        Attributes.createFileMetaInformation(
+            iuid, UID.CTImageStorage, UID.ExplicitVRLittleEndian);
+    Attributes dataset = new Attributes();
+    dataset.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+      dos.writeDataset(null, dataset);
+    }
+    queue.handle(fmi, new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void testTakeUntilCompleted() throws Exception {
+    InstanceQueue queue = new InstanceQueue(4);
+    put(queue, "1.2.3.1");
+    put(queue, "1.2.3.2");
+    queue.completed();
+    Assert.assertTrue(queue.isCompleted());
+
+    Instance instance = queue.take();
+    Assert.assertEquals("1.2.3.1", instance.getSopInstanceUID());
+    Assert.assertEquals(UID.ExplicitVRLittleEndian, instance.getTransferSyntaxUID());
+    Assert.assertEquals("1.2.3.1", instance.readDataset().getString(Tag.SOPInstanceUID));
+    Assert.assertEquals("1.2.3.2", queue.take().getSopInstanceUID());
+    // The end marker is kept for the next calls
+    Assert.assertNull(queue.take());
+    Assert.assertNull(queue.take());
+    Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testLength() throws Exception {
+    InstanceQueue queue = new InstanceQueue(1);
+    put(queue, "1.2.3.1");
+    Instance instance = queue.take();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[256];
+    int n;
+    try (InputStream in = instance.getInputStream()) {
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    }
+    Assert.assertEquals(instance.getLength(), out.size());
+  }
+
+  @Test
+  public void testPollTimeout() throws Exception {
+    InstanceQueue queue = new InstanceQueue(1);
+    Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    Assert.assertFalse(queue.isCompleted());
+  }
+
+  @Test
+  public void testTakeBlocksUntilCompleted() throws Exception {
+    InstanceQueue queue = new InstanceQueue(1);
+    Thread producer =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+                put(queue, "1.2.3.1");
+                queue.completed();
+              } catch (Exception e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    producer.start();
+    Assert.assertEquals("1.2.3.1", queue.take().getSopInstanceUID());
+    Assert.assertNull(queue.take());
+    producer.join();
+  }
+
+  @Test
+  public void testFullQueueBlocksProducer() throws Exception {
+    InstanceQueue queue = new InstanceQueue(1);
+    put(queue, "1.2.3.1");
+    AtomicBoolean stored = new AtomicBoolean(false);
+    Thread producer =
+        new Thread(
+            () -> {
+              try {
+                put(queue, "1.2.3.2");
+                stored.set(true);
+              } catch (IOException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    producer.start();
+    producer.join(100);
+    // The C-STORE-RSP is delayed until a consumer frees a place
+    Assert.assertFalse(stored.get());
+    Assert.assertEquals("1.2.3.1", queue.take().getSopInstanceUID());
+    producer.join(5000);
+    Assert.assertTrue(stored.get());
+    Assert.assertEquals("1.2.3.2", queue.take().getSopInstanceUID());
+  }
+}
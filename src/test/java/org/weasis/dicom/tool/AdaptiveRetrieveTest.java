@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.param.CancellationToken;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.tool.AdaptiveRetrieve.NodeProfile;
+import org.weasis.dicom.tool.AdaptiveRetrieve.Protocol;
+import org.weasis.dicom.tool.AdaptiveRetrieve.Retriever;
+import org.weasis.dicom.web.WadoRsRetriever;
+
+public class AdaptiveRetrieveTest {
+  private static final DicomNode CALLING = new DicomNode("WEASIS", "localhost", 11113);
+  private static final DicomNode NODE_A = new DicomNode("ARCHIVE_A", "localhost", 11112);
+  private static final DicomNode NODE_B = new DicomNode("ARCHIVE_B", "localhost", 11114);
+  private static final DicomParam STUDY = new DicomParam(Tag.StudyInstanceUID, "1.2.3");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicInteger counter = new AtomicInteger();
+  private AdaptiveRetrieve retrieve;
+  private File outputDir;
+
+  @Before
+  public void setUp() throws IOException {
+    retrieve = new AdaptiveRetrieve(null, CALLING);
+    outputDir = folder.newFolder();
+  }
+
+  /** @return a retriever sending one instance of the SOP class after the setup delay */
+  private Retriever newRetriever(long setupDelay, String cuid) {
+    return (calledNode, progress, handler, keys) -> {
+      try {
+        Thread.sleep(setupDelay);
+        String iuid = "1.2.3.4." + counter.incrementAndGet();
+        Attributes fmi =
+            Attributes.createFileMetaInformation(iuid, cuid, UID.ImplicitVRLittleEndian);
+        handler.handle(fmi, new ByteArrayInputStream(new byte[1000]));
+      } catch (Exception e) {
+        return new DicomState(Status.UnableToProcess, e.getMessage(), null);
+      }
+      return new DicomState(Status.Success, null, null);
+    };
+  }
+
+  private static Retriever failingRetriever() {
+    return (calledNode, progress, handler, keys) ->
+        new DicomState(Status.UnableToProcess, "Connection refused", null);
+  }
+
+  @Test
+  public void testLearning() {
+    retrieve.setRetriever(Protocol.C_GET, newRetriever(300, UID.CTImageStorage));
+    retrieve.setRetriever(Protocol.C_MOVE, newRetriever(0, UID.CTImageStorage));
+
+    // The unknown protocols are used first to learn their profile
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_GET, Protocol.C_MOVE), retrieve.getProtocolOrder(NODE_A, 0));
+    Assert.assertEquals(Status.Success, retrieve.retrieve(NODE_A, outputDir, 0, STUDY).getStatus());
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_MOVE, Protocol.C_GET), retrieve.getProtocolOrder(NODE_A, 0));
+    Assert.assertEquals(Status.Success, retrieve.retrieve(NODE_A, outputDir, 0, STUDY).getStatus());
+
+    // Both are known, the fastest is first
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_MOVE, Protocol.C_GET), retrieve.getProtocolOrder(NODE_A, 0));
+    NodeProfile profile = retrieve.getProfile(NODE_A);
+    Assert.assertEquals(1, profile.getProfile(Protocol.C_GET).getTransfers());
+    Assert.assertEquals(1, profile.getProfile(Protocol.C_MOVE).getTransfers());
+    Assert.assertTrue(profile.getProfile(Protocol.C_GET).getSetupTime() >= 250);
+    Assert.assertEquals(2, outputDir.list().length);
+
+    // The profiles are learned per node
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_GET, Protocol.C_MOVE), retrieve.getProtocolOrder(NODE_B, 0));
+  }
+
+  @Test
+  public void testFallback() {
+    retrieve.setRetriever(Protocol.C_GET, failingRetriever());
+    retrieve.setRetriever(Protocol.C_MOVE, newRetriever(0, UID.CTImageStorage));
+
+    Assert.assertEquals(Status.Success, retrieve.retrieve(NODE_A, outputDir, 0, STUDY).getStatus());
+    NodeProfile profile = retrieve.getProfile(NODE_A);
+    Assert.assertEquals(1, profile.getProfile(Protocol.C_GET).getFailures());
+    Assert.assertEquals(1, profile.getProfile(Protocol.C_MOVE).getTransfers());
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_MOVE, Protocol.C_GET), retrieve.getProtocolOrder(NODE_A, 0));
+
+    retrieve.setRetriever(Protocol.C_MOVE, failingRetriever());
+    DicomState state = retrieve.retrieve(NODE_A, outputDir, 0, STUDY);
+    Assert.assertEquals(Status.UnableToProcess, state.getStatus());
+    Assert.assertEquals(2, profile.getProfile(Protocol.C_GET).getFailures());
+  }
+
+  @Test
+  public void testCancel() {
+    CancellationToken token = new CancellationToken();
+    retrieve.setRetriever(
+        Protocol.C_GET,
+        (calledNode, progress, handler, keys) -> {
+          token.cancel();
+          Assert.assertTrue(progress.isCancel());
+          return new DicomState(Status.UnableToProcess, "Aborted", null);
+        });
+    retrieve.setRetriever(Protocol.C_MOVE, newRetriever(0, UID.CTImageStorage));
+
+    DicomState state = retrieve.retrieve(NODE_A, outputDir, 0, null, token, STUDY);
+    // No fallback and no failure recorded in the profile
+    Assert.assertEquals(Status.Cancel, state.getStatus());
+    NodeProfile profile = retrieve.getProfile(NODE_A);
+    Assert.assertEquals(0, profile.getProfile(Protocol.C_GET).getFailures());
+    Assert.assertEquals(0, profile.getProfile(Protocol.C_MOVE).getTransfers());
+    Assert.assertEquals(0, outputDir.list().length);
+  }
+
+  @Test
+  public void testSopClasses() {
+    retrieve.setRetriever(Protocol.C_GET, newRetriever(0, UID.CTImageStorage));
+    retrieve.setRetriever(Protocol.C_MOVE, newRetriever(300, UID.MRImageStorage));
+    retrieve.retrieve(NODE_A, outputDir, 0, STUDY);
+    retrieve.retrieve(NODE_A, outputDir, 0, STUDY);
+
+    NodeProfile profile = retrieve.getProfile(NODE_A);
+    Assert.assertEquals(
+        Collections.singleton(UID.CTImageStorage),
+        profile.getProfile(Protocol.C_GET).getSopClassUIDs());
+    Assert.assertEquals(2, profile.getSupportedSopClassUIDs().size());
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_GET, Protocol.C_MOVE), retrieve.getProtocolOrder(NODE_A, 0));
+    // C-GET has never delivered MR images
+    Assert.assertEquals(
+        Arrays.asList(Protocol.C_MOVE, Protocol.C_GET),
+        retrieve.getProtocolOrder(NODE_A, 0, Collections.singleton(UID.MRImageStorage)));
+  }
+
+  @Test
+  public void testWadoPerNode() {
+    WadoRsRetriever wado = new WadoRsRetriever("http://localhost/dicomweb", null, null);
+    retrieve.setWadoRetrievers(node -> NODE_A.getAet().equals(node.getAet()) ? wado : null);
+
+    Assert.assertTrue(retrieve.getProtocolOrder(NODE_A, 0).contains(Protocol.WADO_RS));
+    Assert.assertFalse(retrieve.getProtocolOrder(NODE_B, 0).contains(Protocol.WADO_RS));
+
+    retrieve.setWadoRetrievers(null);
+    Assert.assertFalse(retrieve.getProtocolOrder(NODE_A, 0).contains(Protocol.WADO_RS));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.tool.ModalityWorklistCache.Delta;
+
+public class ModalityWorklistCacheTest {
+  private static final DicomNode CALLING = new DicomNode("WEASIS", "localhost", 11113);
+  private static final DicomNode WORKLIST = new DicomNode("WORKLIST", "localhost", 11112);
+
+  private static Attributes item(String spsID, String patientName) {
+    Attributes item = new Attributes();
+    item.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+    item.setString(Tag.RequestedProcedureID, VR.SH, "RP1");
+    item.setString(Tag.AccessionNumber, VR.SH, "ACC1");
+    item.setString(Tag.PatientName, VR.PN, patientName);
+    Attributes sps = new Attributes();
+    sps.setString(Tag.Modality, VR.CS, "CT");
+    if (spsID != null) {
+      sps.setString(Tag.ScheduledProcedureStepID, VR.SH, spsID);
+    }
+    Sequence seq = item.newSequence(Tag.ScheduledProcedureStepSequence, 1);
+    seq.add(sps);
+    return item;
+  }
+
+  @Test
+  public void testDelta() {
+    try (ModalityWorklistCache cache = new ModalityWorklistCache(null, CALLING, WORKLIST)) {
+      List<Delta> notified = new ArrayList<>();
+      cache.addListener((c, d) -> notified.add(d));
+
+      Delta delta = cache.update(Arrays.asList(item("SPS1", "Doe^John"), item("SPS2", "Doe^Jane")));
+      Assert.assertEquals(2, delta.getAdded().size());
+      Assert.assertTrue(delta.getRemoved().isEmpty());
+      Assert.assertTrue(delta.getChanged().isEmpty());
+      Assert.assertEquals(1, cache.getVersion());
+      Assert.assertEquals("Doe^Jane", cache.getItem("SPS2").getString(Tag.PatientName));
+
+      delta = cache.update(Arrays.asList(item("SPS2", "Doe^Janet"), item("SPS3", "Roe^Rick")));
+      Assert.assertEquals(1, delta.getAdded().size());
+      Assert.assertEquals("Roe^Rick", delta.getAdded().get(0).getString(Tag.PatientName));
+      Assert.assertEquals(1, delta.getRemoved().size());
+      Assert.assertEquals("Doe^John", delta.getRemoved().get(0).getString(Tag.PatientName));
+      Assert.assertEquals(1, delta.getChanged().size());
+      Assert.assertEquals("Doe^Janet", delta.getChanged().get(0).getString(Tag.PatientName));
+      Assert.assertEquals(2, cache.getVersion());
+
+      // Same content, no notification
+      delta = cache.update(Arrays.asList(item("SPS2", "Doe^Janet"), item("SPS3", "Roe^Rick")));
+      Assert.assertTrue(delta.isEmpty());
+      Assert.assertEquals(2, cache.getVersion());
+      Assert.assertEquals(2, notified.size());
+
+      delta = cache.update(Collections.emptyList());
+      Assert.assertEquals(2, delta.getRemoved().size());
+      Assert.assertTrue(cache.getItems().isEmpty());
+    }
+  }
+
+  @Test
+  public void testItemsWithoutSpsID() {
+    try (ModalityWorklistCache cache = new ModalityWorklistCache(null, CALLING, WORKLIST)) {
+      // Same study, requested procedure and accession number but distinct items
+      Attributes john = item(null, "Doe^John");
+      Attributes jane = item(null, "Doe^Jane");
+      Assert.assertNotEquals(
+          ModalityWorklistCache.getItemKey(john), ModalityWorklistCache.getItemKey(jane));
+      Assert.assertEquals(
+          ModalityWorklistCache.getItemKey(john),
+          ModalityWorklistCache.getItemKey(item(null, "Doe^John")));
+
+      Delta delta = cache.update(Arrays.asList(john, jane, item(null, "Doe^John")));
+      // The identical items are not merged either
+      Assert.assertEquals(3, delta.getAdded().size());
+      Assert.assertEquals(3, cache.getItems().size());
+
+      // Without key, a modified item is removed and added
+      delta = cache.update(Arrays.asList(john, item(null, "Doe^Janet"), item(null, "Doe^John")));
+      Assert.assertEquals(1, delta.getAdded().size());
+      Assert.assertEquals("Doe^Janet", delta.getAdded().get(0).getString(Tag.PatientName));
+      Assert.assertEquals(1, delta.getRemoved().size());
+      Assert.assertEquals("Doe^Jane", delta.getRemoved().get(0).getString(Tag.PatientName));
+      Assert.assertTrue(delta.getChanged().isEmpty());
+    }
+  }
+}
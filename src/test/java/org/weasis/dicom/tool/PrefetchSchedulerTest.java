@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.BandwidthManager.TrafficClass;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.tool.PrefetchScheduler.RetrieveStrategy;
+
+public class PrefetchSchedulerTest {
+  private static final DicomNode CALLING = new DicomNode("WEASIS", "localhost", 11113);
+  private static final DicomNode ARCHIVE = new DicomNode("ARCHIVE", "localhost", 11112);
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private final List<AdvancedParams> usedParams = Collections.synchronizedList(new ArrayList<>());
+
+  private RetrieveStrategy writeStudy(int size, int status) {
+    return (params, callingNode, calledNode, outputDir, keys) -> {
+      usedParams.add(params);
+      try {
+        outputDir.mkdirs();
+        Files.write(new File(outputDir, "1.2.3.1").toPath(), new byte[size]);
+      } catch (IOException e) {
+        return new DicomState(Status.UnableToProcess, e.getMessage(), null);
+      }
+      return new DicomState(status, null, null);
+    };
+  }
+
+  private static void waitForPrefetch(PrefetchScheduler scheduler, String... uids)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    for (String uid : uids) {
+      while (scheduler.isPending(uid) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertFalse(scheduler.isPending(uid));
+    }
+  }
+
+  private void prefetch(PrefetchScheduler scheduler, String uid) throws InterruptedException {
+    scheduler.submit(uid, null, PrefetchScheduler.PRIORITY_NORMAL, 0);
+    waitForPrefetch(scheduler, uid);
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    File cacheDir = testFolder.newFolder("cache");
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(null, CALLING, ARCHIVE, cacheDir, 1000, 1, 0)) {
+      scheduler.setRetrieveStrategy(writeStudy(400, Status.Success));
+      scheduler.start();
+      prefetch(scheduler, "1.1");
+      prefetch(scheduler, "1.2");
+      Assert.assertEquals(800, scheduler.getCacheSize());
+      prefetch(scheduler, "1.3");
+
+      // The least recently used study is evicted
+      Assert.assertFalse(scheduler.isCached("1.1"));
+      Assert.assertFalse(new File(cacheDir, "1.1").exists());
+      Assert.assertTrue(scheduler.isCached("1.2"));
+      Assert.assertEquals(new File(cacheDir, "1.3"), scheduler.getStudyDirectory("1.3"));
+      Assert.assertEquals(800, scheduler.getCacheSize());
+    }
+  }
+
+  @Test
+  public void testPin() throws Exception {
+    File cacheDir = testFolder.newFolder("cache");
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(null, CALLING, ARCHIVE, cacheDir, 1000, 1, 0)) {
+      scheduler.setRetrieveStrategy(writeStudy(600, Status.Success));
+      scheduler.start();
+      prefetch(scheduler, "1.1");
+      File dir = scheduler.pin("1.1");
+      Assert.assertEquals(new File(cacheDir, "1.1"), dir);
+      Assert.assertNull(scheduler.pin("1.9"));
+
+      prefetch(scheduler, "1.2");
+      // The pinned study is kept even when the quota is exceeded
+      Assert.assertTrue(scheduler.isCached("1.1"));
+      Assert.assertTrue(dir.exists());
+      Assert.assertEquals(1200, scheduler.getCacheSize());
+
+      scheduler.unpin("1.1");
+      Assert.assertFalse(scheduler.isCached("1.1"));
+      Assert.assertFalse(dir.exists());
+      Assert.assertTrue(scheduler.isCached("1.2"));
+      Assert.assertEquals(600, scheduler.getCacheSize());
+    }
+  }
+
+  @Test
+  public void testFailedRetrieve() throws Exception {
+    File cacheDir = testFolder.newFolder("cache");
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(null, CALLING, ARCHIVE, cacheDir, 1000, 1, 0)) {
+      scheduler.setRetrieveStrategy(writeStudy(100, Status.UnableToProcess));
+      scheduler.start();
+      prefetch(scheduler, "1.1");
+      // A partial study is never added to the cache
+      Assert.assertFalse(scheduler.isCached("1.1"));
+      Assert.assertFalse(new File(cacheDir, "1.1").exists());
+      Assert.assertEquals(0, PrefetchScheduler.getSize(cacheDir));
+    }
+  }
+
+  @Test
+  public void testLoadCache() throws Exception {
+    File cacheDir = testFolder.newFolder("cache");
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(null, CALLING, ARCHIVE, cacheDir, 1000, 1, 0)) {
+      scheduler.setRetrieveStrategy(writeStudy(300, Status.Success));
+      scheduler.start();
+      prefetch(scheduler, "1.1");
+    }
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(null, CALLING, ARCHIVE, cacheDir, 1000, 1, 0)) {
+      Assert.assertTrue(scheduler.isCached("1.1"));
+      Assert.assertEquals(300, scheduler.getCacheSize());
+    }
+  }
+
+  @Test
+  public void testBackgroundBandwidth() throws Exception {
+    AdvancedParams params = new AdvancedParams();
+    try (PrefetchScheduler scheduler =
+        new PrefetchScheduler(
+            params, CALLING, ARCHIVE, testFolder.newFolder("cache"), 1000, 1, 5000)) {
+      Assert.assertEquals(TrafficClass.BACKGROUND, params.getTrafficClass());
+      Assert.assertNotNull(params.getBandwidthManager());
+      Assert.assertEquals(5000, params.getBandwidthBucket(ARCHIVE).getRate());
+
+      scheduler.setRetrieveStrategy(writeStudy(100, Status.Success));
+      scheduler.start();
+      prefetch(scheduler, "1.1");
+      // The bucket is passed to the retrieve operation with the parameters
+      Assert.assertEquals(1, usedParams.size());
+      Assert.assertSame(params, usedParams.get(0));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DicomPartWriterTest {
+  private static final String BOUNDARY = "6c0a9a2e-4b5d-4c8e-9d3f-boundary";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] buildInstance(String studyUID, String iuid) throws IOException {
+    Attributes attrs = new Attributes();
+    attrs.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+    attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+    attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+      dos.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] buildPayload(String type, byte[]... parts) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(("--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+    for (byte[] part : parts) {
+      out.write(("\r\nContent-Type: " + type + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.write(part);
+      out.write(("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+    }
+    out.write("--\r\n".getBytes(StandardCharsets.US_ASCII));
+    return out.toByteArray();
+  }
+
+  private static void parse(DicomPartWriter writer, byte[] payload) throws IOException {
+    MultipartReader reader =
+        new MultipartReader(
+            new ByteArrayInputStream(payload), BOUNDARY.getBytes(StandardCharsets.US_ASCII), 1024);
+    int k = 1;
+    boolean nextPart = reader.skipFirstBoundary();
+    while (nextPart) {
+      writer.readBodyPart(reader, k++, reader.readHeaderFields());
+      nextPart = reader.readBoundary();
+    }
+  }
+
+  @Test
+  public void testStoragePattern() throws IOException {
+    File storageDir = folder.newFolder("storage");
+    DicomPartWriter writer = new DicomPartWriter(storageDir, "{0020000D}/{00080018}.dcm");
+    parse(writer, buildPayload("application/dicom", buildInstance("1.2.3", "1.2.3.1")));
+    parse(writer, buildPayload("application/dicom+xml", new byte[10]));
+
+    Map<String, Path> index = writer.getIndex();
+    Assert.assertEquals(1, index.size());
+    Path path = index.get("1.2.3.1");
+    Assert.assertEquals(new File(storageDir, "1.2.3/1.2.3.1.dcm").toPath(), path);
+    Assert.assertTrue(path.toFile().isFile());
+    Assert.assertEquals(0, writer.getNumberOfFailures());
+  }
+
+  @Test
+  public void testPathOutsideStorageFolder() throws IOException {
+    File storageDir = folder.newFolder("storage");
+    DicomPartWriter writer = new DicomPartWriter(storageDir, "{0020000D}/{00080018}.dcm");
+    parse(
+        writer,
+        buildPayload(
+            "application/dicom",
+            buildInstance("..", "escaped"),
+            buildInstance("tmp", "1.2.3.2"),
+            buildInstance("1.2.3", "1.2.3.1")));
+
+    // The invalid parts are rejected, the next parts are still written
+    Assert.assertEquals(2, writer.getNumberOfFailures());
+    Assert.assertEquals(1, writer.getIndex().size());
+    Assert.assertFalse(new File(folder.getRoot(), "escaped.dcm").exists());
+    Assert.assertFalse(new File(storageDir, "tmp/1.2.3.2.dcm").exists());
+
+    DicomPartWriter uidWriter = new DicomPartWriter(storageDir);
+    parse(uidWriter, buildPayload("application/dicom", buildInstance("1.2.3", "../escaped")));
+    Assert.assertEquals(1, uidWriter.getNumberOfFailures());
+    Assert.assertTrue(uidWriter.getIndex().isEmpty());
+    Assert.assertFalse(new File(folder.getRoot(), "escaped").exists());
+    // The temporary files are deleted
+    Assert.assertEquals(0, new File(storageDir, "tmp").list().length);
+  }
+}
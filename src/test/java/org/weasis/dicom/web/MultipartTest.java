@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultipartTest {
+  private static final byte[] CONTENT =
+      "[{\"00080018\":{\"vr\":\"UI\",\"Value\":[\"1.2.3.4\"]}}]".getBytes(StandardCharsets.UTF_8);
+
+  private static URLConnection newConnection(String contentEncoding) throws IOException {
+    return new URLConnection(new URL("http://localhost/dicomweb")) {
+      @Override
+      public void connect() {
+        // Nothing to connect
+      }
+
+      @Override
+      public String getContentEncoding() {
+        return contentEncoding;
+      }
+    };
+  }
+
+  private static byte[] deflate(boolean nowrap) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream dos =
+        new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+      dos.write(CONTENT);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] gzip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream gos = new GZIPOutputStream(out)) {
+      gos.write(CONTENT);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] decode(String contentEncoding, byte[] data) throws IOException {
+    return decode(contentEncoding, new ByteArrayInputStream(data));
+  }
+
+  private static byte[] decode(String contentEncoding, InputStream data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = Multipart.decodeContent(newConnection(contentEncoding), data)) {
+      byte[] buf = new byte[7];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testDeflate() throws IOException {
+    // The zlib format of RFC 9110 and the raw deflate data sent by some servers
+    Assert.assertArrayEquals(CONTENT, decode("deflate", deflate(false)));
+    Assert.assertArrayEquals(CONTENT, decode(" Deflate ", deflate(true)));
+    Assert.assertEquals(0, decode("deflate", new byte[0]).length);
+  }
+
+  @Test
+  public void testDeflateOneByteAtATime() throws IOException {
+    // The zlib header is split between two reads
+    Assert.assertArrayEquals(CONTENT, decode("deflate", new OneByteInputStream(deflate(false))));
+    Assert.assertArrayEquals(CONTENT, decode("deflate", new OneByteInputStream(deflate(true))));
+  }
+
+  private static class OneByteInputStream extends FilterInputStream {
+    OneByteInputStream(byte[] data) {
+      super(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1));
+    }
+  }
+
+  @Test
+  public void testOtherEncodings() throws IOException {
+    Assert.assertArrayEquals(CONTENT, decode("gzip", gzip()));
+    Assert.assertArrayEquals(CONTENT, decode("x-gzip", gzip()));
+    Assert.assertArrayEquals(CONTENT, decode("identity", CONTENT));
+    Assert.assertArrayEquals(CONTENT, decode(null, CONTENT));
+    Assert.assertNull(Multipart.decodeContent(newConnection("gzip"), null));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupportedEncoding() throws IOException {
+    decode("br", CONTENT);
+  }
+}
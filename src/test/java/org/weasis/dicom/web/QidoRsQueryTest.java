@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.UnsupportedEncodingException;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomParam;
+
+public class QidoRsQueryTest {
+  private static final String URL = "http://localhost/dicomweb";
+
+  private final QidoRsQuery query = new QidoRsQuery(URL + "/studies/", null, null);
+
+  @Test
+  public void testStudyLevel() throws UnsupportedEncodingException {
+    Assert.assertEquals(
+        URL + "/studies?00100020=12+34&includefield=00081030&00400275.00400009=A%2CB",
+        query.getQueryURL(
+            QueryRetrieveLevel.STUDY,
+            new DicomParam(Tag.PatientID, "12 34"),
+            new DicomParam(Tag.StudyDescription),
+            new DicomParam(
+                new int[] {Tag.RequestAttributesSequence},
+                Tag.ScheduledProcedureStepID,
+                "A",
+                "B")));
+
+    query.setFuzzyMatching(true);
+    Assert.assertEquals(
+        URL + "/studies?fuzzymatching=true", query.getQueryURL(QueryRetrieveLevel.STUDY));
+  }
+
+  @Test
+  public void testResourceRestriction() throws UnsupportedEncodingException {
+    Assert.assertEquals(
+        URL + "/studies/1.2.3/series?00080060=CT",
+        query.getQueryURL(
+            QueryRetrieveLevel.SERIES,
+            new DicomParam(Tag.StudyInstanceUID, "1.2.3"),
+            new DicomParam(Tag.Modality, "CT")));
+    Assert.assertEquals(
+        URL + "/studies/1.2.3/series/1.2.3.4/instances?includefield=00080018",
+        query.getQueryURL(
+            QueryRetrieveLevel.IMAGE,
+            new DicomParam(Tag.SeriesInstanceUID, "1.2.3.4"),
+            new DicomParam(Tag.StudyInstanceUID, "1.2.3"),
+            new DicomParam(Tag.SOPInstanceUID)));
+    // The series is a path segment only under the study
+    Assert.assertEquals(
+        URL + "/series?0020000E=1.2.3.4",
+        query.getQueryURL(
+            QueryRetrieveLevel.SERIES, new DicomParam(Tag.SeriesInstanceUID, "1.2.3.4")));
+  }
+
+  @Test
+  public void testNoResourceRestriction() throws UnsupportedEncodingException {
+    // Several values are a matching key
+    Assert.assertEquals(
+        URL + "/instances?0020000D=1.2%2C1.3",
+        query.getQueryURL(
+            QueryRetrieveLevel.IMAGE, new DicomParam(Tag.StudyInstanceUID, "1.2", "1.3")));
+    // A nested Study Instance UID is not the study of the resource
+    Assert.assertEquals(
+        URL + "/series?00081110.0020000D=1.2",
+        query.getQueryURL(
+            QueryRetrieveLevel.SERIES,
+            new DicomParam(new int[] {Tag.ReferencedStudySequence}, Tag.StudyInstanceUID, "1.2")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedLevel() throws UnsupportedEncodingException {
+    query.getQueryURL(QueryRetrieveLevel.PATIENT);
+  }
+}
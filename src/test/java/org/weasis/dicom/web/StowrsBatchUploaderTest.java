@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.web.StowrsBatchUploader.Outcome;
+import org.weasis.dicom.web.StowrsMultiFiles.BatchResult;
+
+public class StowrsBatchUploaderTest {
+  private static final String URL = "http://localhost/dicomweb";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File checkpointFile;
+
+  @Before
+  public void setUp() {
+    checkpointFile = new File(folder.getRoot(), "checkpoint.properties");
+  }
+
+  private File newDicomFile(String iuid) throws IOException {
+    Attributes attrs = new Attributes();
+    attrs.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+    attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+    File file = folder.newFile();
+    try (DicomOutputStream out = new DicomOutputStream(file)) {
+      out.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+    }
+    return file;
+  }
+
+  private static Attributes newResponse(String[] stored, String[] failed) {
+    Attributes response = new Attributes();
+    addUIDs(response.newSequence(Tag.ReferencedSOPSequence, stored.length), stored);
+    addUIDs(response.newSequence(Tag.FailedSOPSequence, failed.length), failed);
+    return response;
+  }
+
+  private static void addUIDs(Sequence seq, String[] uids) {
+    for (String uid : uids) {
+      Attributes item = new Attributes();
+      item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, uid);
+      seq.add(item);
+    }
+  }
+
+  private StowrsBatchUploader newUploader() throws IOException {
+    return new StowrsBatchUploader(
+        new StowrsMultiFiles(URL, Multipart.ContentType.DICOM), checkpointFile);
+  }
+
+  @Test
+  public void testReconcile() throws IOException {
+    File stored = newDicomFile("1.2.3.1");
+    File duplicate = newDicomFile("1.2.3.1");
+    File failed = newDicomFile("1.2.3.2");
+    File missing = newDicomFile("1.2.3.3");
+    File unreadable = folder.newFile();
+
+    StowrsBatchUploader uploader = newUploader();
+    uploader.reconcile(
+        new BatchResult(
+            Arrays.asList(stored, duplicate, failed, missing, unreadable),
+            newResponse(new String[] {"1.2.3.1"}, new String[] {"1.2.3.2"}),
+            null));
+
+    // The files with the same SOP Instance UID have the same outcome
+    Assert.assertEquals(Outcome.STORED, uploader.getOutcome(stored));
+    Assert.assertEquals(Outcome.STORED, uploader.getOutcome(duplicate));
+    Assert.assertEquals(Outcome.FAILED, uploader.getOutcome(failed));
+    Assert.assertEquals(Outcome.NOT_SENT, uploader.getOutcome(missing));
+    Assert.assertEquals(Outcome.FAILED, uploader.getOutcome(unreadable));
+    Assert.assertEquals(
+        Arrays.asList(failed, missing, unreadable),
+        uploader.getPendingFiles(Arrays.asList(stored, duplicate, failed, missing, unreadable)));
+  }
+
+  @Test
+  public void testReconcileWithoutContent() throws IOException {
+    File file = newDicomFile("1.2.3.1");
+    StowrsBatchUploader uploader = newUploader();
+    uploader.reconcile(new BatchResult(Collections.singletonList(file), new Attributes(), null));
+    Assert.assertEquals(Outcome.STORED, uploader.getOutcome(file));
+
+    // An error of the request resets the outcome
+    uploader.reconcile(
+        new BatchResult(Collections.singletonList(file), null, new ConnectException()));
+    Assert.assertEquals(Outcome.NOT_SENT, uploader.getOutcome(file));
+  }
+
+  @Test
+  public void testCheckpoint() throws IOException {
+    File stored = newDicomFile("1.2.3.1");
+    File failed = newDicomFile("1.2.3.2");
+    newUploader()
+        .reconcile(
+            new BatchResult(
+                Arrays.asList(stored, failed),
+                newResponse(new String[] {"1.2.3.1"}, new String[] {"1.2.3.2"}),
+                null));
+    Assert.assertTrue(checkpointFile.exists());
+
+    File corrupted = newDicomFile("1.2.3.3");
+    Properties checkpoint = new Properties();
+    try (InputStream in = new FileInputStream(checkpointFile)) {
+      checkpoint.load(in);
+    }
+    checkpoint.setProperty(corrupted.getAbsolutePath(), "BAD;1.2.3.3");
+    try (OutputStream out = new FileOutputStream(checkpointFile)) {
+      checkpoint.store(out, null);
+    }
+
+    StowrsBatchUploader uploader = newUploader();
+    Assert.assertEquals(Outcome.STORED, uploader.getOutcome(stored));
+    Assert.assertEquals(Outcome.FAILED, uploader.getOutcome(failed));
+    // The invalid entry is ignored
+    Assert.assertEquals(Outcome.NOT_SENT, uploader.getOutcome(corrupted));
+
+    uploader.reset();
+    Assert.assertFalse(checkpointFile.exists());
+    Assert.assertEquals(Outcome.NOT_SENT, newUploader().getOutcome(stored));
+  }
+
+  @Test
+  public void testCheckpointOfAnotherService() throws IOException {
+    File stored = newDicomFile("1.2.3.1");
+    newUploader()
+        .reconcile(new BatchResult(Collections.singletonList(stored), new Attributes(), null));
+
+    StowrsBatchUploader uploader =
+        new StowrsBatchUploader(
+            new StowrsMultiFiles("http://localhost/other", Multipart.ContentType.DICOM),
+            checkpointFile);
+    Assert.assertEquals(Outcome.NOT_SENT, uploader.getOutcome(stored));
+  }
+}
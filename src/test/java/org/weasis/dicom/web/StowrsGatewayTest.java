@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.web.StowrsMultiFiles.BatchResult;
+
+public class StowrsGatewayTest {
+  private static final String STUDY = "1.2.3";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<List<File>> requests = new ArrayList<>();
+
+  private File receive(StowrsGateway gateway, String iuid, int length) throws IOException {
+    File file = folder.newFile();
+    Files.write(file.toPath(), new byte[length]);
+    gateway.spool(STUDY, iuid, file);
+    return new File(new File(folder.getRoot(), "spool/" + STUDY), iuid + ".dcm");
+  }
+
+  private File getFailedFile(String iuid) {
+    return new File(folder.getRoot(), "spool/failed/" + STUDY + "/" + iuid + ".dcm");
+  }
+
+  private StowrsGateway newGateway(StowrsGateway.Uploader uploader) {
+    StowrsGateway gateway =
+        new StowrsGateway(
+            new File(folder.getRoot(), "spool"),
+            (files, listener) -> {
+              requests.add(new ArrayList<>(files));
+              uploader.upload(files, listener);
+            });
+    gateway.setMaxBatchBytes(0);
+    return gateway;
+  }
+
+  @Test
+  public void testDuplicateInstance() throws IOException {
+    StowrsGateway gateway =
+        newGateway(
+            (files, listener) -> listener.batchCompleted(new BatchResult(files, null, null)));
+    File file = receive(gateway, "1.2.3.1", 100);
+    receive(gateway, "1.2.3.1", 60);
+    Assert.assertEquals(1, gateway.getNumberOfPendingInstances());
+    Assert.assertEquals(60, gateway.getSpoolSize());
+
+    gateway.uploadPending();
+    Assert.assertEquals(1, requests.size());
+    Assert.assertEquals(1, requests.get(0).size());
+    Assert.assertFalse(file.exists());
+    Assert.assertEquals(0, gateway.getNumberOfPendingInstances());
+    Assert.assertEquals(0, gateway.getSpoolSize());
+  }
+
+  @Test
+  public void testReceivedAgainDuringUpload() throws IOException {
+    StowrsGateway[] gateway = new StowrsGateway[1];
+    gateway[0] =
+        newGateway(
+            (files, listener) -> {
+              try {
+                if (requests.size() == 1) {
+                  receive(gateway[0], "1.2.3.1", 80);
+                }
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+              listener.batchCompleted(new BatchResult(files, null, null));
+            });
+    File file = receive(gateway[0], "1.2.3.1", 100);
+
+    gateway[0].uploadPending();
+    // The new copy must not be deleted by the first upload
+    Assert.assertTrue(file.exists());
+    Assert.assertEquals(1, gateway[0].getNumberOfPendingInstances());
+    Assert.assertEquals(80, gateway[0].getSpoolSize());
+
+    gateway[0].uploadPending();
+    Assert.assertEquals(2, requests.size());
+    Assert.assertFalse(file.exists());
+    Assert.assertEquals(0, gateway[0].getSpoolSize());
+  }
+
+  @Test
+  public void testBoundedRetries() throws IOException {
+    StowrsGateway gateway =
+        newGateway(
+            (files, listener) ->
+                listener.batchCompleted(new BatchResult(files, null, new ConnectException())));
+    gateway.setMaxRetries(3);
+    File file = receive(gateway, "1.2.3.1", 100);
+
+    for (int i = 0; i < 5; i++) {
+      gateway.uploadPending();
+    }
+    Assert.assertEquals(3, requests.size());
+    Assert.assertFalse(file.exists());
+    Assert.assertTrue(getFailedFile("1.2.3.1").exists());
+    Assert.assertEquals(0, gateway.getNumberOfPendingInstances());
+    Assert.assertEquals(0, gateway.getSpoolSize());
+  }
+
+  @Test
+  public void testRejectedRequest() throws IOException {
+    StowrsGateway gateway =
+        newGateway(
+            (files, listener) ->
+                listener.batchCompleted(
+                    new BatchResult(
+                        files, null, new HttpServerErrorException("Unsupported Media Type", 415))));
+    receive(gateway, "1.2.3.1", 100);
+
+    gateway.uploadPending();
+    gateway.uploadPending();
+    Assert.assertEquals(1, requests.size());
+    Assert.assertTrue(getFailedFile("1.2.3.1").exists());
+    Assert.assertEquals(0, gateway.getSpoolSize());
+  }
+
+  @Test
+  public void testFailedInstance() throws IOException {
+    Attributes response = new Attributes();
+    Sequence seq = response.newSequence(Tag.FailedSOPSequence, 1);
+    Attributes failed = new Attributes();
+    failed.setString(Tag.ReferencedSOPInstanceUID, VR.UI, "1.2.3.2");
+    failed.setInt(Tag.FailureReason, VR.US, 0xA700);
+    seq.add(failed);
+    StowrsGateway gateway =
+        newGateway(
+            (files, listener) -> listener.batchCompleted(new BatchResult(files, response, null)));
+    File stored = receive(gateway, "1.2.3.1", 100);
+    File rejected = receive(gateway, "1.2.3.2", 100);
+
+    gateway.uploadPending();
+    Assert.assertFalse(stored.exists());
+    Assert.assertFalse(rejected.exists());
+    Assert.assertTrue(getFailedFile("1.2.3.2").exists());
+    Assert.assertFalse(getFailedFile("1.2.3.1").exists());
+    Assert.assertEquals(0, gateway.getSpoolSize());
+  }
+
+  @Test
+  public void testRetryableErrors() {
+    Assert.assertTrue(StowrsGateway.isRetryable(new ConnectException()));
+    Assert.assertTrue(StowrsGateway.isRetryable(new HttpServerErrorException("", 503)));
+    Assert.assertTrue(StowrsGateway.isRetryable(new HttpServerErrorException("", 429)));
+    Assert.assertFalse(StowrsGateway.isRetryable(new HttpServerErrorException("", 400)));
+    Assert.assertFalse(StowrsGateway.isRetryable(new HttpServerErrorException("", 415)));
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.web.Multipart.ContentType;
+
+public class StowrsMultiFilesTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File newFile(int length) throws IOException {
+    File file = folder.newFile();
+    Files.write(file.toPath(), new byte[length]);
+    return file;
+  }
+
+  @Test
+  public void testContentLength() throws IOException {
+    List<File> files = Arrays.asList(newFile(1000), newFile(0), newFile(12345));
+    for (ContentType type : new ContentType[] {ContentType.DICOM, ContentType.JSON}) {
+      StowrsMultiFiles stowrs = new StowrsMultiFiles("http://localhost/dicomweb", type);
+      // Same content as the request, with the final boundary
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        for (File file : files) {
+          stowrs.writeContentMarkers(out);
+          Files.copy(file.toPath(), out);
+        }
+        out.write(Multipart.Separator.BOUNDARY.getType());
+        out.writeBytes(AbstractStowrs.MULTIPART_BOUNDARY);
+        out.write(Multipart.Separator.STREAM.getType());
+      }
+      Assert.assertEquals(bytes.size(), stowrs.getContentLength(files));
+    }
+    StowrsMultiFiles stowrs = new StowrsMultiFiles("http://localhost/dicomweb", ContentType.DICOM);
+    Assert.assertEquals(
+        AbstractStowrs.getEndMarkersLength(), stowrs.getContentLength(Collections.emptyList()));
+  }
+
+  @Test
+  public void testServerTime() {
+    Assert.assertEquals(-1, AbstractStowrs.getServerTime(null));
+    Assert.assertEquals(-1, AbstractStowrs.getServerTime(""));
+    Assert.assertEquals(-1, AbstractStowrs.getServerTime("cache;desc=\"Cache Read\""));
+    Assert.assertEquals(53, AbstractStowrs.getServerTime("db;dur=53, app;dur=47.2"));
+    Assert.assertEquals(48, AbstractStowrs.getServerTime("db;dur=12,app;desc=\"App\";dur=47.6"));
+    Assert.assertEquals(20, AbstractStowrs.getServerTime("total;dur=\"20\""));
+    // The invalid durations are ignored
+    Assert.assertEquals(5, AbstractStowrs.getServerTime("db;dur=abc, app; dur=5"));
+  }
+}
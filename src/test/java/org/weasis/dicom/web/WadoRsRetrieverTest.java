@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2021 Weasis Team and other contributors.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse
+ * Public License 2.0 which is available at http://www.eclipse.org/legal/epl-2.0, or the Apache
+ * License, Version 2.0 which is available at https://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR Apache-2.0
+ */
+package org.weasis.dicom.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.param.InstanceHandler;
+
+public class WadoRsRetrieverTest {
+  private static final String SERVICE = "http://localhost/dicomweb";
+  private static final String BOUNDARY = "wado-boundary";
+
+  private static class Response {
+    private final int code;
+    private final byte[] content;
+
+    Response(int code, byte[] content) {
+      this.code = code;
+      this.content = content;
+    }
+  }
+
+  private static class FakeConnection extends HttpURLConnection {
+    private final Response response;
+
+    FakeConnection(URL url, Response response) {
+      super(url);
+      this.response = response;
+    }
+
+    @Override
+    public void connect() {
+      // Nothing to connect
+    }
+
+    @Override
+    public void disconnect() {
+      // Nothing to disconnect
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return response.code;
+    }
+
+    @Override
+    public String getContentType() {
+      return Multipart.MULTIPART_RELATED
+          + "; type=\""
+          + Multipart.ContentType.DICOM
+          + "\"; boundary="
+          + BOUNDARY;
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      if (response.code >= 400) {
+        throw new IOException("HTTP " + response.code);
+      }
+      return new ByteArrayInputStream(response.content);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return response.code >= 400 ? new ByteArrayInputStream(response.content) : null;
+    }
+  }
+
+  private static WadoRsRetriever newRetriever(Map<String, Response> responses) {
+    return new WadoRsRetriever(SERVICE, null, null) {
+      @Override
+      HttpURLConnection openConnection(String url) throws IOException {
+        Response response = responses.get(url);
+        if (response == null) {
+          response = new Response(HttpURLConnection.HTTP_INTERNAL_ERROR, new byte[0]);
+        }
+        return new FakeConnection(new URL(url), response);
+      }
+    };
+  }
+
+  private static byte[] instance(String iuid) throws IOException {
+    Attributes dataset = new Attributes();
+    dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+    dataset.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+    Attributes fmi = dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+      dos.writeDataset(fmi, dataset);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] multipart(String... iuids) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (String iuid : iuids) {
+      out.write(
+          ("--" + BOUNDARY + "\r\nContent-Type: application/dicom\r\n\r\n")
+              .getBytes(StandardCharsets.US_ASCII));
+      out.write(instance(iuid));
+      out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    return out.toByteArray();
+  }
+
+  private static class Collector implements InstanceHandler {
+    private final List<String> uids = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean completed;
+
+    @Override
+    public void handle(Attributes fmi, InputStream data) throws IOException {
+      Attributes dataset =
+          new DicomInputStream(data, fmi.getString(Tag.TransferSyntaxUID)).readDataset(-1, -1);
+      Assert.assertEquals(
+          fmi.getString(Tag.MediaStorageSOPInstanceUID), dataset.getString(Tag.SOPInstanceUID));
+      uids.add(dataset.getString(Tag.SOPInstanceUID));
+    }
+
+    @Override
+    public void completed() {
+      completed = true;
+    }
+  }
+
+  @Test
+  public void testMultipartRetrieval() throws IOException {
+    Map<String, Response> responses = new HashMap<>();
+    responses.put(
+        SERVICE + "/studies/1.2",
+        new Response(HttpURLConnection.HTTP_OK, multipart("1.2.3.1", "1.2.3.2")));
+    Collector collector = new Collector();
+    DicomState state = newRetriever(responses).retrieveStudy("1.2", collector);
+
+    Assert.assertEquals(Status.Success, state.getStatus());
+    Assert.assertEquals(Arrays.asList("1.2.3.1", "1.2.3.2"), collector.uids);
+    Assert.assertEquals(2, state.getProgress().getNumberOfCompletedSuboperations());
+    Assert.assertTrue(collector.completed);
+  }
+
+  @Test
+  public void testNoInstanceFound() throws IOException {
+    Map<String, Response> responses = new HashMap<>();
+    responses.put(
+        SERVICE + "/studies/1.2/series/1.2.1",
+        new Response(HttpURLConnection.HTTP_OK, multipart("1.2.1.1")));
+    responses.put(
+        SERVICE + "/studies/1.2/series/1.2.2",
+        new Response(
+            HttpURLConnection.HTTP_NOT_FOUND, "Not found".getBytes(StandardCharsets.US_ASCII)));
+    responses.put(
+        SERVICE + "/studies/1.2/series/1.2.3",
+        new Response(HttpURLConnection.HTTP_NO_CONTENT, new byte[0]));
+    Collector collector = new Collector();
+    DicomState state =
+        newRetriever(responses)
+            .retrieveSeries("1.2", Arrays.asList("1.2.1", "1.2.2", "1.2.3"), collector);
+
+    // HTTP 204 and 404 are empty results
+    Assert.assertEquals(Status.Success, state.getStatus());
+    Assert.assertEquals(Collections.singletonList("1.2.1.1"), collector.uids);
+
+    state = newRetriever(responses).retrieveSeries("1.2", "1.2.2", new Collector());
+    Assert.assertEquals(Status.Success, state.getStatus());
+    Assert.assertEquals(0, state.getProgress().getNumberOfCompletedSuboperations());
+  }
+
+  @Test
+  public void testServerError() {
+    Collector collector = new Collector();
+    DicomState state = newRetriever(new HashMap<>()).retrieveStudy("1.2", collector);
+    Assert.assertEquals(Status.UnableToProcess, state.getStatus());
+    Assert.assertTrue(collector.uids.isEmpty());
+    Assert.assertTrue(collector.completed);
+  }
+}